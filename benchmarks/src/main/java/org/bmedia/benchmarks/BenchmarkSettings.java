@@ -0,0 +1,42 @@
+package org.bmedia.benchmarks;
+
+import org.bmedia.ApiSettings;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Loads an API config for benchmarks of code that reads {@link ApiSettings} (search engine, JPEG settings). Only
+ * settings that don't need a DB or file share are set
+ */
+public class BenchmarkSettings {
+
+    /**
+     * Loads a config that only sets the schema name, so every other setting has its default
+     *
+     * @throws IOException If the temp config file can't be written
+     */
+    public static void init() throws IOException {
+        init("");
+    }
+
+    /**
+     * Loads a config with extra settings
+     *
+     * @param extraJson Settings to add to the config, as JSON object members (e.g.
+     *                  {@code "\"search_engines\": {\"images\": \"array\"}"}), or ""
+     * @throws IOException If the temp config file can't be written
+     */
+    public static void init(String extraJson) throws IOException {
+        Path config = Files.createTempFile("bmedia-bench-", ".json");
+        try {
+            String json = "{\"database_schema\": \"bmedia\"" + (extraJson.isEmpty() ? "" : ", " + extraJson) + "}";
+            Files.writeString(config, json, StandardCharsets.UTF_8);
+            ApiSettings.init(config.toString());
+        } finally {
+            Files.delete(config);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.bmedia.benchmarks;
+
+import org.bmedia.ImageCodec;
+import org.bmedia.ImageUtils;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ImageIO.read/ImageIO.write, which the API used before, with {@link ImageCodec} and its JPEG settings:
+ * decode and thumbnail encode throughput, and the size of the encoded thumbnails.
+ * <p>
+ * "encodedBytes" is reported in bytes per millisecond next to the encode score (thumbnails per millisecond); dividing
+ * the two gives the bytes per thumbnail. ImageCodec with the default settings writes the same bytes as ImageIO.write
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class CodecBenchmark {
+
+    @Param({"synthetic_640x480.jpg", "synthetic_1920x1080.jpg", "synthetic_4000x3000.jpg",
+            "synthetic_640x480.png", "synthetic_1920x1080.png", "synthetic_4000x3000.png"})
+    public String image;
+
+    @Param({"400"})
+    public int thumbHeight;
+
+    /**
+     * "imageio" for ImageIO.read/write, otherwise ImageCodec with these thumbnail JPEG settings. Every parameter
+     * combination runs in its own fork, so each gets its own config
+     */
+    @Param({"imageio", "codec_default", "codec_quality_0.85", "codec_progressive", "codec_chroma_444"})
+    public String codec;
+
+    private byte[] imageBytes;
+    private BufferedImage scaled;
+
+    /**
+     * Encoded thumbnail bytes, summed per iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class EncodedSize {
+        public long encodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            encodedBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkSettings.init(jpegSettingsJson(codec));
+        Path path = Corpus.extract(image);
+        imageBytes = Files.readAllBytes(path);
+        Files.delete(path);
+        scaled = ImageUtils.scaleToHeight(ImageCodec.decode(imageBytes, 0), thumbHeight);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        if (codec.equals("imageio")) {
+            return ImageIO.read(new ByteArrayInputStream(imageBytes));
+        }
+        return ImageCodec.decode(imageBytes, 0);
+    }
+
+    /**
+     * JPEG encode of an already scaled thumbnail
+     */
+    @Benchmark
+    public byte[] encode(EncodedSize size) throws IOException {
+        byte[] bytes;
+        if (codec.equals("imageio")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(scaled, "jpg", out);
+            bytes = out.toByteArray();
+        } else {
+            bytes = ImageCodec.encode(scaled, "jpg", ImageCodec.THUMBNAIL);
+        }
+        size.encodedBytes += bytes.length;
+        return bytes;
+    }
+
+    private static String jpegSettingsJson(String codec) {
+        String thumbnail;
+        switch (codec) {
+            case "codec_quality_0.85":
+                thumbnail = "\"quality\": 0.85";
+                break;
+            case "codec_progressive":
+                thumbnail = "\"progressive\": true";
+                break;
+            case "codec_chroma_444":
+                thumbnail = "\"chroma_subsampling\": \"4:4:4\"";
+                break;
+            default:
+                return "";
+        }
+        return "\"jpeg_encoding\": {\"" + ImageCodec.THUMBNAIL + "\": {" + thumbnail + "}}";
+    }
+}
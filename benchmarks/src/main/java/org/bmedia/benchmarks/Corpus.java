@@ -0,0 +1,31 @@
+package org.bmedia.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Access to the synthetic image corpus (see {@link CorpusGenerator})
+ */
+public class Corpus {
+
+    /**
+     * Copies a corpus image out of the benchmark jar, since the API's pipeline reads from a path
+     *
+     * @param image Corpus file name
+     * @return Temp file holding the image. Callers should delete it when done
+     * @throws IOException
+     */
+    public static Path extract(String image) throws IOException {
+        Path path = Files.createTempFile("bmedia-bench-", "-" + image);
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + image)) {
+            if (in == null) {
+                throw new IOException("Corpus image " + image + " not found. Run CorpusGenerator");
+            }
+            Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,94 @@
+package org.bmedia.benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates the synthetic image corpus in src/main/resources/corpus. The output is deterministic, so the checked-in
+ * corpus can be regenerated at any time
+ * <p>
+ * Usage: java CorpusGenerator.java [output directory]
+ */
+public class CorpusGenerator {
+
+    /**
+     * Corpus resolutions as {width, height}
+     */
+    static final int[][] RESOLUTIONS = {{640, 480}, {1920, 1080}, {4000, 3000}};
+
+    /**
+     * Corpus formats. GIFs are only generated up to 1920x1080, since larger GIFs are rare in practice
+     */
+    static final String[] FORMATS = {"jpg", "png", "gif"};
+
+    public static void main(String[] args) throws IOException {
+        File outDir = new File((args.length > 0) ? args[0] : "src/main/resources/corpus");
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Could not create " + outDir);
+        }
+
+        for (int[] resolution : RESOLUTIONS) {
+            BufferedImage img = draw(resolution[0], resolution[1]);
+            for (String format : FORMATS) {
+                if (format.equals("gif") && resolution[0] > 1920) {
+                    continue;
+                }
+                File out = new File(outDir, fileName(resolution[0], resolution[1], format));
+                if (!ImageIO.write(img, format, out)) {
+                    throw new IOException("No writer for " + format);
+                }
+                System.out.println("Wrote " + out + " (" + out.length() + " bytes)");
+            }
+        }
+    }
+
+    /**
+     * Gets the corpus file name for a resolution and format
+     */
+    static String fileName(int width, int height, String format) {
+        return "synthetic_" + width + "x" + height + "." + format;
+    }
+
+    /**
+     * Draws a deterministic test image with smooth gradients (cheap to compress) and hard-edged shapes and text (what
+     * resamplers and JPEG encoding actually struggle with)
+     */
+    private static BufferedImage draw(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 60, 140), width, height, new Color(240, 180, 90)));
+        g.fillRect(0, 0, width, height);
+
+        Random random = new Random(width * 31L + height);
+        int shapes = 40;
+        for (int i = 0; i < shapes; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 180));
+            int size = width / 20 + random.nextInt(width / 6);
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            if (i % 2 == 0) {
+                g.fillOval(x, y, size, size);
+            } else {
+                g.fillRect(x, y, size, size / 2);
+            }
+        }
+
+        // fine stripes and text to give the resamplers some high-frequency detail
+        g.setColor(Color.BLACK);
+        for (int x = 0; x < width / 4; x += 3) {
+            g.drawLine(x, height - height / 8, x, height);
+        }
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(12, height / 20)));
+        g.setColor(Color.WHITE);
+        g.drawString("bmedia benchmark " + width + "x" + height, width / 10, height / 5);
+
+        g.dispose();
+        return img;
+    }
+}
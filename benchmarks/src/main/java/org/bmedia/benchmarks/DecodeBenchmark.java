@@ -0,0 +1,42 @@
+package org.bmedia.benchmarks;
+
+import org.bmedia.ImageCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode-only benchmark of the API's decoder ({@link ImageCodec}), from memory so file system noise is left out. See
+ * {@link CodecBenchmark} for the comparison with ImageIO.read
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class DecodeBenchmark {
+
+    @Param({"synthetic_640x480.jpg", "synthetic_1920x1080.jpg", "synthetic_4000x3000.jpg",
+            "synthetic_640x480.png", "synthetic_1920x1080.png", "synthetic_4000x3000.png",
+            "synthetic_640x480.gif", "synthetic_1920x1080.gif"})
+    public String image;
+
+    private byte[] imageBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path path = Corpus.extract(image);
+        imageBytes = Files.readAllBytes(path);
+        Files.delete(path);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageCodec.decode(imageBytes, 0);
+    }
+}
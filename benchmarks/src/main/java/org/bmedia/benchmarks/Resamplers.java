@@ -0,0 +1,86 @@
+package org.bmedia.benchmarks;
+
+import org.bmedia.ImageUtils;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+
+/**
+ * Resamplers to compare against the API's current thumbnail scaling ({@link ImageUtils#scaleToHeight})
+ */
+public class Resamplers {
+
+    /**
+     * Scales an image to a height with the named resampler
+     *
+     * @param name        One of "get_scaled_instance", "bilinear", "bicubic", "progressive_bilinear", "affine_bilinear"
+     * @param img         Image to scale
+     * @param thumbHeight Target height
+     * @return Scaled RGB image
+     */
+    public static BufferedImage scale(String name, BufferedImage img, int thumbHeight) {
+        switch (name) {
+            case "get_scaled_instance":
+                return ImageUtils.scaleToHeight(img, thumbHeight);
+            case "bilinear":
+                return drawScaled(img, targetWidth(img, thumbHeight), thumbHeight,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            case "bicubic":
+                return drawScaled(img, targetWidth(img, thumbHeight), thumbHeight,
+                        RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            case "progressive_bilinear":
+                return progressiveBilinear(img, thumbHeight);
+            case "affine_bilinear":
+                return affineBilinear(img, thumbHeight);
+            default:
+                throw new IllegalArgumentException("Unknown resampler " + name);
+        }
+    }
+
+    private static int targetWidth(BufferedImage img, int thumbHeight) {
+        return Math.max(1, (int) (img.getWidth() * (thumbHeight / (double) img.getHeight())));
+    }
+
+    /**
+     * Single Graphics2D draw with the given interpolation. Fast, but aliases badly for large reduction factors
+     */
+    private static BufferedImage drawScaled(BufferedImage img, int width, int height, Object interpolation) {
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+        g.drawImage(img, 0, 0, width, height, null);
+        g.dispose();
+        return out;
+    }
+
+    /**
+     * Halves the image with bilinear draws until it is within 2x of the target, then does one last bilinear draw.
+     * Close to area-averaging quality at a fraction of the cost
+     */
+    private static BufferedImage progressiveBilinear(BufferedImage img, int thumbHeight) {
+        int targetWidth = targetWidth(img, thumbHeight);
+        BufferedImage current = img;
+        int w = img.getWidth();
+        int h = img.getHeight();
+        while (w / 2 >= targetWidth && h / 2 >= thumbHeight) {
+            w /= 2;
+            h /= 2;
+            current = drawScaled(current, w, h, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        return drawScaled(current, targetWidth, thumbHeight, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    }
+
+    /**
+     * {@link AffineTransformOp} with bilinear interpolation
+     */
+    private static BufferedImage affineBilinear(BufferedImage img, int thumbHeight) {
+        double scale = thumbHeight / (double) img.getHeight();
+        AffineTransformOp op = new AffineTransformOp(AffineTransform.getScaleInstance(scale, scale),
+                AffineTransformOp.TYPE_BILINEAR);
+        BufferedImage out = new BufferedImage(targetWidth(img, thumbHeight), thumbHeight, BufferedImage.TYPE_INT_RGB);
+        return op.filter(img, out);
+    }
+}
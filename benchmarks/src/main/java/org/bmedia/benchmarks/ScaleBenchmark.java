@@ -0,0 +1,47 @@
+package org.bmedia.benchmarks;
+
+import org.bmedia.ImageCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the API's current getScaledInstance scaling with alternative resamplers (see {@link Resamplers})
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class ScaleBenchmark {
+
+    @Param({"synthetic_640x480.jpg", "synthetic_1920x1080.jpg", "synthetic_4000x3000.jpg",
+            "synthetic_640x480.png", "synthetic_1920x1080.png", "synthetic_4000x3000.png",
+            "synthetic_640x480.gif", "synthetic_1920x1080.gif"})
+    public String image;
+
+    @Param({"200", "400", "800"})
+    public int thumbHeight;
+
+    @Param({"get_scaled_instance", "bilinear", "bicubic", "progressive_bilinear", "affine_bilinear"})
+    public String resampler;
+
+    private BufferedImage decoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path path = Corpus.extract(image);
+        decoded = ImageCodec.decode(Files.readAllBytes(path), 0);
+        Files.delete(path);
+    }
+
+    @Benchmark
+    public BufferedImage scale() {
+        return Resamplers.scale(resampler, decoded, thumbHeight);
+    }
+}
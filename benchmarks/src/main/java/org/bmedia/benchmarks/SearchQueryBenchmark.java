@@ -0,0 +1,72 @@
+package org.bmedia.benchmarks;
+
+import org.bmedia.SearchQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the search SQL ({@link SearchQuery}): tag escaping, splitting off excluded tags and string building, for
+ * realistic tag counts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchQueryBenchmark {
+
+    @Param({"0", "1", "5", "20"})
+    public int includeTags;
+
+    @Param({"0", "2"})
+    public int excludeTags;
+
+    @Param({"false", "true"})
+    public boolean filtered;
+
+    private String[] tags;
+    private Optional<Integer> minWidth;
+    private Optional<Integer> minHeight;
+    private Optional<Double> aspectRatio;
+    private Optional<String> sortBy;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // the plan depends on the table's search engine setting; the tag index isn't loaded, so tags have no counts
+        BenchmarkSettings.init();
+        tags = new String[includeTags + excludeTags];
+        for (int i = 0; i < includeTags; i++) {
+            // some tags need quote escaping, like real ones do
+            tags[i] = (i % 4 == 0) ? "artist's_tag_" + i : "tag_" + i;
+        }
+        for (int i = 0; i < excludeTags; i++) {
+            tags[includeTags + i] = "-excluded_tag_" + i;
+        }
+        minWidth = filtered ? Optional.of(1920) : Optional.empty();
+        minHeight = filtered ? Optional.of(1080) : Optional.empty();
+        aspectRatio = filtered ? Optional.of(1.77) : Optional.empty();
+        sortBy = filtered ? Optional.of("file_size") : Optional.empty();
+    }
+
+    /**
+     * Search page query, as built by /search_images/by_tag/page
+     */
+    @Benchmark
+    public String pageQuery() {
+        return new SearchQuery("images", "bmedia", tags, false, minWidth, minHeight, aspectRatio, false, sortBy)
+                .toSql(3, 50) + ";";
+    }
+
+    /**
+     * Count query, as built by /search_images/by_tag/page/count
+     */
+    @Benchmark
+    public String countQuery() {
+        return "SELECT COUNT(*) AS itemCount FROM (" + new SearchQuery("images", "bmedia", tags, false, minWidth,
+                minHeight, aspectRatio, false, sortBy).toSql(-1, 50) + ") AS sq;";
+    }
+}
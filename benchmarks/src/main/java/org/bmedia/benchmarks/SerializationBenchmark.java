@@ -0,0 +1,48 @@
+package org.bmedia.benchmarks;
+
+import org.bmedia.ImageRow;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a page of search results to JSON the way /search_images/by_tag/page does (without thumbnails)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"10", "50", "100", "500"})
+    public int pageSize;
+
+    private ImageRow[] rows;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        rows = new ImageRow[pageSize];
+        for (int i = 0; i < pageSize; i++) {
+            rows[i] = new ImageRow(1_000_000L + i, String.format("%016x%016x", random.nextLong(), random.nextLong()),
+                    "some_image_file_name_" + i + ".jpg", 400 + random.nextInt(4000), 400 + random.nextInt(4000),
+                    50_000 + random.nextInt(5_000_000));
+        }
+    }
+
+    @Benchmark
+    public String serializePage() {
+        String jsonOut = "[";
+        ArrayList<String> jsonEntries = new ArrayList<>();
+        for (ImageRow row : rows) {
+            jsonEntries.add(row.toJson(null));
+        }
+        jsonOut += String.join(",", jsonEntries);
+        jsonOut += "]";
+        return jsonOut;
+    }
+}
@@ -0,0 +1,63 @@
+package org.bmedia.benchmarks;
+
+import org.bmedia.ImageCodec;
+import org.bmedia.ImageUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JPEG encoding of thumbnails and the API's full thumbnail pipeline (file read, decode, scale, encode), with the
+ * default JPEG settings
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class ThumbnailBenchmark {
+
+    @Param({"synthetic_640x480.jpg", "synthetic_1920x1080.jpg", "synthetic_4000x3000.jpg",
+            "synthetic_640x480.png", "synthetic_1920x1080.png", "synthetic_4000x3000.png",
+            "synthetic_640x480.gif", "synthetic_1920x1080.gif"})
+    public String image;
+
+    @Param({"200", "400", "800"})
+    public int thumbHeight;
+
+    private Path imagePath;
+    private BufferedImage scaled;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkSettings.init();
+        imagePath = Corpus.extract(image);
+        scaled = ImageUtils.scaleToHeight(ImageUtils.readImage(imagePath.toString()), thumbHeight);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(imagePath);
+    }
+
+    /**
+     * JPEG encode of an already scaled thumbnail, as done by the API
+     */
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return ImageUtils.encode(scaled, "jpg", ImageCodec.THUMBNAIL);
+    }
+
+    /**
+     * {@link ImageUtils#createThumbnail(String, int)}, end to end
+     */
+    @Benchmark
+    public byte[] pipeline() throws IOException {
+        return ImageUtils.createThumbnail(imagePath.toString(), thumbHeight);
+    }
+}
@@ -0,0 +1,55 @@
+#!/usr/bin/env bash
+# Manages a throwaway local Postgres instance for load tests. Needs the Postgres server binaries (initdb, pg_ctl) on
+# the PATH, or PG_BIN pointing at them.
+#
+# Usage: local-postgres.sh start|stop|reset
+set -euo pipefail
+
+DIR="$(cd "$(dirname "$0")/.." && pwd)"
+PG_BIN="${PG_BIN:-}"
+PGDATA="${PGDATA:-$DIR/.pgdata}"
+PGPORT="${PGPORT:-54329}"
+DB_NAME="${DB_NAME:-bmedia}"
+ADMIN_USER="${ADMIN_USER:-bmedia_admin}"
+QUERY_USER="${QUERY_USER:-bmedia_query}"
+
+bin() {
+    if [ -n "$PG_BIN" ]; then echo "$PG_BIN/$1"; else echo "$1"; fi
+}
+
+start() {
+    if [ ! -d "$PGDATA" ]; then
+        "$(bin initdb)" -D "$PGDATA" -U postgres --auth=trust >/dev/null
+        cat >> "$PGDATA/postgresql.conf" <<CONF
+port = $PGPORT
+listen_addresses = 'localhost'
+shared_buffers = 1GB
+work_mem = 64MB
+maintenance_work_mem = 512MB
+max_wal_size = 8GB
+fsync = off
+synchronous_commit = off
+full_page_writes = off
+CONF
+        "$(bin pg_ctl)" -D "$PGDATA" -l "$PGDATA/server.log" -w start
+        "$(bin psql)" -h localhost -p "$PGPORT" -U postgres -v ON_ERROR_STOP=1 <<SQL
+CREATE ROLE $ADMIN_USER LOGIN PASSWORD '$ADMIN_USER';
+CREATE ROLE $QUERY_USER LOGIN PASSWORD '$QUERY_USER';
+CREATE DATABASE $DB_NAME OWNER $ADMIN_USER;
+SQL
+    else
+        "$(bin pg_ctl)" -D "$PGDATA" -l "$PGDATA/server.log" -w start
+    fi
+    echo "Postgres running on localhost:$PGPORT (data in $PGDATA)"
+}
+
+stop() {
+    "$(bin pg_ctl)" -D "$PGDATA" -w stop || true
+}
+
+case "${1:-}" in
+    start) start ;;
+    stop) stop ;;
+    reset) stop; rm -rf "$PGDATA"; start ;;
+    *) echo "Usage: $0 start|stop|reset" >&2; exit 1 ;;
+esac
@@ -0,0 +1,28 @@
+#!/usr/bin/env bash
+# Runs the API against the local load test database and media share. Build the API first (mvn package in the repo
+# root) and generate a dataset with DatasetGenerator.
+set -euo pipefail
+
+DIR="$(cd "$(dirname "$0")/.." && pwd)"
+ROOT="$(cd "$DIR/.." && pwd)"
+VERSION="${VERSION:-$(grep version "$ROOT/version" | cut -d' ' -f2)}"
+PGPORT="${PGPORT:-54329}"
+export MEDIA_SHARE="${MEDIA_SHARE:-$DIR/.media}"
+
+CONFIG="$DIR/.db_config.json"
+cat > "$CONFIG" <<JSON
+{
+  "database_host_name": "localhost",
+  "database_host_port": "$PGPORT",
+  "database_name": "bmedia",
+  "database_schema": "bmedia",
+  "admin_username": "bmedia_admin",
+  "admin_password": "bmedia_admin",
+  "query_username": "bmedia_query",
+  "query_password": "bmedia_query"
+}
+JSON
+
+# the keystore is looked up relative to the working directory
+cd "$ROOT"
+exec java ${JAVA_OPTS:-} -jar "$ROOT/target/bmedia_api-$VERSION-jar-with-dependencies.jar" "$CONFIG" "$@"
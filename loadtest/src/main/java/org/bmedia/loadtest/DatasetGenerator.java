@@ -0,0 +1,216 @@
+package org.bmedia.loadtest;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates a synthetic dataset in the schema the API expects: media tables, [table]_tags_join tables and a tags table
+ * with NSFW flags. Tags are assigned to images with a Zipfian distribution. Also writes a tree of small JPEGs under the
+ * media share that the generated rows point at.
+ * <p>
+ * Usage: DatasetGenerator key=value ... (see {@link #main(String[])} for keys and defaults)
+ */
+public class DatasetGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        String jdbcUrl = options.get("jdbc_url", "jdbc:postgresql://localhost:54329/bmedia");
+        String user = options.get("user", "bmedia_admin");
+        String password = options.get("password", "bmedia_admin");
+        String queryUser = options.get("query_user", "bmedia_query");
+        String schema = options.get("schema", "bmedia");
+        String[] tables = options.get("tables", "images,art").split(",");
+        long rows = Long.parseLong(options.get("rows", "1000000"));
+        int numTags = Integer.parseInt(options.get("tags", "20000"));
+        double zipfExponent = Double.parseDouble(options.get("zipf_exponent", "1.05"));
+        int tagsPerImage = Integer.parseInt(options.get("tags_per_image", "8"));
+        double nsfwFraction = Double.parseDouble(options.get("nsfw_fraction", "0.05"));
+        String mediaShare = options.get("media_share", "loadtest/.media");
+        int imageFiles = Integer.parseInt(options.get("image_files", "2000"));
+        long seed = Long.parseLong(options.get("seed", "42"));
+
+        List<String> filePaths = writeImageTree(new File(mediaShare), imageFiles, seed);
+
+        try (Connection conn = DriverManager.getConnection(jdbcUrl, user, password)) {
+            createSchema(conn, schema, tables);
+            writeTags(conn, schema, numTags, nsfwFraction, seed);
+            for (String table : tables) {
+                writeTable(conn, schema, table.trim(), rows, numTags, zipfExponent, tagsPerImage, filePaths, seed);
+            }
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("GRANT USAGE ON SCHEMA " + schema + " TO " + queryUser + ";");
+                statement.execute("GRANT SELECT ON ALL TABLES IN SCHEMA " + schema + " TO " + queryUser + ";");
+                statement.execute("ANALYZE;");
+            }
+        }
+        System.out.println("Done");
+    }
+
+    private static void createSchema(Connection conn, String schema, String[] tables) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("CREATE SCHEMA IF NOT EXISTS " + schema + ";");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + schema + ".tags (" +
+                    "tag_name TEXT PRIMARY KEY, nsfw BOOLEAN NOT NULL DEFAULT FALSE);");
+            for (String table : tables) {
+                String tbNameFull = schema + "." + table.trim();
+                statement.execute("CREATE TABLE IF NOT EXISTS " + tbNameFull + " (" +
+                        "id BIGSERIAL PRIMARY KEY, md5 TEXT NOT NULL UNIQUE, filename TEXT NOT NULL, file_path TEXT, " +
+                        "resolution_width INTEGER NOT NULL, resolution_height INTEGER NOT NULL, " +
+                        "file_size_bytes INTEGER NOT NULL);");
+                statement.execute("CREATE TABLE IF NOT EXISTS " + tbNameFull + "_tags_join (" +
+                        "id BIGINT NOT NULL REFERENCES " + tbNameFull + " (id), " +
+                        "tag_name TEXT NOT NULL REFERENCES " + schema + ".tags (tag_name), " +
+                        "PRIMARY KEY (id, tag_name));");
+            }
+        }
+    }
+
+    private static void writeTags(Connection conn, String schema, int numTags, double nsfwFraction, long seed)
+            throws Exception {
+        Random random = new Random(seed);
+        copy(conn, "COPY " + schema + ".tags (tag_name, nsfw) FROM STDIN", writer -> {
+            for (int i = 0; i < numTags; i++) {
+                writer.write(tagName(i) + "\t" + (random.nextDouble() < nsfwFraction ? "t" : "f") + "\n");
+            }
+        });
+        System.out.println("Wrote " + numTags + " tags");
+    }
+
+    private static void writeTable(Connection conn, String schema, String table, long rows, int numTags,
+                                   double zipfExponent, int tagsPerImage, List<String> filePaths, long seed)
+            throws Exception {
+        String tbNameFull = schema + "." + table;
+        Random random = new Random(seed ^ table.hashCode());
+        long firstId;
+        try (Statement statement = conn.createStatement()) {
+            var result = statement.executeQuery("SELECT COALESCE(MAX(id), 0) + 1 FROM " + tbNameFull + ";");
+            result.next();
+            firstId = result.getLong(1);
+        }
+
+        long start = firstId;
+        copy(conn, "COPY " + tbNameFull + " (id, md5, filename, file_path, resolution_width, resolution_height, " +
+                "file_size_bytes) FROM STDIN", writer -> {
+            for (long id = start; id < start + rows; id++) {
+                String filePath = filePaths.get((int) (id % filePaths.size()));
+                int width = 400 + random.nextInt(3600);
+                int height = 400 + random.nextInt(3600);
+                writer.write(id + "\t" + String.format("%016x%016x", random.nextLong(), id) + "\t" + filePath.substring(filePath.lastIndexOf('/') + 1) + "\t" +
+                        filePath + "\t" + width + "\t" + height + "\t" + (50000 + random.nextInt(5000000)) + "\n");
+            }
+        });
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("SELECT setval(pg_get_serial_sequence('" + tbNameFull + "', 'id'), " +
+                    (start + rows - 1) + ");");
+        }
+        System.out.println("Wrote " + rows + " rows to " + tbNameFull);
+
+        ZipfSampler sampler = new ZipfSampler(numTags, zipfExponent);
+        copy(conn, "COPY " + tbNameFull + "_tags_join (id, tag_name) FROM STDIN", writer -> {
+            HashSet<Integer> imageTags = new HashSet<>();
+            for (long id = start; id < start + rows; id++) {
+                imageTags.clear();
+                // 1 to 2x tagsPerImage tags per image, so every image is reachable by a search
+                int count = 1 + random.nextInt(tagsPerImage * 2);
+                for (int i = 0; i < count; i++) {
+                    imageTags.add(sampler.sample(random));
+                }
+                for (int tag : imageTags) {
+                    writer.write(id + "\t" + tagName(tag) + "\n");
+                }
+            }
+        });
+        System.out.println("Wrote tags for " + tbNameFull);
+    }
+
+    /**
+     * Writes a tree of small synthetic JPEGs, 100 per directory, and returns their paths relative to the share
+     */
+    private static List<String> writeImageTree(File mediaShare, int imageFiles, long seed) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ArrayList<String> paths = new ArrayList<>();
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < imageFiles; i++) {
+            String relPath = String.format("gen/%03d/img_%06d.jpg", i / 100, i);
+            paths.add(relPath);
+            File file = new File(mediaShare, relPath);
+            if (file.exists()) {
+                continue;
+            }
+            int index = i;
+            futures.add(pool.submit(() -> {
+                writeImage(file, new Random(seed + index));
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        System.out.println("Image tree ready under " + mediaShare.getAbsolutePath());
+        return paths;
+    }
+
+    private static void writeImage(File file, Random random) throws IOException {
+        int width = 800 + random.nextInt(2400);
+        int height = 600 + random.nextInt(1800);
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), width, height, new Color(random.nextInt())));
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 10; i++) {
+            g.setColor(new Color(random.nextInt()));
+            g.fillOval(random.nextInt(width), random.nextInt(height), width / 8, width / 8);
+        }
+        g.dispose();
+        file.getParentFile().mkdirs();
+        ImageIO.write(img, "jpg", file);
+    }
+
+    static String tagName(int rank) {
+        return "tag_" + rank;
+    }
+
+    /**
+     * Streams rows into a COPY ... FROM STDIN without building them all in memory
+     */
+    private static void copy(Connection conn, String sql, RowWriter rowWriter) throws Exception {
+        CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+        PipedWriter pipeOut = new PipedWriter();
+        PipedReader pipeIn = new PipedReader(pipeOut, 1 << 20);
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        Future<?> produced = producer.submit(() -> {
+            try (Writer writer = pipeOut) {
+                rowWriter.write(writer);
+            }
+            return null;
+        });
+        copyManager.copyIn(sql, pipeIn);
+        produced.get();
+        producer.shutdown();
+    }
+
+    private interface RowWriter {
+        void write(Writer writer) throws Exception;
+    }
+}
@@ -0,0 +1,270 @@
+package org.bmedia.loadtest;
+
+import org.HdrHistogram.Histogram;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Closed-loop load generator for the API. A workload file (see loadtest/workloads) sets the operation mix, concurrency
+ * and duration; the runner reports throughput, errors and p50/p99/p99.9 latency per operation.
+ * <p>
+ * Usage: LoadRunner [workload file] [key=value overrides ...]
+ */
+public class LoadRunner {
+
+    private static final String[] OPERATIONS = {"search", "count", "thumbnail", "tag"};
+
+    public static void main(String[] args) throws Exception {
+        Properties workload = new Properties();
+        if (args.length > 0 && !args[0].contains("=")) {
+            try (InputStream in = new FileInputStream(args[0])) {
+                workload.load(in);
+            }
+        }
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx > 0) {
+                workload.setProperty(arg.substring(0, idx), arg.substring(idx + 1));
+            }
+        }
+        new LoadRunner(workload).run();
+    }
+
+    private final String baseUrl;
+    private final String[] tables;
+    private final int concurrency;
+    private final long warmupMillis;
+    private final long durationMillis;
+    private final int[] mixWeights = new int[OPERATIONS.length];
+    private final int mixTotal;
+    private final ZipfSampler tagSampler;
+    private final int maxSearchTags;
+    private final double excludeProbability;
+    private final double includeNsfwProbability;
+    private final int resultsPerPage;
+    private final int maxPage;
+    private final int thumbHeight;
+    private final long maxId;
+    private final HttpClient client;
+
+    private LoadRunner(Properties workload) throws Exception {
+        baseUrl = workload.getProperty("base_url", "https://localhost:38001");
+        tables = workload.getProperty("tables", "images,art").split(",");
+        concurrency = Integer.parseInt(workload.getProperty("concurrency", "16"));
+        warmupMillis = Long.parseLong(workload.getProperty("warmup_seconds", "10")) * 1000;
+        durationMillis = Long.parseLong(workload.getProperty("duration_seconds", "60")) * 1000;
+        int total = 0;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            mixWeights[i] = Integer.parseInt(workload.getProperty("mix." + OPERATIONS[i], "0"));
+            total += mixWeights[i];
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Workload has no operations. Set at least one mix.* weight");
+        }
+        mixTotal = total;
+        tagSampler = new ZipfSampler(Integer.parseInt(workload.getProperty("tags", "20000")),
+                Double.parseDouble(workload.getProperty("zipf_exponent", "1.05")));
+        maxSearchTags = Integer.parseInt(workload.getProperty("max_search_tags", "3"));
+        excludeProbability = Double.parseDouble(workload.getProperty("exclude_probability", "0.2"));
+        includeNsfwProbability = Double.parseDouble(workload.getProperty("include_nsfw_probability", "0.1"));
+        resultsPerPage = Integer.parseInt(workload.getProperty("results_per_page", "50"));
+        maxPage = Integer.parseInt(workload.getProperty("max_page", "5"));
+        thumbHeight = Integer.parseInt(workload.getProperty("thumb_height", "400"));
+        maxId = Long.parseLong(workload.getProperty("max_id", "1000000"));
+
+        // the keystore's certificate isn't issued for localhost
+        System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+        client = HttpClient.newBuilder()
+                .sslContext(trustAllContext())
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Warming up for " + warmupMillis / 1000 + "s with " + concurrency + " workers");
+        runPhase(warmupMillis);
+        System.out.println("Measuring for " + durationMillis / 1000 + "s");
+        List<Worker> workers = runPhase(durationMillis);
+
+        Map<String, Histogram> latencies = new LinkedHashMap<>();
+        Map<String, Long> errors = new LinkedHashMap<>();
+        for (String op : OPERATIONS) {
+            latencies.put(op, new Histogram(3));
+            errors.put(op, 0L);
+        }
+        for (Worker worker : workers) {
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                latencies.get(OPERATIONS[i]).add(worker.latencies[i]);
+                errors.merge(OPERATIONS[i], worker.errors[i], Long::sum);
+            }
+        }
+
+        double seconds = durationMillis / 1000.0;
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        Histogram all = new Histogram(3);
+        long allErrors = 0;
+        for (String op : OPERATIONS) {
+            Histogram histogram = latencies.get(op);
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            all.add(histogram);
+            allErrors += errors.get(op);
+            printRow(op, histogram, errors.get(op), seconds);
+        }
+        printRow("all", all, allErrors, seconds);
+    }
+
+    private static void printRow(String name, Histogram histogram, long errors, double seconds) {
+        System.out.printf("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getTotalCount(), errors,
+                histogram.getTotalCount() / seconds, histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    private List<Worker> runPhase(long millis) throws InterruptedException {
+        long endMillis = System.currentTimeMillis() + millis;
+        ArrayList<Worker> workers = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Worker worker = new Worker(endMillis);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "loadtest-worker-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return workers;
+    }
+
+    /**
+     * Picks an operation from the mix and builds its request URL
+     */
+    private String nextRequest(int op, Random random) {
+        String table = tables[random.nextInt(tables.length)].trim();
+        switch (OPERATIONS[op]) {
+            case "search":
+                return baseUrl + "/search_images/by_tag/page?table_name=" + table + "&tags=" + randomTags(random) +
+                        "&page_num=" + random.nextInt(maxPage) + "&results_per_page=" + resultsPerPage +
+                        "&include_nsfw=" + (random.nextDouble() < includeNsfwProbability);
+            case "count":
+                return baseUrl + "/search_images/by_tag/page/count?table_name=" + table + "&tags=" + randomTags(random) +
+                        "&results_per_page=" + resultsPerPage +
+                        "&include_nsfw=" + (random.nextDouble() < includeNsfwProbability);
+            case "thumbnail":
+                return baseUrl + "/images/get_thumbnail?table_name=" + table + "&id=" + (1 + (long) (random.nextDouble() * maxId)) +
+                        "&thumb_height=" + thumbHeight;
+            case "tag":
+                return baseUrl + "/images/add_tag?table_name=" + table + "&id=" + (1 + (long) (random.nextDouble() * maxId)) +
+                        "&tag_name=" + DatasetGenerator.tagName(tagSampler.sample(random)) + "&nsfw=false";
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Zipf-distributed include tags (popular tags are searched most), sometimes with an excluded tag
+     */
+    private String randomTags(Random random) {
+        ArrayList<String> tags = new ArrayList<>();
+        int count = random.nextInt(maxSearchTags + 1);
+        for (int i = 0; i < count; i++) {
+            tags.add(DatasetGenerator.tagName(tagSampler.sample(random)));
+        }
+        if (random.nextDouble() < excludeProbability) {
+            tags.add("-" + DatasetGenerator.tagName(tagSampler.sample(random)));
+        }
+        return URLEncoder.encode(String.join(",", tags), StandardCharsets.UTF_8);
+    }
+
+    private int pickOperation(Random random) {
+        int pick = random.nextInt(mixTotal);
+        for (int i = 0; i < mixWeights.length; i++) {
+            pick -= mixWeights[i];
+            if (pick < 0) {
+                return i;
+            }
+        }
+        return mixWeights.length - 1;
+    }
+
+    private class Worker implements Runnable {
+        private final long endMillis;
+        private final Histogram[] latencies = new Histogram[OPERATIONS.length];
+        private final long[] errors = new long[OPERATIONS.length];
+
+        private Worker(long endMillis) {
+            this.endMillis = endMillis;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                latencies[i] = new Histogram(3);
+            }
+        }
+
+        @Override
+        public void run() {
+            Random random = ThreadLocalRandom.current();
+            while (System.currentTimeMillis() < endMillis) {
+                int op = pickOperation(random);
+                HttpRequest request = HttpRequest.newBuilder(URI.create(nextRequest(op, random)))
+                        .timeout(Duration.ofSeconds(60)).build();
+                long start = System.nanoTime();
+                try {
+                    HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                    // 404/410 are expected for random ids and missing files, they are still served responses
+                    if (response.statusCode() >= 500) {
+                        errors[op]++;
+                    }
+                } catch (IOException e) {
+                    errors[op]++;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                latencies[op].recordValue((System.nanoTime() - start) / 1000);
+            }
+        }
+    }
+
+    /**
+     * The API uses a self-signed certificate, which is fine to trust blindly for a local load test
+     */
+    private static SSLContext trustAllContext() throws Exception {
+        TrustManager[] trustAll = {new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }};
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustAll, new SecureRandom());
+        return context;
+    }
+}
@@ -0,0 +1,25 @@
+package org.bmedia.loadtest;
+
+import java.util.HashMap;
+
+/**
+ * key=value command line options
+ */
+public class Options {
+
+    private final HashMap<String, String> values = new HashMap<>();
+
+    public Options(String[] args) {
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got \"" + arg + "\"");
+            }
+            values.put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+    }
+
+    public String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+}
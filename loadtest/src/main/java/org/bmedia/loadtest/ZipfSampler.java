@@ -0,0 +1,38 @@
+package org.bmedia.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples ranks 0..n-1 from a Zipf distribution, so that a few tags are on a large share of images and most tags are
+ * rare, like in a real library
+ */
+public class ZipfSampler {
+
+    private final double[] cdf;
+
+    /**
+     * @param n        Number of ranks
+     * @param exponent Zipf exponent. ~1.0 is typical for tag usage
+     */
+    public ZipfSampler(int n, double exponent) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    /**
+     * @param random Random source
+     * @return Rank, where 0 is the most common
+     */
+    public int sample(Random random) {
+        int idx = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(cdf.length - 1, (idx >= 0) ? idx : -idx - 1);
+    }
+}
@@ -0,0 +1,149 @@
+package org.bmedia;
+
+/**
+ * Concurrency limit that adapts to observed latency, with a small bounded queue in front of it.
+ * <p>
+ * The limit grows by about one per limit's worth of completed requests while the limit is actually in use (additive
+ * increase), and is cut by {@link #BACKOFF} when requests start taking much longer than usual or fail with a server
+ * error (multiplicative decrease). "Much longer than usual" compares a short-term average of latency (the last few
+ * requests) to a long-term one (the last minute or so): when the short-term one is more than {@link #TOLERANCE} times
+ * the long-term one, requests are queueing somewhere (CPU, disk, DB pool) and admitting more would only make every
+ * request slower.
+ * <p>
+ * Requests over the limit wait in a queue of at most maxQueue requests for at most the queue timeout, and are rejected
+ * otherwise, so the caller can fail fast instead of piling up threads
+ */
+public class AdaptiveLimiter {
+
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.9;
+    // don't cut the limit again before the previous cut had a chance to take effect
+    private static final long DECREASE_INTERVAL_NANOS = 100_000_000L;
+    private static final double SHORT_ALPHA = 0.1;
+    // the long-term average is weighted by time, not by requests, so a burst of slow requests can't drag it along
+    private static final double LONG_WINDOW_NANOS = 60_000_000_000.0;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+
+    private double limit;
+    private int inFlight = 0;
+    private int waiting = 0;
+    private double shortLatencyNanos = 0;
+    private double longLatencyNanos = 0;
+    private long lastDecreaseNanos = 0;
+    private long lastSampleNanos = 0;
+
+    /**
+     * Main constructor
+     *
+     * @param initialLimit   Starting concurrency limit
+     * @param minLimit       The limit never goes below this
+     * @param maxLimit       The limit never goes above this
+     * @param maxQueue       Max number of requests waiting for a slot
+     * @param queueTimeoutMs Max time (milliseconds) a request waits for a slot
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueue, long queueTimeoutMs) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeoutNanos = queueTimeoutMs * 1_000_000L;
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    /**
+     * Takes a slot, waiting in the queue if the limit is reached. Every successful call must be followed by
+     * {@link #release(long, boolean, boolean)}
+     *
+     * @return True if a slot was taken, false if the queue is full or the wait timed out
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+        if (waiting >= maxQueue) {
+            return false;
+        }
+        waiting++;
+        try {
+            long deadline = System.nanoTime() + queueTimeoutNanos;
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+            }
+            inFlight++;
+            return true;
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Gives back a slot and adjusts the limit
+     *
+     * @param latencyNanos How long the request took
+     * @param failed       True if the request failed with a server error
+     * @param sample       False if the request's latency says nothing about load (e.g. long downloads); it then
+     *                     doesn't change the limit
+     */
+    public synchronized void release(long latencyNanos, boolean failed, boolean sample) {
+        inFlight--;
+        if (sample) {
+            long now = System.nanoTime();
+            if (longLatencyNanos == 0) {
+                shortLatencyNanos = latencyNanos;
+                longLatencyNanos = latencyNanos;
+            } else {
+                shortLatencyNanos += SHORT_ALPHA * (latencyNanos - shortLatencyNanos);
+                double longAlpha = 1 - Math.exp(-(now - lastSampleNanos) / LONG_WINDOW_NANOS);
+                longLatencyNanos += longAlpha * (latencyNanos - longLatencyNanos);
+            }
+            lastSampleNanos = now;
+            if (failed || shortLatencyNanos > longLatencyNanos * TOLERANCE) {
+                if (now - lastDecreaseNanos >= DECREASE_INTERVAL_NANOS) {
+                    limit = Math.max(minLimit, limit * BACKOFF);
+                    lastDecreaseNanos = now;
+                }
+            } else if (inFlight + 1 >= limit / 2) {
+                // only grow while the limit is in use; an idle limit says nothing about capacity
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+        if (waiting > 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * @return Short-term average latency (milliseconds)
+     */
+    public synchronized double getShortLatencyMs() {
+        return shortLatencyNanos / 1_000_000.0;
+    }
+
+    /**
+     * @return Long-term average latency (milliseconds)
+     */
+    public synchronized double getLongLatencyMs() {
+        return longLatencyNanos / 1_000_000.0;
+    }
+}
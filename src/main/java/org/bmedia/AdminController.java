@@ -0,0 +1,169 @@
+package org.bmedia;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * API controller for maintenance jobs
+ */
+@RestController
+@RequestMapping("/")
+@CrossOrigin(origins = "*")
+public class AdminController {
+
+    /**
+     * Starts a file share integrity scan if one is not already running
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/integrity_scan/start", produces = "application/json")
+    public ResponseEntity<String> startIntegrityScan() {
+        if (!IntegrityScanner.triggerScan()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(IntegrityScanner.getStatusJson());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(IntegrityScanner.getStatusJson());
+    }
+
+    /**
+     * Gets the progress of the running integrity scan, or the results of the last one
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/integrity_scan/status", produces = "application/json")
+    public ResponseEntity<String> getIntegrityScanStatus() {
+        return ResponseEntity.status(HttpStatus.OK).body(IntegrityScanner.getStatusJson());
+    }
+
+    /**
+     * Starts a re-link run (see {@link RelinkJob}) if one is not already running
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/relink/start", produces = "application/json")
+    public ResponseEntity<String> startRelink() {
+        if (!RelinkJob.triggerRun()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(RelinkJob.getStatusJson());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(RelinkJob.getStatusJson());
+    }
+
+    /**
+     * Gets the progress of the running re-link job, or the results of the last run
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/relink/status", produces = "application/json")
+    public ResponseEntity<String> getRelinkStatus() {
+        return ResponseEntity.status(HttpStatus.OK).body(RelinkJob.getStatusJson());
+    }
+
+    /**
+     * Runs the schema migrations (see {@link SchemaMigrations}) again, e.g. after adding a media table, if they are not
+     * already running
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/migrations/start", produces = "application/json")
+    public ResponseEntity<String> startMigrations() {
+        if (!SchemaMigrations.triggerRun()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(SchemaMigrations.getStatusJson());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(SchemaMigrations.getStatusJson());
+    }
+
+    /**
+     * Gets the schema version and verification status of every media table
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/migrations/status", produces = "application/json")
+    public ResponseEntity<String> getMigrationStatus() {
+        return ResponseEntity.status(HttpStatus.OK).body(SchemaMigrations.getStatusJson());
+    }
+
+    /**
+     * Fills in missing tag arrays (see {@link TagArrays}) now, instead of waiting for the next scheduled backfill, if a
+     * backfill is not already running
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/tag_arrays/backfill/start", produces = "application/json")
+    public ResponseEntity<String> startTagArrayBackfill() {
+        if (!TagArrays.triggerBackfill()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(TagArrays.getStatusJson());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(TagArrays.getStatusJson());
+    }
+
+    /**
+     * Gets the progress of the running tag array backfill, or the results of the last one
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/tag_arrays/backfill/status", produces = "application/json")
+    public ResponseEntity<String> getTagArrayBackfillStatus() {
+        return ResponseEntity.status(HttpStatus.OK).body(TagArrays.getStatusJson());
+    }
+
+    /**
+     * Computes missing perceptual hashes (see {@link PerceptualIndex}) and reloads the similarity search index now,
+     * instead of waiting for the next scheduled backfill, if a backfill is not already running
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/perceptual_hashes/backfill/start", produces = "application/json")
+    public ResponseEntity<String> startPerceptualHashBackfill() {
+        if (!PerceptualIndex.triggerBackfill()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(PerceptualIndex.getStatusJson());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(PerceptualIndex.getStatusJson());
+    }
+
+    /**
+     * Gets the progress of the running perceptual hash backfill, or the results of the last one
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/perceptual_hashes/backfill/status", produces = "application/json")
+    public ResponseEntity<String> getPerceptualHashBackfillStatus() {
+        return ResponseEntity.status(HttpStatus.OK).body(PerceptualIndex.getStatusJson());
+    }
+
+    /**
+     * Computes missing placeholders (see {@link Placeholders}) now, instead of waiting for the next scheduled backfill,
+     * if a backfill is not already running
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/placeholders/backfill/start", produces = "application/json")
+    public ResponseEntity<String> startPlaceholderBackfill() {
+        if (!Placeholders.triggerBackfill()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Placeholders.getStatusJson());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(Placeholders.getStatusJson());
+    }
+
+    /**
+     * Gets the progress of the running placeholder backfill, or the results of the last one
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/placeholders/backfill/status", produces = "application/json")
+    public ResponseEntity<String> getPlaceholderBackfillStatus() {
+        return ResponseEntity.status(HttpStatus.OK).body(Placeholders.getStatusJson());
+    }
+
+    /**
+     * Gets the current concurrency limits and load of each admission control endpoint class (see
+     * {@link AdmissionControl})
+     *
+     * @return
+     */
+    @RequestMapping(value = "/admin/admission/status", produces = "application/json")
+    public ResponseEntity<String> getAdmissionStatus() {
+        return ResponseEntity.status(HttpStatus.OK).body(AdmissionControl.getStatusJson());
+    }
+}
@@ -0,0 +1,219 @@
+package org.bmedia;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for API requests (see {@link AdmissionFilter}). Endpoints are grouped into classes that each have
+ * their own {@link AdaptiveLimiter}, so e.g. a burst of full-resolution downloads can only use up the full image
+ * slots, not the slots of the cheap search and tag endpoints. Searches that include thumbnails (include_thumb=true)
+ * decode images and count as thumbnail requests. ZIP exports can run for hours, so they get a small fixed limit of
+ * their own instead of taking full image slots, and their latency never adjusts a limit.
+ * <p>
+ * All classes still share the web server's worker threads, so lower priority classes are also shed once the workers
+ * held by limited requests (running or queued) pass the class's share of {@link ApiSettings#getAdmissionWorkerThreads()}.
+ * Search and mutation requests can use every worker; thumbnails only {@link #THUMBNAIL_WORKER_SHARE}, full images
+ * only {@link #FULL_IMAGE_WORKER_SHARE} and exports only {@link #EXPORT_WORKER_SHARE} of them.
+ * <p>
+ * Every setting of a class can be overridden in the config, e.g.
+ * {@code "admission_limits": {"full_image": {"max_limit": 4, "max_queue": 0}}}
+ */
+public class AdmissionControl {
+
+    public static final String SEARCH = "search";
+    public static final String THUMBNAIL = "thumbnail";
+    public static final String FULL_IMAGE = "full_image";
+    public static final String MUTATION = "mutation";
+    public static final String EXPORT = "export";
+
+    private static final double THUMBNAIL_WORKER_SHARE = 0.75;
+    private static final double FULL_IMAGE_WORKER_SHARE = 0.5;
+    private static final double EXPORT_WORKER_SHARE = 0.25;
+
+    private static Map<String, EndpointClass> classes = null;
+    // workers held by limited requests, running or queued
+    private static final AtomicInteger occupiedWorkers = new AtomicInteger();
+
+    /**
+     * Limiter and settings of one endpoint class
+     */
+    public static class EndpointClass {
+        private final String name;
+        private final AdaptiveLimiter limiter;
+        private final double workerShare;
+        private final long retryAfterSeconds;
+        // false if the class's latency says nothing about load (e.g. long downloads)
+        private final boolean sampled;
+        private final Metrics.Counter rejectedLimit;
+        private final Metrics.Counter rejectedPriority;
+
+        private EndpointClass(String name, int initialLimit, int minLimit, int maxLimit, int maxQueue,
+                              long queueTimeoutMs, long retryAfterSeconds, double workerShare, boolean sampled) {
+            this.name = name;
+            this.limiter = new AdaptiveLimiter(
+                    (int) ApiSettings.getAdmissionSetting(name, "initial_limit", initialLimit),
+                    (int) ApiSettings.getAdmissionSetting(name, "min_limit", minLimit),
+                    (int) ApiSettings.getAdmissionSetting(name, "max_limit", maxLimit),
+                    (int) ApiSettings.getAdmissionSetting(name, "max_queue", maxQueue),
+                    ApiSettings.getAdmissionSetting(name, "queue_timeout_ms", queueTimeoutMs));
+            this.retryAfterSeconds = ApiSettings.getAdmissionSetting(name, "retry_after_seconds", retryAfterSeconds);
+            this.workerShare = workerShare;
+            this.sampled = sampled;
+            this.rejectedLimit = Metrics.counter("bmedia_admission_rejected_total",
+                    "Requests rejected with 503 by admission control", "class", name, "reason", "limit");
+            this.rejectedPriority = Metrics.counter("bmedia_admission_rejected_total",
+                    "Requests rejected with 503 by admission control", "class", name, "reason", "priority");
+            Metrics.gauge("bmedia_admission_limit", "Current concurrency limit of an endpoint class",
+                    limiter::getLimit, "class", name);
+            Metrics.gauge("bmedia_admission_in_flight", "Requests of an endpoint class being processed",
+                    limiter::getInFlight, "class", name);
+            Metrics.gauge("bmedia_admission_queued", "Requests of an endpoint class waiting for a slot",
+                    limiter::getWaiting, "class", name);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        public boolean isSampled() {
+            return sampled;
+        }
+    }
+
+    private synchronized static Map<String, EndpointClass> getClasses() {
+        if (classes == null) {
+            LinkedHashMap<String, EndpointClass> map = new LinkedHashMap<>();
+            map.put(SEARCH, new EndpointClass(SEARCH, 32, 4, 128, 64, 500, 1, 1.0, true));
+            map.put(MUTATION, new EndpointClass(MUTATION, 16, 2, 64, 32, 1000, 1, 1.0, true));
+            map.put(THUMBNAIL, new EndpointClass(THUMBNAIL, 16, 2, 64, 32, 250, 1, THUMBNAIL_WORKER_SHARE, true));
+            map.put(FULL_IMAGE, new EndpointClass(FULL_IMAGE, 4, 1, 16, 8, 100, 5, FULL_IMAGE_WORKER_SHARE, true));
+            // fixed limit: min_limit = max_limit
+            map.put(EXPORT, new EndpointClass(EXPORT, 2, 2, 2, 0, 0, 30, EXPORT_WORKER_SHARE, false));
+            classes = map;
+        }
+        return classes;
+    }
+
+    /**
+     * Gets the class of an endpoint
+     *
+     * @param path         Request path
+     * @param includeThumb Value of the request's include_thumb parameter, or null if not set
+     * @return Endpoint class, or null if the endpoint isn't limited (admin, metrics)
+     */
+    public static EndpointClass classify(String path, String includeThumb) {
+        String name;
+        if (path.startsWith("/search_images/by_tag/export")) {
+            name = EXPORT;
+        } else if (path.startsWith("/images/get_image_full")) {
+            name = FULL_IMAGE;
+        } else if (path.startsWith("/images/get_thumbnail") ||
+                (path.startsWith("/search_images/") && isTrue(includeThumb))) {
+            name = THUMBNAIL;
+        } else if (path.startsWith("/images/add_tag") || path.startsWith("/images/delete_tag") ||
+                path.startsWith("/tags/add_tag") || path.startsWith("/tags/update_tag")) {
+            name = MUTATION;
+        } else if (path.startsWith("/search_images/") || path.startsWith("/images/") || path.startsWith("/tags/")) {
+            name = SEARCH;
+        } else {
+            return null;
+        }
+        return getClasses().get(name);
+    }
+
+    /**
+     * Parses a boolean request parameter the way Spring does for {@code Optional<Boolean>} parameters
+     */
+    private static boolean isTrue(String value) {
+        if (value == null) {
+            return false;
+        }
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "true":
+            case "on":
+            case "yes":
+            case "1":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Admits a request, waiting in its class's queue if needed. Every admitted request must be followed by
+     * {@link #release(EndpointClass, long, boolean, boolean)}
+     *
+     * @param endpointClass Class of the request's endpoint
+     * @return True if admitted, false if the request should be rejected
+     * @throws InterruptedException If interrupted while queued
+     */
+    public static boolean admit(EndpointClass endpointClass) throws InterruptedException {
+        int occupied = occupiedWorkers.incrementAndGet();
+        if (occupied > endpointClass.workerShare * ApiSettings.getAdmissionWorkerThreads()) {
+            occupiedWorkers.decrementAndGet();
+            endpointClass.rejectedPriority.inc();
+            return false;
+        }
+        boolean admitted = false;
+        try {
+            admitted = endpointClass.limiter.acquire();
+        } finally {
+            if (!admitted) {
+                occupiedWorkers.decrementAndGet();
+            }
+        }
+        if (!admitted) {
+            endpointClass.rejectedLimit.inc();
+        }
+        return admitted;
+    }
+
+    /**
+     * Releases an admitted request
+     *
+     * @param endpointClass Class of the request's endpoint
+     * @param latencyNanos  How long the request took
+     * @param failed        True if the request failed with a server error
+     * @param sample        False if the request's latency says nothing about load (e.g. long downloads)
+     */
+    public static void release(EndpointClass endpointClass, long latencyNanos, boolean failed, boolean sample) {
+        endpointClass.limiter.release(latencyNanos, failed, sample);
+        occupiedWorkers.decrementAndGet();
+    }
+
+    /**
+     * Gets the current limits and load of every endpoint class as JSON
+     *
+     * @return Status JSON
+     */
+    public static String getStatusJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"enabled\": ").append(ApiSettings.getAdmissionControlEnabled()).append(",");
+        json.append("\"occupied_workers\": ").append(occupiedWorkers.get()).append(",");
+        json.append("\"worker_threads\": ").append(ApiSettings.getAdmissionWorkerThreads()).append(",");
+        json.append("\"classes\": {");
+        boolean first = true;
+        for (EndpointClass endpointClass : getClasses().values()) {
+            AdaptiveLimiter limiter = endpointClass.limiter;
+            json.append(first ? "" : ",").append("\"").append(endpointClass.name).append("\": {")
+                    .append("\"limit\": ").append(limiter.getLimit()).append(",")
+                    .append("\"in_flight\": ").append(limiter.getInFlight()).append(",")
+                    .append("\"queued\": ").append(limiter.getWaiting()).append(",")
+                    .append("\"short_latency_ms\": ").append(String.format("%.2f", limiter.getShortLatencyMs()))
+                    .append(",")
+                    .append("\"long_latency_ms\": ").append(String.format("%.2f", limiter.getLongLatencyMs()))
+                    .append(",")
+                    .append("\"rejected_limit\": ").append(endpointClass.rejectedLimit.get()).append(",")
+                    .append("\"rejected_priority\": ").append(endpointClass.rejectedPriority.get())
+                    .append("}");
+            first = false;
+        }
+        return json.append("}}").toString();
+    }
+}
@@ -0,0 +1,61 @@
+package org.bmedia;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Applies {@link AdmissionControl} to every request: requests that can't get a slot of their endpoint class in time are
+ * answered right away with 503 and a Retry-After header, instead of queueing without bound
+ */
+@Component
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !ApiSettings.getAdmissionControlEnabled();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI();
+        AdmissionControl.EndpointClass endpointClass = AdmissionControl.classify(path,
+                request.getParameter("include_thumb"));
+        if (endpointClass == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        boolean admitted;
+        try {
+            admitted = AdmissionControl.admit(endpointClass);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if (!admitted) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setHeader("Retry-After", Long.toString(endpointClass.getRetryAfterSeconds()));
+            response.getWriter().write("Server is busy (" + endpointClass.getName() + "), retry later");
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            filterChain.doFilter(request, response);
+            // 503s are deliberate rejections (e.g. the similarity index is still loading), not signs of overload
+            int status = response.getStatus();
+            failed = status >= 500 && status != HttpStatus.SERVICE_UNAVAILABLE.value();
+        } finally {
+            AdmissionControl.release(endpointClass, System.nanoTime() - start, failed, endpointClass.isSampled());
+        }
+    }
+}
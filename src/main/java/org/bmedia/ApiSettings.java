@@ -7,12 +7,17 @@ import org.json.simple.parser.ParseException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Singleton class for storing API settings
  */
 public class ApiSettings {
 
+    public static final String SEARCH_ENGINE_JOIN = "join";
+    public static final String SEARCH_ENGINE_ARRAY = "array";
+
     // Private variables
 
     private static ApiSettings instance;
@@ -26,6 +31,38 @@ public class ApiSettings {
     private String adminPassword;
     private String queryUsername;
     private String queryPassword;
+    private long integrityScanIntervalMinutes = 1440;
+    private int integrityScanThreads = 8;
+    private boolean integrityScanCheckSize = true;
+    private long relinkIntervalMinutes = 1440;
+    private int relinkThreads = 4;
+    private String relinkHashCachePath = null;
+    private long slowRequestThresholdMs = 1000;
+    private int slowRequestBufferSize = 200;
+    private long searchCacheMaxBytes = 64L * 1024 * 1024;
+    private long searchCacheMaxAgeSeconds = 60;
+    private boolean invalidationBusEnabled = true;
+    private String invalidationChannel = "bmedia_invalidation";
+    private String readDbHostName = null;
+    private String readDbHostPort = null;
+    private int readPoolSize = 8;
+    private int writePoolSize = 4;
+    private long dbPoolTimeoutMs = 5000;
+    private long readYourWritesWindowMs = 5000;
+    private long readReplicaMaxLagMs = 1000;
+    private boolean schemaMigrationsEnabled = true;
+    private Map<String, String> searchEngines = new HashMap<>();
+    private long tagArrayBackfillIntervalMinutes = 5;
+    private int federatedSearchThreads = 4;
+    private long tagStatsReconcileMinutes = 60;
+    private long perceptualHashBackfillIntervalMinutes = 60;
+    private long placeholderBackfillIntervalMinutes = 10;
+    private long thumbnailCacheMaxBytes = 128L * 1024 * 1024;
+    private int thumbnailPrefetchThreads = 1;
+    private boolean admissionControlEnabled = true;
+    private int admissionWorkerThreads = 200;
+    private Map<String, Map<String, Long>> admissionLimits = new HashMap<>();
+    private Map<String, Map<String, String>> jpegEncoding = new HashMap<>();
 
     /**
      * Initialize the API settings. You must call this function before making any static calls to {@link ApiSettings}
@@ -63,6 +100,79 @@ public class ApiSettings {
             adminPassword = (String) jsonObj.get("admin_password");
             queryUsername = (String) jsonObj.get("query_username");
             queryPassword = (String) jsonObj.get("query_password");
+            integrityScanIntervalMinutes = getLong(jsonObj, "integrity_scan_interval_minutes", integrityScanIntervalMinutes);
+            integrityScanThreads = (int) getLong(jsonObj, "integrity_scan_threads", integrityScanThreads);
+            integrityScanCheckSize = getBoolean(jsonObj, "integrity_scan_check_size", integrityScanCheckSize);
+            relinkIntervalMinutes = getLong(jsonObj, "relink_interval_minutes", relinkIntervalMinutes);
+            relinkThreads = (int) getLong(jsonObj, "relink_threads", relinkThreads);
+            if (jsonObj.get("relink_hash_cache_path") != null) {
+                relinkHashCachePath = (String) jsonObj.get("relink_hash_cache_path");
+            } else {
+                // next to the config, which is on a volume that outlives the container
+                File configDir = new File(dbConfigPath).getAbsoluteFile().getParentFile();
+                relinkHashCachePath = new File(configDir, "relink_hash_cache.tsv").getPath();
+            }
+            slowRequestThresholdMs = getLong(jsonObj, "slow_request_threshold_ms", slowRequestThresholdMs);
+            slowRequestBufferSize = (int) getLong(jsonObj, "slow_request_buffer_size", slowRequestBufferSize);
+            searchCacheMaxBytes = getLong(jsonObj, "search_cache_max_bytes", searchCacheMaxBytes);
+            searchCacheMaxAgeSeconds = getLong(jsonObj, "search_cache_max_age_seconds", searchCacheMaxAgeSeconds);
+            invalidationBusEnabled = getBoolean(jsonObj, "invalidation_bus_enabled", invalidationBusEnabled);
+            if (jsonObj.get("invalidation_channel") != null) {
+                invalidationChannel = (String) jsonObj.get("invalidation_channel");
+            }
+            readDbHostName = (String) jsonObj.get("read_database_host_name");
+            readDbHostPort = (String) jsonObj.get("read_database_host_port");
+            readPoolSize = (int) getLong(jsonObj, "read_pool_size", readPoolSize);
+            writePoolSize = (int) getLong(jsonObj, "write_pool_size", writePoolSize);
+            dbPoolTimeoutMs = getLong(jsonObj, "db_pool_timeout_ms", dbPoolTimeoutMs);
+            readYourWritesWindowMs = getLong(jsonObj, "read_your_writes_window_ms", readYourWritesWindowMs);
+            readReplicaMaxLagMs = getLong(jsonObj, "read_replica_max_lag_ms", readReplicaMaxLagMs);
+            schemaMigrationsEnabled = getBoolean(jsonObj, "schema_migrations_enabled", schemaMigrationsEnabled);
+            if (jsonObj.get("search_engines") instanceof JSONObject) {
+                for (Object entry : ((JSONObject) jsonObj.get("search_engines")).entrySet()) {
+                    Map.Entry<?, ?> engine = (Map.Entry<?, ?>) entry;
+                    searchEngines.put(engine.getKey().toString(), engine.getValue().toString().toLowerCase());
+                }
+            }
+            tagArrayBackfillIntervalMinutes = getLong(jsonObj, "tag_array_backfill_interval_minutes",
+                    tagArrayBackfillIntervalMinutes);
+            federatedSearchThreads = (int) getLong(jsonObj, "federated_search_threads", federatedSearchThreads);
+            tagStatsReconcileMinutes = getLong(jsonObj, "tag_stats_reconcile_minutes", tagStatsReconcileMinutes);
+            perceptualHashBackfillIntervalMinutes = getLong(jsonObj, "perceptual_hash_backfill_interval_minutes",
+                    perceptualHashBackfillIntervalMinutes);
+            placeholderBackfillIntervalMinutes = getLong(jsonObj, "placeholder_backfill_interval_minutes",
+                    placeholderBackfillIntervalMinutes);
+            thumbnailCacheMaxBytes = getLong(jsonObj, "thumbnail_cache_max_bytes", thumbnailCacheMaxBytes);
+            thumbnailPrefetchThreads = (int) getLong(jsonObj, "thumbnail_prefetch_threads", thumbnailPrefetchThreads);
+            admissionControlEnabled = getBoolean(jsonObj, "admission_control_enabled", admissionControlEnabled);
+            admissionWorkerThreads = (int) getLong(jsonObj, "admission_worker_threads", admissionWorkerThreads);
+            if (jsonObj.get("admission_limits") instanceof JSONObject) {
+                for (Object entry : ((JSONObject) jsonObj.get("admission_limits")).entrySet()) {
+                    Map.Entry<?, ?> endpointClass = (Map.Entry<?, ?>) entry;
+                    if (!(endpointClass.getValue() instanceof JSONObject)) {
+                        continue;
+                    }
+                    HashMap<String, Long> settings = new HashMap<>();
+                    for (Object key : ((JSONObject) endpointClass.getValue()).keySet()) {
+                        settings.put(key.toString(), getLong((JSONObject) endpointClass.getValue(), key.toString(), 0));
+                    }
+                    admissionLimits.put(endpointClass.getKey().toString(), settings);
+                }
+            }
+            if (jsonObj.get("jpeg_encoding") instanceof JSONObject) {
+                for (Object entry : ((JSONObject) jsonObj.get("jpeg_encoding")).entrySet()) {
+                    Map.Entry<?, ?> endpoint = (Map.Entry<?, ?>) entry;
+                    if (!(endpoint.getValue() instanceof JSONObject)) {
+                        continue;
+                    }
+                    HashMap<String, String> settings = new HashMap<>();
+                    for (Object setting : ((JSONObject) endpoint.getValue()).entrySet()) {
+                        Map.Entry<?, ?> keyValue = (Map.Entry<?, ?>) setting;
+                        settings.put(keyValue.getKey().toString(), String.valueOf(keyValue.getValue()));
+                    }
+                    jpegEncoding.put(endpoint.getKey().toString(), settings);
+                }
+            }
         } catch (ParseException e) {
             System.out.println("ERROR: Problem encountered parsing db config:\n" + e.getMessage());
             return;
@@ -81,6 +191,44 @@ public class ApiSettings {
         }
     }
 
+    /**
+     * Reads an optional number from the config
+     *
+     * @param jsonObj      Parsed config
+     * @param key          Config key
+     * @param defaultValue Value to use if the key is not in the config
+     * @return Configured value or the default
+     */
+    private static long getLong(JSONObject jsonObj, String key, long defaultValue) {
+        Object value = jsonObj.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString());
+    }
+
+    /**
+     * Reads an optional boolean from the config
+     *
+     * @param jsonObj      Parsed config
+     * @param key          Config key
+     * @param defaultValue Value to use if the key is not in the config
+     * @return Configured value or the default
+     */
+    private static boolean getBoolean(JSONObject jsonObj, String key, boolean defaultValue) {
+        Object value = jsonObj.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return Boolean.parseBoolean(value.toString());
+    }
+
     /**
      * Gets the DB name
      *
@@ -161,6 +309,219 @@ public class ApiSettings {
         return instance.dbHostPort;
     }
 
+    /**
+     * Get the host name for read-only queries. Defaults to the primary DB host
+     *
+     * @return Read DB host name
+     */
+    public static String getReadDbHostName() {
+        return (instance.readDbHostName == null) ? instance.dbHostName : instance.readDbHostName;
+    }
+
+    /**
+     * Get the host port for read-only queries. Defaults to the primary DB port
+     *
+     * @return Read DB host port number
+     */
+    public static String getReadDbHostPort() {
+        return (instance.readDbHostPort == null) ? instance.dbHostPort : instance.readDbHostPort;
+    }
+
+    /**
+     * Get whether reads go to a different server (e.g. a streaming replica) than writes
+     *
+     * @return True if a separate read host is configured
+     */
+    public static boolean hasSeparateReadHost() {
+        return !getReadDbHostName().equals(instance.dbHostName) || !getReadDbHostPort().equals(instance.dbHostPort);
+    }
+
+    /**
+     * Get the max number of connections in the read pool
+     *
+     * @return Read pool size
+     */
+    public static int getReadPoolSize() {
+        return instance.readPoolSize;
+    }
+
+    /**
+     * Get the max number of connections in the write (primary) pool
+     *
+     * @return Write pool size
+     */
+    public static int getWritePoolSize() {
+        return instance.writePoolSize;
+    }
+
+    /**
+     * Get the max time (ms) a request waits for a free pooled DB connection
+     *
+     * @return Pool timeout in ms
+     */
+    public static long getDbPoolTimeoutMs() {
+        return instance.dbPoolTimeoutMs;
+    }
+
+    /**
+     * Get how long (ms) after a write a client's reads are sent to the primary. 0 disables read-your-writes routing
+     *
+     * @return Read-your-writes window in ms
+     */
+    public static long getReadYourWritesWindowMs() {
+        return instance.readYourWritesWindowMs;
+    }
+
+    /**
+     * Get the replication lag (ms) to allow for when caching reads from a separate read host. Cached data is
+     * invalidated again this long after a change, in case it was read from the replica before the change arrived
+     *
+     * @return Max replica lag in ms
+     */
+    public static long getReadReplicaMaxLagMs() {
+        return instance.readReplicaMaxLagMs;
+    }
+
+    /**
+     * Get whether the API migrates the media tables (columns, indexes) at startup. The admin user must own
+     * the tables for this to work
+     *
+     * @return True if schema migrations are enabled
+     */
+    public static boolean getSchemaMigrationsEnabled() {
+        return instance.schemaMigrationsEnabled;
+    }
+
+    /**
+     * Get the search engine configured for a table: {@link #SEARCH_ENGINE_JOIN} (aggregates the tag join table, the
+     * default) or {@link #SEARCH_ENGINE_ARRAY} (GIN-indexed tag_array column, see {@link TagArrays})
+     *
+     * @param tbName Table name (without the schema prefix)
+     * @return Search engine name
+     */
+    public static String getSearchEngine(String tbName) {
+        return instance.searchEngines.getOrDefault(tbName, SEARCH_ENGINE_JOIN);
+    }
+
+    /**
+     * Get the number of minutes between tag array backfills. 0 or less only backfills after schema migrations
+     *
+     * @return Minutes between backfills
+     */
+    public static long getTagArrayBackfillIntervalMinutes() {
+        return instance.tagArrayBackfillIntervalMinutes;
+    }
+
+    /**
+     * Get the number of threads that run the per-table queries of searches across all tables. Each one holds a read
+     * connection while its query runs, so keep this below the read pool size
+     *
+     * @return Federated search threads
+     */
+    public static int getFederatedSearchThreads() {
+        return instance.federatedSearchThreads;
+    }
+
+    /**
+     * Get the number of minutes between full reloads of the tag index and its per-table tag counts. 0 or less only
+     * reloads when invalidation events may have been missed
+     *
+     * @return Minutes between reloads
+     */
+    public static long getTagStatsReconcileMinutes() {
+        return instance.tagStatsReconcileMinutes;
+    }
+
+    /**
+     * Get the number of minutes between perceptual hash backfills, which also reload the similarity search index. 0 or
+     * less only backfills after schema migrations
+     *
+     * @return Minutes between backfills
+     */
+    public static long getPerceptualHashBackfillIntervalMinutes() {
+        return instance.perceptualHashBackfillIntervalMinutes;
+    }
+
+    /**
+     * Get the number of minutes between placeholder (BlurHash) backfills. 0 or less only backfills after schema
+     * migrations
+     *
+     * @return Minutes between backfills
+     */
+    public static long getPlaceholderBackfillIntervalMinutes() {
+        return instance.placeholderBackfillIntervalMinutes;
+    }
+
+    /**
+     * Get the max size of the thumbnail cache (see {@link ThumbnailCache}), in bytes. 0 or less disables the cache
+     *
+     * @return Thumbnail cache size in bytes
+     */
+    public static long getThumbnailCacheMaxBytes() {
+        return instance.thumbnailCacheMaxBytes;
+    }
+
+    /**
+     * Get the number of low priority threads that prefetch the next page's thumbnails after a search (see
+     * {@link ThumbnailPrefetcher}). 0 or less disables prefetching
+     *
+     * @return Prefetch threads
+     */
+    public static int getThumbnailPrefetchThreads() {
+        return instance.thumbnailPrefetchThreads;
+    }
+
+    /**
+     * Get whether requests go through admission control (see {@link AdmissionControl})
+     *
+     * @return True if admission control is enabled
+     */
+    public static boolean getAdmissionControlEnabled() {
+        return instance.admissionControlEnabled;
+    }
+
+    /**
+     * Get the number of web server worker threads (server.tomcat.threads.max), which lower priority endpoint classes
+     * may only use a share of
+     *
+     * @return Worker threads
+     */
+    public static int getAdmissionWorkerThreads() {
+        return instance.admissionWorkerThreads;
+    }
+
+    /**
+     * Get a setting of an admission control endpoint class (e.g. "max_limit" of "full_image")
+     *
+     * @param endpointClass Endpoint class name
+     * @param key           Setting name
+     * @param defaultValue  Value to use if the config doesn't set it
+     * @return Setting value
+     */
+    public static long getAdmissionSetting(String endpointClass, String key, long defaultValue) {
+        Map<String, Long> settings = instance.admissionLimits.get(endpointClass);
+        if (settings == null) {
+            return defaultValue;
+        }
+        return settings.getOrDefault(key, defaultValue);
+    }
+
+    /**
+     * Get a JPEG encoding setting of an endpoint (e.g. "quality" of "thumbnail", see {@link ImageCodec})
+     *
+     * @param endpoint     Endpoint name
+     * @param key          Setting name
+     * @param defaultValue Value to use if the config doesn't set it
+     * @return Setting value
+     */
+    public static String getJpegSetting(String endpoint, String key, String defaultValue) {
+        Map<String, String> settings = instance.jpegEncoding.get(endpoint);
+        if (settings == null) {
+            return defaultValue;
+        }
+        return settings.getOrDefault(key, defaultValue);
+    }
+
     /**
      * Get the path to the file share base directory
      *
@@ -170,6 +531,116 @@ public class ApiSettings {
         return instance.fileShareBaseDir;
     }
 
+    /**
+     * Get the number of minutes between scheduled file share integrity scans. 0 or less disables scheduled scans
+     *
+     * @return Minutes between integrity scans
+     */
+    public static long getIntegrityScanIntervalMinutes() {
+        return instance.integrityScanIntervalMinutes;
+    }
+
+    /**
+     * Get the number of threads the integrity scanner uses to check directories on the file share
+     *
+     * @return Number of integrity scanner threads
+     */
+    public static int getIntegrityScanThreads() {
+        return instance.integrityScanThreads;
+    }
+
+    /**
+     * Whether the integrity scanner should also compare file sizes against the DB. This costs one stat per file
+     *
+     * @return True if file sizes should be checked
+     */
+    public static boolean getIntegrityScanCheckSize() {
+        return instance.integrityScanCheckSize;
+    }
+
+    /**
+     * Get the number of minutes between scheduled re-link runs. 0 or less disables scheduled runs
+     *
+     * @return Minutes between re-link runs
+     */
+    public static long getRelinkIntervalMinutes() {
+        return instance.relinkIntervalMinutes;
+    }
+
+    /**
+     * Get the number of threads the re-link job uses to hash files
+     *
+     * @return Number of hashing threads
+     */
+    public static int getRelinkThreads() {
+        return instance.relinkThreads;
+    }
+
+    /**
+     * Get the file the re-link job keeps its size/mtime/md5 cache in between restarts. Defaults to
+     * "relink_hash_cache.tsv" next to the config file; an empty string keeps the cache in memory only
+     *
+     * @return Path of the cache file, or an empty string
+     */
+    public static String getRelinkHashCachePath() {
+        return instance.relinkHashCachePath;
+    }
+
+    /**
+     * Get the time (ms) above which image and search requests are captured in the slow request log
+     *
+     * @return Slow request threshold in ms
+     */
+    public static long getSlowRequestThresholdMs() {
+        return instance.slowRequestThresholdMs;
+    }
+
+    /**
+     * Get the number of slow requests kept in the slow request log
+     *
+     * @return Slow request log size
+     */
+    public static int getSlowRequestBufferSize() {
+        return instance.slowRequestBufferSize;
+    }
+
+    /**
+     * Get the approximate memory budget (bytes) of the search result cache. 0 disables the cache
+     *
+     * @return Search cache size in bytes
+     */
+    public static long getSearchCacheMaxBytes() {
+        return instance.searchCacheMaxBytes;
+    }
+
+    /**
+     * Get the max age (seconds) of cached search results. Rows written by the ingester don't bump a table's generation,
+     * so this bounds how long such rows can be missing from cached results. 0 or less means no max age
+     *
+     * @return Max age of cached search results in seconds
+     */
+    public static long getSearchCacheMaxAgeSeconds() {
+        return instance.searchCacheMaxAgeSeconds;
+    }
+
+    /**
+     * Get whether cache invalidations are shared with other API replicas over Postgres LISTEN/NOTIFY
+     *
+     * @return True if the invalidation bus is enabled
+     */
+    public static boolean getInvalidationBusEnabled() {
+        return instance.invalidationBusEnabled;
+    }
+
+    /**
+     * Get the Postgres NOTIFY channel used for cache invalidations. All replicas sharing a DB must use the same channel
+     *
+     * @return Channel name
+     */
+    public static String getInvalidationChannel() {
+        return instance.invalidationChannel;
+    }
+
     /**
      * Get full, absolute file path
      *
@@ -0,0 +1,160 @@
+package org.bmedia;
+
+import org.json.simple.JSONValue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduling and progress reporting of a background job that backfills a column in every media table that has it
+ * ({@link TagArrays}, {@link PerceptualIndex}, {@link Placeholders}). The job runs on its own thread every few minutes
+ * and when triggered (e.g. after schema migrations), never twice at the same time. The owner only supplies the work
+ * for one table
+ */
+public class BackfillJob {
+
+    /**
+     * Backfills one table
+     */
+    public interface TableWork {
+
+        /**
+         * @param conn          Connection with auto-commit on
+         * @param fullTableName Table name ([schema_name].[table_name])
+         * @throws SQLException
+         */
+        void backfill(Connection conn, String fullTableName) throws SQLException;
+    }
+
+    private final String name;
+    private final String column;
+    private final TableWork work;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private ScheduledExecutorService scheduler = null;
+
+    // Progress/results of the current (or last) run
+    private volatile String currentTable = null;
+    private volatile long startedAtMillis = 0;
+    private volatile long finishedAtMillis = 0;
+    private volatile String lastError = null;
+    private final Map<String, AtomicLong> counters = new LinkedHashMap<>();
+
+    /**
+     * @param name         Name of the job in logs and its thread name, e.g. "tag-array-backfill"
+     * @param column       Only tables with this column are backfilled
+     * @param work         Work for one table
+     * @param counterNames Names of the progress counters in the status JSON, e.g. "rows_backfilled"
+     */
+    public BackfillJob(String name, String column, TableWork work, String... counterNames) {
+        this.name = name;
+        this.column = column;
+        this.work = work;
+        for (String counterName : counterNames) {
+            counters.put(counterName, new AtomicLong());
+        }
+    }
+
+    /**
+     * Starts the scheduler. Calling this more than once does nothing
+     *
+     * @param intervalMinutes Minutes between runs. 0 or less only runs when triggered
+     */
+    public synchronized void start(long intervalMinutes) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (intervalMinutes > 0) {
+            scheduler.scheduleWithFixedDelay(this::run, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Starts a run in the background if one is not already running
+     *
+     * @return True if a new run was started
+     */
+    public boolean trigger() {
+        if (scheduler == null || running.get()) {
+            return false;
+        }
+        scheduler.submit(this::run);
+        return true;
+    }
+
+    /**
+     * Gets a progress counter of the current run
+     *
+     * @param counterName Name given to the constructor
+     * @return Counter
+     */
+    public AtomicLong counter(String counterName) {
+        return counters.get(counterName);
+    }
+
+    /**
+     * Gets the progress of the running job, or the results of the last run, as JSON
+     *
+     * @param extraFields JSON object members to add after "current_table", each followed by a comma, or ""
+     * @return Status JSON
+     */
+    public String getStatusJson(String extraFields) {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"running\": ").append(running.get()).append(",");
+        json.append("\"current_table\": ").append((currentTable == null) ? "null" : "\"" + currentTable + "\"")
+                .append(",");
+        json.append(extraFields);
+        json.append("\"started_at_millis\": ").append(startedAtMillis).append(",");
+        json.append("\"finished_at_millis\": ").append(finishedAtMillis).append(",");
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            json.append("\"").append(counter.getKey()).append("\": ").append(counter.getValue().get()).append(",");
+        }
+        json.append("\"last_error\": ").append((lastError == null) ? "null" : "\"" + JSONValue.escape(lastError) + "\"");
+        return json.append("}").toString();
+    }
+
+    /**
+     * Backfills every table that has the column
+     */
+    private void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        startedAtMillis = System.currentTimeMillis();
+        finishedAtMillis = 0;
+        lastError = null;
+        counters.values().forEach(counter -> counter.set(0));
+
+        try (Connection conn = Main.createDbConnection()) {
+            for (String tbName : Main.getMediaTableNames()) {
+                String fullTableName = ApiSettings.getSchemaName() + "." + tbName;
+                if (!SchemaMigrations.hasColumn(fullTableName, column)) {
+                    continue;
+                }
+                currentTable = tbName;
+                work.backfill(conn, fullTableName);
+            }
+        } catch (SQLException e) {
+            lastError = e.getMessage();
+            System.out.println("ERROR: " + name + " failed:\n" + e.getMessage());
+        } catch (RuntimeException e) {
+            lastError = e.toString();
+            e.printStackTrace();
+        } finally {
+            currentTable = null;
+            finishedAtMillis = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.bmedia;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BK-tree of 64-bit hashes under the Hamming distance, for finding all hashes within a distance of a query hash
+ * without comparing against every hash. Each node's children are keyed by their distance to the node, and the triangle
+ * inequality means a search with radius r only has to descend into children whose key is within r of the query's
+ * distance to the node.
+ * <p>
+ * Several ids can share a hash. Removing an id leaves its node in place (it just holds fewer ids), so the tree stays
+ * valid without rebuilding. Thread-safe: searches run concurrently, changes are exclusive
+ */
+public class BkTree {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Node root = null;
+    private int size = 0;
+
+    private static class Node {
+        private final long hash;
+        private long[] ids = new long[1];
+        private int idCount = 0;
+        // children, kept as parallel arrays instead of a 65 slot array to keep nodes small
+        private byte[] childDistances = null;
+        private Node[] children = null;
+        private int childCount = 0;
+
+        private Node(long hash) {
+            this.hash = hash;
+        }
+
+        private Node child(int distance) {
+            for (int i = 0; i < childCount; i++) {
+                if (childDistances[i] == distance) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node addChild(int distance, long hash) {
+            if (children == null) {
+                childDistances = new byte[2];
+                children = new Node[2];
+            } else if (childCount == children.length) {
+                childDistances = Arrays.copyOf(childDistances, childCount * 2);
+                children = Arrays.copyOf(children, childCount * 2);
+            }
+            Node child = new Node(hash);
+            childDistances[childCount] = (byte) distance;
+            children[childCount++] = child;
+            return child;
+        }
+
+        private void addId(long id) {
+            if (idCount == ids.length) {
+                ids = Arrays.copyOf(ids, idCount * 2);
+            }
+            ids[idCount++] = id;
+        }
+
+        private boolean removeId(long id) {
+            for (int i = 0; i < idCount; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--idCount];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Hamming distance between two hashes
+     *
+     * @param a Hash
+     * @param b Hash
+     * @return Number of differing bits
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Adds an id under a hash
+     *
+     * @param hash Hash
+     * @param id   Image ID
+     */
+    public void add(long hash, long id) {
+        lock.writeLock().lock();
+        try {
+            if (root == null) {
+                root = new Node(hash);
+            }
+            Node node = root;
+            int distance;
+            while ((distance = distance(hash, node.hash)) != 0) {
+                Node child = node.child(distance);
+                node = (child == null) ? node.addChild(distance, hash) : child;
+            }
+            node.addId(id);
+            size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an id from under a hash
+     *
+     * @param hash Hash the id was added with
+     * @param id   Image ID
+     */
+    public void remove(long hash, long id) {
+        lock.writeLock().lock();
+        try {
+            Node node = root;
+            int distance;
+            while (node != null && (distance = distance(hash, node.hash)) != 0) {
+                node = node.child(distance);
+            }
+            if (node != null && node.removeId(id)) {
+                size--;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds every id whose hash is within a distance of a hash
+     *
+     * @param hash        Query hash
+     * @param maxDistance Max Hamming distance (inclusive)
+     * @return Matches as {id, distance}, in no particular order
+     */
+    public List<long[]> search(long hash, int maxDistance) {
+        ArrayList<long[]> matches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (root == null) {
+                return matches;
+            }
+            ArrayDeque<Node> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                int distance = distance(hash, node.hash);
+                if (distance <= maxDistance) {
+                    for (int i = 0; i < node.idCount; i++) {
+                        matches.add(new long[]{node.ids[i], distance});
+                    }
+                }
+                for (int i = 0; i < node.childCount; i++) {
+                    if (Math.abs(node.childDistances[i] - distance) <= maxDistance) {
+                        stack.push(node.children[i]);
+                    }
+                }
+            }
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of ids in the tree
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
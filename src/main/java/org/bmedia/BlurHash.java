@@ -0,0 +1,143 @@
+package org.bmedia;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * BlurHash encoder (see https://blurha.sh). A BlurHash is a short string (28 characters with the default 4x3
+ * components) describing a blurred version of an image as a few cosine components, which clients decode into a
+ * placeholder while the real image loads
+ */
+public class BlurHash {
+
+    public static final int DEFAULT_COMPONENTS_X = 4;
+    public static final int DEFAULT_COMPONENTS_Y = 3;
+
+    private static final String BASE83 =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+
+    // sRGB byte -> linear value
+    private static final double[] SRGB_TO_LINEAR = new double[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double v = i / 255.0;
+            SRGB_TO_LINEAR[i] = (v <= 0.04045) ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    /**
+     * Encodes an image with the default number of components
+     *
+     * @param img Image, ideally already small (e.g. 32-64 pixels a side); every pixel is visited once per component
+     * @return BlurHash
+     */
+    public static String encode(BufferedImage img) {
+        return encode(img, DEFAULT_COMPONENTS_X, DEFAULT_COMPONENTS_Y);
+    }
+
+    /**
+     * Encodes an image
+     *
+     * @param img         Image, ideally already small (e.g. 32-64 pixels a side)
+     * @param componentsX Number of horizontal components (1-9)
+     * @param componentsY Number of vertical components (1-9)
+     * @return BlurHash
+     */
+    public static String encode(BufferedImage img, int componentsX, int componentsY) {
+        if (componentsX < 1 || componentsX > 9 || componentsY < 1 || componentsY > 9) {
+            throw new IllegalArgumentException("BlurHash components must be between 1 and 9");
+        }
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int[] pixels = img.getRGB(0, 0, w, h, null, 0, w);
+
+        // cosine tables, so the inner loop is only multiply-adds
+        double[][] cosX = new double[componentsX][w];
+        for (int i = 0; i < componentsX; i++) {
+            for (int x = 0; x < w; x++) {
+                cosX[i][x] = Math.cos(Math.PI * i * x / w);
+            }
+        }
+        double[][] cosY = new double[componentsY][h];
+        for (int j = 0; j < componentsY; j++) {
+            for (int y = 0; y < h; y++) {
+                cosY[j][y] = Math.cos(Math.PI * j * y / h);
+            }
+        }
+
+        double[][] factors = new double[componentsX * componentsY][3];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int rgb = pixels[y * w + x];
+                double r = SRGB_TO_LINEAR[(rgb >> 16) & 0xFF];
+                double g = SRGB_TO_LINEAR[(rgb >> 8) & 0xFF];
+                double b = SRGB_TO_LINEAR[rgb & 0xFF];
+                for (int j = 0; j < componentsY; j++) {
+                    for (int i = 0; i < componentsX; i++) {
+                        double basis = cosX[i][x] * cosY[j][y];
+                        double[] factor = factors[j * componentsX + i];
+                        factor[0] += basis * r;
+                        factor[1] += basis * g;
+                        factor[2] += basis * b;
+                    }
+                }
+            }
+        }
+        for (int k = 0; k < factors.length; k++) {
+            double scale = ((k == 0) ? 1.0 : 2.0) / (w * h);
+            factors[k][0] *= scale;
+            factors[k][1] *= scale;
+            factors[k][2] *= scale;
+        }
+
+        StringBuilder hash = new StringBuilder();
+        encode83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+
+        double maxAc = 0;
+        for (int k = 1; k < factors.length; k++) {
+            for (double v : factors[k]) {
+                maxAc = Math.max(maxAc, Math.abs(v));
+            }
+        }
+        double acScale;
+        if (factors.length > 1) {
+            int quantizedMaxAc = (int) Math.max(0, Math.min(82, Math.floor(maxAc * 166 - 0.5)));
+            acScale = (quantizedMaxAc + 1) / 166.0;
+            encode83(hash, quantizedMaxAc, 1);
+        } else {
+            acScale = 1;
+            encode83(hash, 0, 1);
+        }
+
+        double[] dc = factors[0];
+        encode83(hash, (linearToSrgb(dc[0]) << 16) + (linearToSrgb(dc[1]) << 8) + linearToSrgb(dc[2]), 4);
+        for (int k = 1; k < factors.length; k++) {
+            double[] ac = factors[k];
+            int r = quantizeAc(ac[0] / acScale);
+            int g = quantizeAc(ac[1] / acScale);
+            int b = quantizeAc(ac[2] / acScale);
+            encode83(hash, r * 19 * 19 + g * 19 + b, 2);
+        }
+        return hash.toString();
+    }
+
+    private static int quantizeAc(double value) {
+        double v = Math.signum(value) * Math.pow(Math.abs(value), 0.5);
+        return (int) Math.max(0, Math.min(18, Math.floor(v * 9 + 9.5)));
+    }
+
+    private static int linearToSrgb(double value) {
+        double v = Math.max(0, Math.min(1, value));
+        if (v <= 0.0031308) {
+            return (int) (v * 12.92 * 255 + 0.5);
+        }
+        return (int) ((1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255 + 0.5);
+    }
+
+    private static void encode83(StringBuilder out, int value, int length) {
+        for (int i = 1; i <= length; i++) {
+            int digit = (value / (int) Math.pow(83, length - i)) % 83;
+            out.append(BASE83.charAt(digit));
+        }
+    }
+}
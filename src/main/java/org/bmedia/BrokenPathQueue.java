@@ -0,0 +1,110 @@
+package org.bmedia;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deduplicating in-memory queue of broken file paths. Requests that find a missing file only report the path here and
+ * return right away; a background worker nulls the reported paths in the DB in batches, with one UPDATE per table
+ */
+public class BrokenPathQueue {
+
+    private static final long FLUSH_INTERVAL_MS = 2000;
+
+    // full table name -> relative paths waiting to be nulled
+    private static final ConcurrentHashMap<String, Set<String>> pending = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService worker = null;
+
+    /**
+     * Starts the background worker that flushes reported paths to the DB. Calling this more than once does nothing
+     */
+    public synchronized static void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "broken-path-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker.scheduleWithFixedDelay(BrokenPathQueue::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reports a broken path. Reporting a path that is already waiting to be nulled does nothing
+     *
+     * @param relativeDbPath Path of the image relative to the file share base directory
+     * @param fullTableName  DB table image belongs to
+     * @return True if the path was not already queued
+     */
+    public static boolean report(String relativeDbPath, String fullTableName) {
+        if (relativeDbPath == null) {
+            return false;
+        }
+        boolean added = pending.computeIfAbsent(fullTableName, k -> ConcurrentHashMap.newKeySet())
+                .add(normalizePath(relativeDbPath));
+        if (added) {
+            Metrics.BROKEN_PATHS_REPORTED.inc();
+        }
+        return added;
+    }
+
+    /**
+     * Checks if a path has already been reported and is waiting to be nulled
+     *
+     * @param relativeDbPath Path of the image relative to the file share base directory
+     * @param fullTableName  DB table image belongs to
+     * @return True if the path is queued
+     */
+    public static boolean isPending(String relativeDbPath, String fullTableName) {
+        if (relativeDbPath == null) {
+            return false;
+        }
+        Set<String> paths = pending.get(fullTableName);
+        return paths != null && paths.contains(normalizePath(relativeDbPath));
+    }
+
+    /**
+     * Nulls all queued paths in the DB. Paths that fail to update are re-queued and retried on the next flush
+     */
+    static void flush() {
+        for (Map.Entry<String, Set<String>> entry : pending.entrySet()) {
+            String fullTableName = entry.getKey();
+            Set<String> paths = entry.getValue();
+            if (paths.isEmpty()) {
+                continue;
+            }
+
+            ArrayList<String> batch = new ArrayList<>();
+            for (String path : paths) {
+                batch.add(path);
+                paths.remove(path);
+            }
+
+            try {
+                Main.removeBrokenPathsInDB(batch, fullTableName);
+            } catch (SQLException e) {
+                System.out.println("WARNING: Could not null " + batch.size() + " broken path(s) in \"" + fullTableName +
+                        "\". Will retry:\n" + e.getMessage());
+                paths.addAll(batch);
+            } catch (RuntimeException e) {
+                // never let an exception kill the scheduled worker
+                e.printStackTrace();
+                paths.addAll(batch);
+            }
+        }
+    }
+
+    static String normalizePath(String relativeDbPath) {
+        if (relativeDbPath.startsWith("/") || relativeDbPath.startsWith("\\")) {
+            return relativeDbPath.substring(1);
+        }
+        return relativeDbPath;
+    }
+}
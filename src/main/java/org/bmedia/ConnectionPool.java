@@ -0,0 +1,185 @@
+package org.bmedia;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small fixed-size JDBC connection pool. {@link #borrow()} hands out a wrapper whose {@link Connection#close()} returns
+ * the connection to the pool, so callers use plain try-with-resources:
+ * <pre>
+ * try (Connection conn = Main.getReadConnection(); Statement statement = conn.createStatement()) { ... }
+ * </pre>
+ * Connections are created lazily. Idle connections are validated before they are handed out again, and connections
+ * that hit a connection error are thrown away instead of being returned
+ */
+public class ConnectionPool {
+
+    // idle connections older than this are checked before use
+    private static final long VALIDATE_AFTER_IDLE_MS = 30000;
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private final String name;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final long borrowTimeoutMs;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Metrics.Histogram waitTime;
+
+    /**
+     * Main constructor
+     *
+     * @param name            Pool name, used as the "pool" label of the metrics
+     * @param url             JDBC URL
+     * @param username        DB username
+     * @param password        DB password
+     * @param maxSize         Max number of open connections
+     * @param borrowTimeoutMs Max time to wait for a free connection
+     */
+    public ConnectionPool(String name, String url, String username, String password, int maxSize, long borrowTimeoutMs) {
+        this.name = name;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.permits = new Semaphore(maxSize, true);
+        this.waitTime = Metrics.histogram("bmedia_db_connection_wait_seconds",
+                "Time spent waiting for a pooled DB connection, including validation", Metrics.LATENCY_BUCKETS,
+                "pool", name);
+        Metrics.gauge("bmedia_db_pool_idle_connections", "Idle connections in the DB pool", idle::size, "pool", name);
+        Metrics.gauge("bmedia_db_pool_active_connections", "Connections borrowed from the DB pool",
+                () -> maxSize - permits.availablePermits(), "pool", name);
+    }
+
+    /**
+     * Borrows a connection. Close it to give it back
+     *
+     * @return Connection
+     * @throws SQLException If no connection is free within the borrow timeout, or a new connection can't be opened
+     */
+    public Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a connection from the \"" + name + "\" pool", "08001");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection from the \"" + name + "\" pool", "08001");
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (System.currentTimeMillis() - pooled.lastUsedMs < VALIDATE_AFTER_IDLE_MS ||
+                        pooled.conn.isValid(VALIDATE_TIMEOUT_SECONDS)) {
+                    break;
+                }
+                System.out.println("INFO: Dropping dead connection from the \"" + name + "\" pool");
+                closeQuietly(pooled.conn);
+            }
+            if (pooled == null) {
+                pooled = new PooledConnection(DriverManager.getConnection(url, username, password));
+            }
+            waitTime.observeSince(start);
+            return pooled.wrap();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void giveBack(PooledConnection pooled) {
+        try {
+            if (pooled.broken || pooled.conn.isClosed()) {
+                closeQuietly(pooled.conn);
+            } else {
+                if (!pooled.conn.getAutoCommit()) {
+                    pooled.conn.rollback();
+                    pooled.conn.setAutoCommit(true);
+                }
+                pooled.lastUsedMs = System.currentTimeMillis();
+                // most recently used first, so rarely used connections go idle and get validated
+                idle.offerFirst(pooled);
+            }
+        } catch (SQLException e) {
+            closeQuietly(pooled.conn);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // already broken
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool
+     */
+    private class PooledConnection {
+        private final Connection conn;
+        private long lastUsedMs = System.currentTimeMillis();
+        private boolean broken = false;
+
+        private PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * Creates the wrapper handed to a borrower. Each borrow gets its own wrapper, so closing it twice, or using it
+         * after closing it, can't affect the next borrower
+         */
+        private Connection wrap() {
+            InvocationHandler handler = new InvocationHandler() {
+                private boolean returned = false;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "close":
+                            if (!returned) {
+                                returned = true;
+                                giveBack(PooledConnection.this);
+                            }
+                            return null;
+                        case "isClosed":
+                            return returned || conn.isClosed();
+                        case "unwrap":
+                        case "isWrapperFor":
+                            break;
+                        default:
+                            if (returned) {
+                                throw new SQLException("Connection was returned to the pool", "08003");
+                            }
+                    }
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        Throwable cause = e.getCause();
+                        // SQLState class 08 is a connection exception; the connection can't be reused
+                        if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null &&
+                                ((SQLException) cause).getSQLState().startsWith("08")) {
+                            broken = true;
+                        }
+                        throw cause;
+                    }
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, handler);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.bmedia;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches several media tables at once. The per-table queries run concurrently, each on its own read connection, and
+ * their results are k-way merged into one page by the requested sort order.
+ * <p>
+ * Pages are addressed with a {@link SearchCursor} instead of a page number: every table only has to return the first
+ * page-size results after the cursor, no matter how deep the client pages
+ */
+public class FederatedSearch {
+
+    private static ExecutorService executor = null;
+
+    /**
+     * A search result and the table it came from
+     */
+    public static class Hit {
+        private final SearchQuery query;
+        private final ImageRow row;
+        private final SearchCursor cursor;
+
+        private Hit(SearchQuery query, ImageRow row) {
+            this.query = query;
+            this.row = row;
+            this.cursor = SearchCursor.of(query, row);
+        }
+
+        public ImageRow getRow() {
+            return row;
+        }
+
+        public SearchCursor getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @return Table name ([schema_name].[table_name])
+         */
+        public String getFullTableName() {
+            return query.getFullTableName();
+        }
+    }
+
+    /**
+     * Gets the next page of results across several tables
+     *
+     * @param queries The same search for each table. All must have the same sort order
+     * @param after   Cursor of the last result of the previous page, or null for the first page
+     * @param limit   Max number of results
+     * @return Merged results, in sort order
+     * @throws SQLException If any of the per-table queries fails
+     */
+    public static List<Hit> search(List<SearchQuery> queries, SearchCursor after, int limit) throws SQLException {
+        // worker threads can't see the request, so decide the routing here
+        boolean fromPrimary = ReadYourWrites.shouldReadFromPrimary();
+
+        ArrayList<Future<List<Hit>>> futures = new ArrayList<>();
+        for (SearchQuery query : queries) {
+            String sql = query.toSqlAfter(after, limit) + ";";
+            futures.add(getExecutor().submit(() -> runQuery(query, sql, fromPrimary)));
+        }
+
+        ArrayList<List<Hit>> perTable = new ArrayList<>();
+        try {
+            for (Future<List<Hit>> future : futures) {
+                perTable.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for search results");
+        } finally {
+            for (Future<List<Hit>> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        boolean ascending = queries.isEmpty() || queries.get(0).isAscending();
+        return merge(perTable, ascending, limit);
+    }
+
+    /**
+     * K-way merges sorted per-table results
+     *
+     * @param perTable  Results of each table, each in sort order
+     * @param ascending Sort direction
+     * @param limit     Max number of results
+     * @return The first results of the merged order
+     */
+    private static List<Hit> merge(List<List<Hit>> perTable, boolean ascending, int limit) {
+        Comparator<Hit> order = Comparator.comparing(Hit::getCursor);
+        if (!ascending) {
+            order = order.reversed();
+        }
+        // heap of each table's next result, as {table index, position}
+        Comparator<Hit> hitOrder = order;
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) ->
+                hitOrder.compare(perTable.get(a[0]).get(a[1]), perTable.get(b[0]).get(b[1])));
+        for (int i = 0; i < perTable.size(); i++) {
+            if (!perTable.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+
+        ArrayList<Hit> merged = new ArrayList<>(limit);
+        while (merged.size() < limit && !heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<Hit> hits = perTable.get(head[0]);
+            merged.add(hits.get(head[1]));
+            if (head[1] + 1 < hits.size()) {
+                heads.add(new int[]{head[0], head[1] + 1});
+            }
+        }
+        return merged;
+    }
+
+    private static List<Hit> runQuery(SearchQuery query, String sql, boolean fromPrimary) throws SQLException {
+        ArrayList<Hit> hits = new ArrayList<>();
+        try (Connection conn = Main.getReadConnection(fromPrimary); Statement statement = conn.createStatement()) {
+            ResultSet result = statement.executeQuery(sql);
+            while (result.next()) {
+                hits.add(new Hit(query, ImageRow.fromResultSet(result)));
+            }
+        }
+        return hits;
+    }
+
+    private synchronized static ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger threadNum = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, ApiSettings.getFederatedSearchThreads()), r -> {
+                Thread thread = new Thread(r, "federated-search-" + threadNum.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+}
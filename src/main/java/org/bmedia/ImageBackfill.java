@@ -0,0 +1,165 @@
+package org.bmedia;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backfill of a column that is computed from the image itself ({@link Placeholders}, {@link PerceptualIndex}). Rows
+ * where the column is NULL are read in batches ordered by id, each image is decoded at reduced resolution, and the
+ * values of a batch are written with one UPDATE.
+ * <p>
+ * Missing files are reported to {@link BrokenPathQueue} (only while the file share is mounted, see
+ * {@link IntegrityScanner#isShareAvailable()}). Images that can't be decoded are remembered and skipped on later runs
+ * until their path changes
+ *
+ * @param <T> Type of the column's values
+ */
+public abstract class ImageBackfill<T> {
+
+    private static final int BATCH_SIZE = 200;
+
+    private final String column;
+    private final String sqlType;
+    private final int decodeSide;
+    // images that could not be decoded, by full table name, then id -> relative path
+    private final ConcurrentHashMap<String, Map<Long, String>> undecodable = new ConcurrentHashMap<>();
+
+    /**
+     * @param column     Column to fill in
+     * @param sqlType    SQL type of the column's values, e.g. "text"
+     * @param decodeSide Images are decoded so that neither side is much smaller than this
+     */
+    protected ImageBackfill(String column, String sqlType, int decodeSide) {
+        this.column = column;
+        this.sqlType = sqlType;
+        this.decodeSide = decodeSide;
+    }
+
+    /**
+     * Computes the value of an image
+     *
+     * @param img Image, decoded at reduced resolution
+     * @return Value to write
+     */
+    protected abstract T compute(BufferedImage img);
+
+    /**
+     * Called before an image is decoded
+     *
+     * @return True if the image got its value some other way in the meantime and should be left alone
+     */
+    protected boolean isDone(String fullTableName, long id, String relativePath) {
+        return false;
+    }
+
+    /**
+     * Called for images that are left without a value because they can't be decoded
+     */
+    protected void notDone(String fullTableName, long id, String relativePath) {
+    }
+
+    /**
+     * Called after values were written
+     */
+    protected void written(String fullTableName, List<Long> ids, List<T> values) {
+    }
+
+    /**
+     * Fills in the column for every image of a table that doesn't have a value yet
+     *
+     * @param conn          Connection
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param done          Counter of values written
+     * @param failed        Counter of images that could not be read or decoded
+     * @param skipped       Counter of images skipped because they are known to be broken
+     * @return Number of values written
+     * @throws SQLException
+     */
+    public long backfillTable(Connection conn, String fullTableName, AtomicLong done, AtomicLong failed,
+                              AtomicLong skipped) throws SQLException {
+        String selectQuery = "SELECT id, file_path FROM " + fullTableName + " WHERE " + column + " IS NULL AND " +
+                "file_path IS NOT NULL AND id > ? ORDER BY id LIMIT " + BATCH_SIZE + ";";
+        long written = 0;
+        long lastId = Long.MIN_VALUE;
+        Map<Long, String> failedPaths = undecodable.computeIfAbsent(fullTableName, k -> new ConcurrentHashMap<>());
+        while (true) {
+            ArrayList<Long> ids = new ArrayList<>();
+            ArrayList<T> values = new ArrayList<>();
+            int rows = 0;
+            try (PreparedStatement statement = conn.prepareStatement(selectQuery)) {
+                statement.setLong(1, lastId);
+                ResultSet result = statement.executeQuery();
+                while (result.next()) {
+                    rows++;
+                    lastId = result.getLong("id");
+                    String relativePath = BrokenPathQueue.normalizePath(result.getString("file_path"));
+                    if (isDone(fullTableName, lastId, relativePath)) {
+                        continue;
+                    }
+                    if (relativePath.equals(failedPaths.get(lastId)) ||
+                            BrokenPathQueue.isPending(relativePath, fullTableName)) {
+                        skipped.incrementAndGet();
+                        notDone(fullTableName, lastId, relativePath);
+                        continue;
+                    }
+                    try {
+                        BufferedImage img = ImageUtils.readImageSubsampled(ApiSettings.getFullFilePath(relativePath),
+                                decodeSide);
+                        values.add(compute(img));
+                        ids.add(lastId);
+                        failedPaths.remove(lastId);
+                    } catch (NoSuchFileException e) {
+                        failed.incrementAndGet();
+                        // an unmounted share is not a reason to null paths
+                        if (IntegrityScanner.isShareAvailable()) {
+                            BrokenPathQueue.report(relativePath, fullTableName);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        failedPaths.put(lastId, relativePath);
+                        notDone(fullTableName, lastId, relativePath);
+                    }
+                }
+            }
+            if (!ids.isEmpty()) {
+                write(conn, fullTableName, ids, values);
+                written += ids.size();
+                done.addAndGet(ids.size());
+                written(fullTableName, ids, values);
+            }
+            if (rows < BATCH_SIZE) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes values in one UPDATE. Images that got a value in the meantime keep it
+     *
+     * @param conn          Connection
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param ids           Image IDs
+     * @param values        Values, in the order of the IDs
+     * @throws SQLException
+     */
+    public void write(Connection conn, String fullTableName, List<Long> ids, List<T> values) throws SQLException {
+        String query = "UPDATE " + fullTableName + " t SET " + column + " = v.value FROM unnest(?, ?) AS v(id, value) " +
+                "WHERE t.id = v.id AND t." + column + " IS NULL;";
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setArray(1, conn.createArrayOf("bigint", ids.toArray()));
+            statement.setArray(2, conn.createArrayOf(sqlType, values.toArray()));
+            statement.executeUpdate();
+        }
+    }
+}
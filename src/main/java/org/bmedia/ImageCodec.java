@@ -0,0 +1,312 @@
+package org.bmedia;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Image decoding and encoding with reused ImageIO readers and writers.
+ * <p>
+ * ImageIO.read and ImageIO.write look up a reader or writer in the service registry and create a new one on every
+ * call, and buffer streams in a temp file by default. Here every thread keeps one reader and one writer per format,
+ * images are decoded straight from the file bytes in memory, and encoded into memory.
+ * <p>
+ * JPEG quality, progressive mode and chroma subsampling can be set per endpoint ({@link #THUMBNAIL},
+ * {@link #FULL_IMAGE}) in the config, e.g.
+ * {@code "jpeg_encoding": {"thumbnail": {"quality": 0.8, "progressive": true, "chroma_subsampling": "4:4:4"}}}.
+ * The defaults (quality 0.75, baseline, 4:2:0) give the same output as ImageIO.write
+ */
+public class ImageCodec {
+
+    public static final String THUMBNAIL = "thumbnail";
+    public static final String FULL_IMAGE = "full_image";
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private static final ThreadLocal<Map<String, ImageReader>> READERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+    private static final Map<String, JpegSettings> jpegSettings = new ConcurrentHashMap<>();
+
+    /**
+     * Decodes an image
+     *
+     * @param bytes   Encoded image (whole file)
+     * @param minSide If more than 0, only every n-th pixel of every n-th row is decoded, with n chosen so that neither
+     *                side ends up smaller than minSide (unless the image itself is smaller)
+     * @return Decoded image, or null if the format isn't supported
+     * @throws IOException If the image can't be decoded
+     */
+    public static BufferedImage decode(byte[] bytes, int minSide) throws IOException {
+        String format = sniffFormat(bytes);
+        ImageReader reader = (format == null) ? null : getReader(format);
+        boolean pooled = reader != null;
+        ImageInputStream input = new ByteArrayImageInputStream(bytes);
+        if (!pooled) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            reader = readers.next();
+        }
+
+        boolean reusable = pooled;
+        try {
+            reader.setInput(input, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (minSide > 0) {
+                int step = Math.max(1, Math.min(reader.getWidth(0), reader.getHeight(0)) / minSide);
+                param.setSourceSubsampling(step, step, 0, 0);
+            }
+            return reader.read(0, param);
+        } catch (IOException | RuntimeException e) {
+            // don't hand a reader that failed half way to the next image
+            reusable = false;
+            if (pooled) {
+                READERS.get().remove(format);
+            }
+            throw e;
+        } finally {
+            if (reusable) {
+                reader.reset();
+            } else {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Encodes an image
+     *
+     * @param img      Image to encode
+     * @param format   ImageIO format name, e.g. "jpg"
+     * @param endpoint Endpoint the image is for ({@link #THUMBNAIL} or {@link #FULL_IMAGE}), which selects the JPEG
+     *                 settings
+     * @return Encoded bytes, or null if there is no writer for the format and image type
+     * @throws IOException If the image can't be encoded
+     */
+    public static byte[] encode(BufferedImage img, String format, String endpoint) throws IOException {
+        String formatKey = format.toLowerCase();
+        ByteArrayOutputStream boas = new ByteArrayOutputStream();
+        ImageWriter writer = getWriter(formatKey);
+        if (writer == null || !writer.getOriginatingProvider().canEncodeImage(img)) {
+            // another writer of the format may take this image type, which is what ImageIO.write would look for
+            try (ImageOutputStream output = new MemoryCacheImageOutputStream(boas)) {
+                if (!ImageIO.write(img, format, output)) {
+                    return null;
+                }
+            }
+            return boas.toByteArray();
+        }
+
+        boolean reusable = true;
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(boas)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = null;
+            if (formatKey.equals("jpg") || formatKey.equals("jpeg")) {
+                metadata = applyJpegSettings(writer, param, img, getJpegSettings(endpoint));
+            }
+            writer.write(null, new IIOImage(img, null, metadata), param);
+        } catch (IOException | RuntimeException e) {
+            reusable = false;
+            WRITERS.get().remove(formatKey);
+            throw e;
+        } finally {
+            if (reusable) {
+                writer.reset();
+            } else {
+                writer.dispose();
+            }
+        }
+        return boas.toByteArray();
+    }
+
+    /**
+     * Gets the format of an encoded image from its first bytes, for the common formats
+     *
+     * @param bytes Encoded image
+     * @return ImageIO format name, or null if not recognized
+     */
+    private static String sniffFormat(byte[] bytes) {
+        if (bytes.length >= 3 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xD8 && (bytes[2] & 0xFF) == 0xFF) {
+            return "jpeg";
+        }
+        if (bytes.length >= 4 && (bytes[0] & 0xFF) == 0x89 && bytes[1] == 'P' && bytes[2] == 'N' && bytes[3] == 'G') {
+            return "png";
+        }
+        if (bytes.length >= 4 && bytes[0] == 'G' && bytes[1] == 'I' && bytes[2] == 'F' && bytes[3] == '8') {
+            return "gif";
+        }
+        if (bytes.length >= 2 && bytes[0] == 'B' && bytes[1] == 'M') {
+            return "bmp";
+        }
+        return null;
+    }
+
+    private static ImageReader getReader(String format) {
+        Map<String, ImageReader> readers = READERS.get();
+        ImageReader reader = readers.get(format);
+        if (reader == null) {
+            Iterator<ImageReader> found = ImageIO.getImageReadersByFormatName(format);
+            if (!found.hasNext()) {
+                return null;
+            }
+            reader = found.next();
+            readers.put(format, reader);
+        }
+        return reader;
+    }
+
+    private static ImageWriter getWriter(String format) {
+        Map<String, ImageWriter> writers = WRITERS.get();
+        ImageWriter writer = writers.get(format);
+        if (writer == null) {
+            Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format);
+            if (!found.hasNext()) {
+                return null;
+            }
+            writer = found.next();
+            writers.put(format, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Sets up a JPEG write
+     *
+     * @param writer   JPEG writer
+     * @param param    Write param to set the quality and progressive mode on
+     * @param img      Image to encode
+     * @param settings Settings to apply
+     * @return Image metadata with the chroma subsampling, or null to use the writer's default (4:2:0)
+     * @throws IOException If the metadata can't be set
+     */
+    private static IIOMetadata applyJpegSettings(ImageWriter writer, ImageWriteParam param, BufferedImage img,
+                                                 JpegSettings settings) throws IOException {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(settings.quality);
+        if (settings.progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        if (settings.hSampling == 2 && settings.vSampling == 2) {
+            return null;
+        }
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(img), param);
+        Element tree = (Element) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList components = tree.getElementsByTagName("componentSpec");
+        if (components.getLength() != 3) {
+            // grayscale, nothing to subsample
+            return null;
+        }
+        for (int i = 0; i < components.getLength(); i++) {
+            Element component = (Element) components.item(i);
+            // luma keeps full resolution, the sampling factors of the chroma components are relative to it
+            component.setAttribute("HsamplingFactor", String.valueOf((i == 0) ? settings.hSampling : 1));
+            component.setAttribute("VsamplingFactor", String.valueOf((i == 0) ? settings.vSampling : 1));
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+        return metadata;
+    }
+
+    private static JpegSettings getJpegSettings(String endpoint) {
+        return jpegSettings.computeIfAbsent(endpoint, JpegSettings::new);
+    }
+
+    /**
+     * JPEG settings of one endpoint, read from the config
+     */
+    private static class JpegSettings {
+        private final float quality;
+        private final boolean progressive;
+        private final int hSampling;
+        private final int vSampling;
+
+        private JpegSettings(String endpoint) {
+            float qualityVal = Float.parseFloat(ApiSettings.getJpegSetting(endpoint, "quality", "0.75"));
+            this.quality = Math.max(0f, Math.min(1f, qualityVal));
+            this.progressive = Boolean.parseBoolean(ApiSettings.getJpegSetting(endpoint, "progressive", "false"));
+            String subsampling = ApiSettings.getJpegSetting(endpoint, "chroma_subsampling", "4:2:0");
+            switch (subsampling) {
+                case "4:4:4":
+                    hSampling = 1;
+                    vSampling = 1;
+                    break;
+                case "4:2:2":
+                    hSampling = 2;
+                    vSampling = 1;
+                    break;
+                case "4:2:0":
+                    hSampling = 2;
+                    vSampling = 2;
+                    break;
+                default:
+                    System.out.println("WARNING: Unknown chroma subsampling \"" + subsampling + "\" for " + endpoint +
+                            " images, using 4:2:0");
+                    hSampling = 2;
+                    vSampling = 2;
+            }
+        }
+    }
+
+    /**
+     * Image input stream over bytes that are already in memory, without copying them into a cache
+     */
+    private static class ByteArrayImageInputStream extends ImageInputStreamImpl {
+        private final byte[] bytes;
+
+        private ByteArrayImageInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= bytes.length) {
+                return -1;
+            }
+            return bytes[(int) streamPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (len == 0) {
+                return 0;
+            }
+            if (streamPos >= bytes.length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, bytes.length - streamPos);
+            System.arraycopy(bytes, (int) streamPos, b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return bytes.length;
+        }
+    }
+}
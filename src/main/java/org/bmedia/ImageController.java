@@ -1,26 +1,24 @@
 package org.bmedia;
 
-import org.apache.commons.io.FilenameUtils;
+import org.json.simple.JSONValue;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.server.ServerErrorException;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
-import java.util.List;
 
 /**
  * API controller for image-related requests
@@ -30,6 +28,21 @@ import java.util.List;
 @CrossOrigin(origins = "*")
 public class ImageController {
 
+    /**
+     * Max number of images in one batch tag request
+     */
+    public static final int MAX_TAG_BATCH_IDS = 5000;
+    private static final int TAG_BATCH_FETCH_SIZE = 1000;
+    public static final int MAX_SIMILARITY_DISTANCE = 16;
+    private static final int MAX_SIMILARITY_CANDIDATES = 1000;
+    private static final int EXPORT_BATCH_SIZE = 1000;
+    public static final int MAX_RANDOM_COUNT = 100;
+    private static final int RANDOM_PROBE_ROUNDS = 3;
+    public static final int RANDOM_FALLBACK_LIMIT = 1000;
+
+    private static final Metrics.Histogram SEARCH_SERIALIZE = Metrics.histogram("bmedia_search_serialize_seconds",
+            "Time spent building search result JSON, including thumbnails", Metrics.LATENCY_BUCKETS);
+
     /**
      * Gets a list of images that fit the search criteria. This request will get a specific "page" of results based on
      * the passed in page number and number of results per page specified. E.g. with a page number of 2 and results-per-
@@ -43,6 +56,10 @@ public class ImageController {
      * @param thumbHeight    Height (pixels) of thumbnail image (width will be whatever is required to keep the aspect ratio
      *                       for the given height)
      * @param includeNsfw    If true, include NSFW results in the results
+     * @param includeTags    If true, each image result also has its tags (same format as {@link #get_image_tags})
+     * @param fields         Fields each image result should have: any of {@link ImageRow#COLUMNS}, and "tags" (same as
+     *                       include_tags). id is always included. Only these columns are read from the DB, so e.g.
+     *                       an "id,md5" grid view reads much less. Defaults to every column but file_path
      * @return
      */
     @RequestMapping(value = "/search_images/by_tag/page", produces = "application/json")
@@ -57,56 +74,123 @@ public class ImageController {
                                                             @RequestParam("min_height") Optional<Integer> minHeight,
                                                             @RequestParam("aspect_ratio") Optional<Double> aspectRatio,
                                                             @RequestParam("asc_desc") Optional<Boolean> ascDesc,
-                                                            @RequestParam("sort_by") Optional<String> sortBy) {
+                                                            @RequestParam("sort_by") Optional<String> sortBy,
+                                                            @RequestParam("include_tags") Optional<Boolean> includeTags,
+                                                            @RequestParam("fields") Optional<List<String>> fields) {
 
         boolean includeThumbVal = includeThumb.orElse(false);
         int thumbHeightVal = thumbHeight.orElse(400);
         boolean includeNsfwVal = includeNsfw.orElse(false);
         boolean ascending = ascDesc.orElse(false);
+        boolean includeTagsVal = includeTags.orElse(false);
         String schemaName = ApiSettings.getSchemaName();
         String tbNameFull = schemaName + "." + tbName;
 
-        String fullQuery = createSearchQuery(tbNameFull, tbName, schemaName, tags, pageNum, resultsPerPage, includeNsfwVal,
-                minWidth, minHeight, aspectRatio, ascending, sortBy) + ";";
-
-        String jsonOut = "[";
-        try (Statement statement = Main.getDbconn().createStatement()) {
-            ResultSet result = statement.executeQuery(fullQuery);
+        // columns to serialize, and the (possibly larger) set of columns to select
+        Set<String> outputFields = null;
+        Set<String> queryFields = null;
+        if (fields.isPresent()) {
+            outputFields = new HashSet<>();
+            for (String field : fields.get()) {
+                String fieldName = field.trim().toLowerCase();
+                if (fieldName.equals("tags")) {
+                    includeTagsVal = true;
+                } else if (ImageRow.COLUMNS.contains(fieldName)) {
+                    outputFields.add(fieldName);
+                } else if (!fieldName.isEmpty()) {
+                    return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Unknown field: " + field);
+                }
+            }
+            queryFields = new HashSet<>(outputFields);
+            // thumbnails (and prefetching them) need the file path
+            if (includeThumbVal || thumbHeight.isPresent()) {
+                queryFields.add("file_path");
+            }
+        }
 
-            ArrayList<String> jsonEntries = new ArrayList<>();
-            while (result.next()) {
-                long id = result.getLong("id");
-                String md5 = result.getString("md5");
-                String filename = result.getString("filename");
-                int resolutionWidth = result.getInt("resolution_width");
-                int resolutionHeight = result.getInt("resolution_height");
-                int fileSizeBytes = result.getInt("file_size_bytes");
+        SearchQuery searchQuery = new SearchQuery(tbName, schemaName, tags, includeNsfwVal, minWidth, minHeight,
+                aspectRatio, ascending, sortBy, queryFields);
+        String cacheKey = searchQuery.canonicalKey(pageNum, resultsPerPage);
+        // read the generation before querying, so changes made while the query runs make the cached page stale
+        long generation = TableGenerations.get(tbNameFull);
 
-                String jsonEntry = "{" +
-                        "\"id\": " + id + "," +
-                        "\"md5\": \"" + md5 + "\"," +
-                        "\"filename\": \"" + filename + "\"," +
-                        "\"resolution_width\": " + resolutionWidth + "," +
-                        "\"resolution_height\": " + resolutionHeight + "," +
-                        "\"file_size_bytes\": " + fileSizeBytes;
-
-                if (includeThumbVal) {
-                    String imagePath = result.getString("file_path");
-                    String b64Thumb = getThumbnailForImageB64(imagePath, thumbHeightVal, tbNameFull);
-                    if (b64Thumb == null) {
-                        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("FILE IO error");
-                    }
-                    jsonEntry += "\n,\"thumb_base64\": \"" + b64Thumb + "\"";
+        List<ImageRow> rows = SearchCache.getPage(cacheKey, generation);
+        if (rows == null && searchQuery.isKnownEmpty()) {
+            rows = List.of();
+        }
+        if (rows == null) {
+            String fullQuery = searchQuery.toSql(pageNum, resultsPerPage) + ";";
+            RequestTiming.setSql(fullQuery);
+
+            Metrics.Histogram queryTimer = searchQueryTimer("page", tags, minWidth, minHeight, aspectRatio, sortBy);
+
+            rows = new ArrayList<>();
+            try (Connection conn = Main.getReadConnection(); Statement statement = conn.createStatement()) {
+                long queryStart = System.nanoTime();
+                ResultSet result = statement.executeQuery(fullQuery);
+                while (result.next()) {
+                    rows.add(ImageRow.fromResultSet(result));
                 }
+                queryTimer.observeSince(queryStart);
+                RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+            }
+            SearchCache.putPage(cacheKey, generation, rows);
+        }
 
-                jsonEntry += "}";
-                jsonEntries.add(jsonEntry);
+        // tags are not cached with the page, they are read fresh for every request
+        HashMap<Long, String> tagsById = null;
+        if (includeTagsVal && !rows.isEmpty()) {
+            long[] ids = rows.stream().mapToLong(ImageRow::getId).sorted().toArray();
+            tagsById = new HashMap<>();
+            try (Connection conn = Main.getReadConnection()) {
+                queryTagsForImages(conn, tbName, ids, tagsById::put);
+            } catch (SQLException | IOException e) {
+                e.printStackTrace();
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
             }
-            jsonOut += String.join(",", jsonEntries);
-            jsonOut += "]";
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+        }
+
+        long serializeStart = System.nanoTime();
+        RequestTiming timing = RequestTiming.current();
+        long imageNanosBefore = (timing == null) ? 0 : timing.getImageNanos();
+        ArrayList<String> jsonEntries = new ArrayList<>();
+        for (ImageRow row : rows) {
+            String extraFields = (tagsById == null) ? null : "\n,\"tags\": " + tagsById.get(row.getId());
+
+            if (includeThumbVal) {
+                String b64Thumb;
+                try {
+                    b64Thumb = getThumbnailForImageB64(ApiSettings.getFullFilePath(row.getFilePath()),
+                            thumbHeightVal, tbNameFull);
+                } catch (ResponseStatusException e) {
+                    // file is gone and has been queued for removal, leave out its thumbnail
+                    b64Thumb = "";
+                }
+                if (b64Thumb == null) {
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("FILE IO error");
+                }
+                if (!b64Thumb.isEmpty()) {
+                    extraFields = ((extraFields == null) ? "" : extraFields) +
+                            "\n,\"thumb_base64\": \"" + b64Thumb + "\"";
+                }
+            }
+
+            jsonEntries.add(row.toJson(extraFields, outputFields));
+        }
+        String jsonOut = "[" + String.join(",", jsonEntries) + "]";
+        SEARCH_SERIALIZE.observeSince(serializeStart);
+        if (timing != null) {
+            // thumbnails are already counted in the image phases
+            long imageNanos = timing.getImageNanos() - imageNanosBefore;
+            RequestTiming.add(RequestTiming.SERIALIZE, System.nanoTime() - serializeStart - imageNanos);
+        }
+
+        // a client that wants thumbnails will likely want the next page's too. A short page is the last one
+        if ((includeThumbVal || thumbHeight.isPresent()) && rows.size() == resultsPerPage) {
+            ThumbnailPrefetcher.prefetchNextPage(searchQuery, pageNum, resultsPerPage, thumbHeightVal);
         }
 
         return ResponseEntity.status(HttpStatus.OK).body(jsonOut);
@@ -138,32 +222,520 @@ public class ImageController {
         String tagTableName = schemaName + "." + "tags";
         boolean ascending = ascDesc.orElse(false);
 
-        String query = "SELECT COUNT(*) AS itemCount FROM (" + createSearchQuery(tbNameFull, tbName, schemaName, tags,
-                -1, resultsPerPage, includeNsfwVal, minWidth, minHeight, aspectRatio, ascending, sortBy) + ") AS sq;";
+        SearchQuery searchQuery = new SearchQuery(tbName, schemaName, tags, includeNsfwVal, minWidth, minHeight,
+                aspectRatio, ascending, sortBy);
+        // the count doesn't depend on the page size or sort order
+        String cacheKey = new SearchQuery(tbName, schemaName, tags, includeNsfwVal, minWidth, minHeight, aspectRatio,
+                false, Optional.empty()).canonicalKey(-1, 0);
+        long generation = TableGenerations.get(tbNameFull);
 
-        String jsonOut = "";
-        try {
-            Statement statement = Main.getDbconn().createStatement();
-            ResultSet result = statement.executeQuery(query);
+        int totalResults = SearchCache.getCount(cacheKey, generation);
+        if (totalResults < 0 && searchQuery.isKnownEmpty()) {
+            totalResults = 0;
+        }
+        if (totalResults < 0) {
+            String query = "SELECT COUNT(*) AS itemCount FROM (" + searchQuery.toSql(-1, resultsPerPage) + ") AS sq;";
+            RequestTiming.setSql(query);
 
-            if (result.next()) {
-                int totalResults = result.getInt("itemCount");
-                int pages = (int) Math.ceil(totalResults / resultsPerPage);
+            Metrics.Histogram queryTimer = searchQueryTimer("count", tags, minWidth, minHeight, aspectRatio, sortBy);
 
-                jsonOut += "{" +
-                        "\"pages\": \"" + pages + "\"," +
-                        "\"total_results\": " + totalResults;
+            try (Connection conn = Main.getReadConnection(); Statement statement = conn.createStatement()) {
+                long queryStart = System.nanoTime();
+                ResultSet result = statement.executeQuery(query);
+                queryTimer.observeSince(queryStart);
+                RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
 
-                jsonOut += "}";
+                if (!result.next()) {
+                    return ResponseEntity.status(HttpStatus.OK).body("");
+                }
+                totalResults = result.getInt("itemCount");
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
             }
+            SearchCache.putCount(cacheKey, generation, totalResults);
+        }
+
+        int pages = (int) Math.ceil(totalResults / resultsPerPage);
+        String jsonOut = "{" +
+                "\"pages\": \"" + pages + "\"," +
+                "\"total_results\": " + totalResults +
+                "}";
+
+        return ResponseEntity.status(HttpStatus.OK).body(jsonOut);
+    }
+
+    /**
+     * Searches several tables (all media tables by default) at once and returns one merged, sorted page of results.
+     * Each result has a "source_table" field. Instead of page numbers, pages are requested with the "next_cursor" of
+     * the previous page, which is null on the last page
+     *
+     * @param tbNames        DB tables to search. Searches all media tables if not given
+     * @param tags           Will only return images that include all of these tags
+     * @param cursor         "next_cursor" of the previous page. Returns the first page if not given
+     * @param resultsPerPage Number of images that should be in a "page" (number of images that will be returned)
+     * @param includeThumb   If true, this call will return a base64 encoded thumbnail with each image result
+     * @param thumbHeight    Height (pixels) of thumbnail image (width will be whatever is required to keep the aspect ratio
+     *                       for the given height)
+     * @param includeNsfw    If true, include NSFW results in the results
+     * @return
+     */
+    @RequestMapping(value = "/search_images/by_tag/federated", produces = "application/json")
+    public ResponseEntity<String> search_images_by_tag_federated(@RequestParam("table_names") Optional<List<String>> tbNames,
+                                                                 @RequestParam("tags") String[] tags,
+                                                                 @RequestParam("cursor") Optional<String> cursor,
+                                                                 @RequestParam("results_per_page") int resultsPerPage,
+                                                                 @RequestParam("include_thumb") Optional<Boolean> includeThumb,
+                                                                 @RequestParam("thumb_height") Optional<Integer> thumbHeight,
+                                                                 @RequestParam("include_nsfw") Optional<Boolean> includeNsfw,
+                                                                 @RequestParam("min_width") Optional<Integer> minWidth,
+                                                                 @RequestParam("min_height") Optional<Integer> minHeight,
+                                                                 @RequestParam("aspect_ratio") Optional<Double> aspectRatio,
+                                                                 @RequestParam("asc_desc") Optional<Boolean> ascDesc,
+                                                                 @RequestParam("sort_by") Optional<String> sortBy) {
+        if (resultsPerPage <= 0) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("results_per_page must be positive");
+        }
+        boolean includeThumbVal = includeThumb.orElse(false);
+        int thumbHeightVal = thumbHeight.orElse(400);
+        boolean includeNsfwVal = includeNsfw.orElse(false);
+        boolean ascending = ascDesc.orElse(false);
+        String schemaName = ApiSettings.getSchemaName();
+
+        List<String> tableNames;
+        try {
+            List<String> mediaTables = Main.getMediaTableNames();
+            tableNames = tbNames.orElse(mediaTables);
+            for (String tbName : tableNames) {
+                if (!mediaTables.contains(tbName)) {
+                    return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Unknown table: " + tbName);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+        }
+
+        ArrayList<SearchQuery> queries = new ArrayList<>();
+        for (String tbName : new TreeSet<>(tableNames)) {
+            queries.add(new SearchQuery(tbName, schemaName, tags, includeNsfwVal, minWidth, minHeight, aspectRatio,
+                    ascending, sortBy));
+        }
+        if (queries.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.OK).body("{\"results\": [], \"next_cursor\": null}");
+        }
+
+        SearchCursor after = null;
+        if (cursor.isPresent()) {
+            try {
+                after = SearchCursor.decode(cursor.get(), queries.get(0).getSortDescription());
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            }
+        }
+
+        Metrics.Histogram queryTimer = searchQueryTimer("federated", tags, minWidth, minHeight, aspectRatio, sortBy);
+        List<FederatedSearch.Hit> hits;
+        long queryStart = System.nanoTime();
+        try {
+            hits = FederatedSearch.search(queries, after, resultsPerPage);
         } catch (SQLException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
         }
+        // wall time of the fan-out, not the sum of the per-table queries
+        queryTimer.observeSince(queryStart);
+        RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
+
+        long serializeStart = System.nanoTime();
+        RequestTiming timing = RequestTiming.current();
+        long imageNanosBefore = (timing == null) ? 0 : timing.getImageNanos();
+        ArrayList<String> jsonEntries = new ArrayList<>();
+        for (FederatedSearch.Hit hit : hits) {
+            String tbNameFull = hit.getFullTableName();
+            String extraFields = "\n,\"source_table\": \"" + tbNameFull.substring(schemaName.length() + 1) + "\"";
+
+            if (includeThumbVal) {
+                String b64Thumb;
+                try {
+                    b64Thumb = getThumbnailForImageB64(ApiSettings.getFullFilePath(hit.getRow().getFilePath()),
+                            thumbHeightVal, tbNameFull);
+                } catch (ResponseStatusException e) {
+                    // file is gone and has been queued for removal, leave out its thumbnail
+                    b64Thumb = "";
+                }
+                if (b64Thumb == null) {
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("FILE IO error");
+                }
+                if (!b64Thumb.isEmpty()) {
+                    extraFields += "\n,\"thumb_base64\": \"" + b64Thumb + "\"";
+                }
+            }
+
+            jsonEntries.add(hit.getRow().toJson(extraFields));
+        }
+        // a short page means every table has run out of results
+        String nextCursor = (hits.size() < resultsPerPage) ? "null" :
+                "\"" + hits.get(hits.size() - 1).getCursor().encode() + "\"";
+        String jsonOut = "{" +
+                "\"results\": [" + String.join(",", jsonEntries) + "]," +
+                "\"next_cursor\": " + nextCursor +
+                "}";
+        SEARCH_SERIALIZE.observeSince(serializeStart);
+        if (timing != null) {
+            long imageNanos = timing.getImageNanos() - imageNanosBefore;
+            RequestTiming.add(RequestTiming.SERIALIZE, System.nanoTime() - serializeStart - imageNanos);
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).body(jsonOut);
+    }
+
+    /**
+     * Gets a random sample of the images that fit the search criteria, without sorting the whole result.
+     * <p>
+     * Random ids between the table's smallest and largest id are picked with a seeded generator, and each one is
+     * probed for the first matching image at or after it (see {@link SearchQuery#toProbeSql(SearchCursor)}; all probes
+     * of a round are sent as one UNION ALL query). A probe reads rows in id order from its id until the first match:
+     * the rarest included tag's join rows, or the image rows if there are no included tags or the array engine is
+     * used. Probes that hit an image already picked, or nothing, are retried with new ids for a few rounds. If the
+     * matches are too sparse for that, up to {@link #RANDOM_FALLBACK_LIMIT} matches are read with the regular search
+     * query and shuffled with the same seed.
+     * <p>
+     * The same seed returns the same sample as long as the table doesn't change. The sample is close to uniform but
+     * not exactly: an image is more likely to be picked the more non-matching ids come right before it
+     *
+     * @param tbName       DB table to search
+     * @param tags         Will only return images that include all of these tags
+     * @param count        Number of images to return (at most {@link #MAX_RANDOM_COUNT})
+     * @param seed         Seed of the sample. A random one is used (and returned) if not given
+     * @param includeThumb If true, this call will return a base64 encoded thumbnail with each image result
+     * @param thumbHeight  Height (pixels) of thumbnail image (width will be whatever is required to keep the aspect ratio
+     *                     for the given height)
+     * @param includeNsfw  If true, include NSFW results in the results
+     * @return JSON object with the seed and the results
+     */
+    @RequestMapping(value = "/search_images/by_tag/random", produces = "application/json")
+    public ResponseEntity<String> search_images_by_tag_random(@RequestParam("table_name") String tbName,
+                                                              @RequestParam("tags") String[] tags,
+                                                              @RequestParam("count") Optional<Integer> count,
+                                                              @RequestParam("seed") Optional<Long> seed,
+                                                              @RequestParam("include_thumb") Optional<Boolean> includeThumb,
+                                                              @RequestParam("thumb_height") Optional<Integer> thumbHeight,
+                                                              @RequestParam("include_nsfw") Optional<Boolean> includeNsfw,
+                                                              @RequestParam("min_width") Optional<Integer> minWidth,
+                                                              @RequestParam("min_height") Optional<Integer> minHeight,
+                                                              @RequestParam("aspect_ratio") Optional<Double> aspectRatio) {
+        int countVal = count.orElse(20);
+        if (countVal <= 0 || countVal > MAX_RANDOM_COUNT) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("count must be between 1 and " + MAX_RANDOM_COUNT);
+        }
+        long seedVal = seed.orElseGet(() -> new Random().nextLong());
+        boolean includeThumbVal = includeThumb.orElse(false);
+        int thumbHeightVal = thumbHeight.orElse(400);
+        String schemaName = ApiSettings.getSchemaName();
+        String tbNameFull = schemaName + "." + tbName;
+
+        // sorted by id, so a cursor "after id - 1" starts the probe at id
+        SearchQuery searchQuery = new SearchQuery(tbName, schemaName, tags, includeNsfw.orElse(false), minWidth,
+                minHeight, aspectRatio, true, Optional.empty());
+        Random random = new Random(seedVal);
+        LinkedHashMap<Long, ImageRow> picked = new LinkedHashMap<>();
+
+        if (!searchQuery.isKnownEmpty()) {
+            Metrics.Histogram queryTimer = searchQueryTimer("random", tags, minWidth, minHeight, aspectRatio,
+                    Optional.empty());
+            long queryStart = System.nanoTime();
+            try (Connection conn = Main.getReadConnection(); Statement statement = conn.createStatement()) {
+                long minId = 0;
+                long maxId = -1;
+                // both ends come straight from the partial index on present files
+                ResultSet range = statement.executeQuery("SELECT min(id) AS min_id, max(id) AS max_id FROM " +
+                        tbNameFull + " WHERE file_path IS NOT NULL;");
+                if (range.next() && range.getObject("min_id") != null) {
+                    minId = range.getLong("min_id");
+                    maxId = range.getLong("max_id");
+                }
+
+                for (int round = 0; round < RANDOM_PROBE_ROUNDS && maxId >= minId && picked.size() < countVal; round++) {
+                    // probe for more than are missing, since some probes hit nothing or a duplicate
+                    int probes = (countVal - picked.size()) * 2;
+                    ArrayList<String> probeQueries = new ArrayList<>();
+                    for (int i = 0; i < probes; i++) {
+                        long pivot = minId + (long) (random.nextDouble() * (maxId - minId + 1));
+                        SearchCursor after = new SearchCursor(searchQuery.getSortDescription(), null, pivot - 1,
+                                tbNameFull);
+                        probeQueries.add("SELECT " + i + " AS probe, p.* FROM (" + searchQuery.toProbeSql(after) +
+                                ") p");
+                    }
+                    ImageRow[] probeRows = new ImageRow[probes];
+                    ResultSet result = statement.executeQuery("(" + String.join(") UNION ALL (", probeQueries) +
+                            ");");
+                    while (result.next()) {
+                        probeRows[result.getInt("probe")] = ImageRow.fromResultSet(result);
+                    }
+                    // in probe order, so the sample order only depends on the seed
+                    for (ImageRow row : probeRows) {
+                        if (row != null && picked.size() < countVal) {
+                            picked.putIfAbsent(row.getId(), row);
+                        }
+                    }
+                }
+
+                if (picked.size() < countVal && maxId >= minId) {
+                    // too few matches to find by probing: read them (bounded) and shuffle
+                    ArrayList<ImageRow> rows = new ArrayList<>();
+                    ResultSet result = statement.executeQuery(searchQuery.toSqlAfter(null, RANDOM_FALLBACK_LIMIT) +
+                            ";");
+                    while (result.next()) {
+                        rows.add(ImageRow.fromResultSet(result));
+                    }
+                    Collections.shuffle(rows, random);
+                    for (ImageRow row : rows) {
+                        if (picked.size() >= countVal) {
+                            break;
+                        }
+                        picked.putIfAbsent(row.getId(), row);
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+            }
+            queryTimer.observeSince(queryStart);
+            RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
+        }
 
+        ArrayList<String> jsonEntries = new ArrayList<>();
+        for (ImageRow row : picked.values()) {
+            String extraFields = null;
+            if (includeThumbVal) {
+                String b64Thumb;
+                try {
+                    b64Thumb = getThumbnailForImageB64(ApiSettings.getFullFilePath(row.getFilePath()), thumbHeightVal,
+                            tbNameFull);
+                } catch (ResponseStatusException e) {
+                    // file is gone and has been queued for removal, leave out its thumbnail
+                    b64Thumb = "";
+                }
+                if (b64Thumb == null) {
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("FILE IO error");
+                }
+                if (!b64Thumb.isEmpty()) {
+                    extraFields = "\n,\"thumb_base64\": \"" + b64Thumb + "\"";
+                }
+            }
+            jsonEntries.add(row.toJson(extraFields));
+        }
+        String jsonOut = "{" +
+                "\"seed\": " + seedVal + "," +
+                "\"results\": [" + String.join(",", jsonEntries) + "]" +
+                "}";
         return ResponseEntity.status(HttpStatus.OK).body(jsonOut);
     }
 
+    /**
+     * Finds images that look like an image, by the Hamming distance between their perceptual hashes (see
+     * {@link PerceptualIndex}). Results are ordered by distance, closest first, and include a "distance" field. The
+     * image itself is left out
+     *
+     * @param tbName       DB table name
+     * @param id           ID of image in the table
+     * @param maxDistance  Max Hamming distance (0-{@link #MAX_SIMILARITY_DISTANCE}) between hashes. 0 only finds
+     *                     exact visual duplicates; around 10 also finds resized and recompressed copies
+     * @param limit        Max number of results
+     * @param includeThumb If true, include a base64 encoded thumbnail in each result
+     * @param thumbHeight  Height (pixels) of thumbnail image (width will be whatever is required to keep the aspect ratio
+     *                     for the given height)
+     * @param includeNsfw  If true, include NSFW results in the results
+     * @return
+     */
+    @RequestMapping(value = "/search_images/similar", produces = "application/json")
+    public ResponseEntity<String> search_images_similar(@RequestParam("table_name") String tbName,
+                                                        @RequestParam("id") long id,
+                                                        @RequestParam("max_distance") Optional<Integer> maxDistance,
+                                                        @RequestParam("limit") Optional<Integer> limit,
+                                                        @RequestParam("include_thumb") Optional<Boolean> includeThumb,
+                                                        @RequestParam("thumb_height") Optional<Integer> thumbHeight,
+                                                        @RequestParam("include_nsfw") Optional<Boolean> includeNsfw) {
+        int maxDistanceVal = Math.max(0, Math.min(MAX_SIMILARITY_DISTANCE, maxDistance.orElse(8)));
+        int limitVal = limit.orElse(50);
+        if (limitVal <= 0) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("limit must be positive");
+        }
+        boolean includeThumbVal = includeThumb.orElse(false);
+        int thumbHeightVal = thumbHeight.orElse(400);
+        boolean includeNsfwVal = includeNsfw.orElse(false);
+        String schemaName = ApiSettings.getSchemaName();
+        String tbNameFull = schemaName + "." + tbName;
+        String tagJoinTableName = tbNameFull + "_tags_join";
+        String tagTableName = schemaName + "." + "tags";
+
+        if (!PerceptualIndex.isLoaded(tbNameFull)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Similarity index is not loaded yet");
+        }
+        Long hash = PerceptualIndex.getHash(tbNameFull, id);
+        if (hash == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Image has no perceptual hash (yet)");
+        }
+
+        // candidates, closest first. Some may be dropped below (NSFW, missing files), so take more than the limit
+        ArrayList<Long> candidateIds = new ArrayList<>();
+        HashMap<Long, Integer> distances = new HashMap<>();
+        for (long[] match : PerceptualIndex.findSimilar(tbNameFull, hash, maxDistanceVal)) {
+            if (match[0] == id) {
+                continue;
+            }
+            candidateIds.add(match[0]);
+            distances.put(match[0], (int) match[1]);
+            if (candidateIds.size() >= MAX_SIMILARITY_CANDIDATES) {
+                break;
+            }
+        }
+        if (candidateIds.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.OK).body("[]");
+        }
+
+        String query = "SELECT a.id,a.md5,a.filename,a.resolution_width,a.resolution_height,a.file_size_bytes," +
+                "a.file_path" + (Placeholders.isAvailable(tbNameFull) ? ",a.blurhash" : "") + " FROM " + tbNameFull +
+                " a WHERE a.id = ANY(?) AND a.file_path IS NOT NULL";
+        if (!includeNsfwVal) {
+            query += " AND NOT EXISTS (SELECT 1 FROM " + tagJoinTableName + " n JOIN " + tagTableName +
+                    " t ON t.tag_name = n.tag_name WHERE n.id = a.id AND t.nsfw = TRUE)";
+        }
+        query += ";";
+
+        HashMap<Long, ImageRow> rows = new HashMap<>();
+        try (Connection conn = Main.getReadConnection(); PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setArray(1, conn.createArrayOf("bigint", candidateIds.toArray()));
+            long queryStart = System.nanoTime();
+            ResultSet result = statement.executeQuery();
+            RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
+            while (result.next()) {
+                ImageRow row = ImageRow.fromResultSet(result);
+                rows.put(row.getId(), row);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+        }
+
+        ArrayList<String> jsonEntries = new ArrayList<>();
+        for (Long candidateId : candidateIds) {
+            ImageRow row = rows.get(candidateId);
+            if (row == null) {
+                continue;
+            }
+            String extraFields = "\n,\"distance\": " + distances.get(candidateId);
+            if (includeThumbVal) {
+                String b64Thumb;
+                try {
+                    b64Thumb = getThumbnailForImageB64(ApiSettings.getFullFilePath(row.getFilePath()), thumbHeightVal,
+                            tbNameFull);
+                } catch (ResponseStatusException e) {
+                    // file is gone and has been queued for removal, leave out its thumbnail
+                    b64Thumb = "";
+                }
+                if (b64Thumb == null) {
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("FILE IO error");
+                }
+                if (!b64Thumb.isEmpty()) {
+                    extraFields += "\n,\"thumb_base64\": \"" + b64Thumb + "\"";
+                }
+            }
+            jsonEntries.add(row.toJson(extraFields));
+            if (jsonEntries.size() >= limitVal) {
+                break;
+            }
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).body("[" + String.join(",", jsonEntries) + "]");
+    }
+
+    /**
+     * Downloads every image that fits the search criteria as one ZIP archive of the original files. Entries are stored
+     * uncompressed and copied straight from disk (see {@link ZipStreamWriter}), and the archive is streamed as it is
+     * written, so memory use doesn't depend on the number of results.
+     * <p>
+     * Images are exported in ascending id order and each entry is named "[id]_[filename]". An interrupted download can
+     * be resumed by passing the id of the last complete entry as after_id. Images whose file is missing are left out
+     * (and queued for removal, see {@link BrokenPathQueue})
+     *
+     * @param tbName      DB table to search
+     * @param tags        Will only return images that include all of these tags
+     * @param includeNsfw If true, include NSFW results in the results
+     * @param afterId     Only export images with a greater id
+     * @param response    Response to stream the ZIP to
+     * @throws IOException
+     */
+    @RequestMapping(value = "/search_images/by_tag/export", produces = "application/zip")
+    public void search_images_by_tag_export(@RequestParam("table_name") String tbName,
+                                            @RequestParam("tags") String[] tags,
+                                            @RequestParam("include_nsfw") Optional<Boolean> includeNsfw,
+                                            @RequestParam("min_width") Optional<Integer> minWidth,
+                                            @RequestParam("min_height") Optional<Integer> minHeight,
+                                            @RequestParam("aspect_ratio") Optional<Double> aspectRatio,
+                                            @RequestParam("after_id") Optional<Long> afterId,
+                                            HttpServletResponse response) throws IOException {
+        String schemaName = ApiSettings.getSchemaName();
+        String tbNameFull = schemaName + "." + tbName;
+        // always ascending by id, which is what after_id resumes by
+        SearchQuery searchQuery = new SearchQuery(tbName, schemaName, tags, includeNsfw.orElse(false), minWidth,
+                minHeight, aspectRatio, true, Optional.empty());
+        SearchCursor after = afterId.map(id -> new SearchCursor(searchQuery.getSortDescription(), null, id, tbNameFull))
+                .orElse(null);
+
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + tbName + "_export.zip\"");
+        long exported = 0;
+        long skipped = 0;
+        try (ZipStreamWriter zip = new ZipStreamWriter(response.getOutputStream())) {
+            // page through the results by id, so no connection or transaction is held while files are being sent
+            boolean more = !searchQuery.isKnownEmpty();
+            while (more) {
+                ArrayList<ImageRow> rows = new ArrayList<>();
+                String query = searchQuery.toSqlAfter(after, EXPORT_BATCH_SIZE) + ";";
+                try (Connection conn = Main.getReadConnection(); Statement statement = conn.createStatement()) {
+                    long queryStart = System.nanoTime();
+                    ResultSet result = statement.executeQuery(query);
+                    while (result.next()) {
+                        rows.add(ImageRow.fromResultSet(result));
+                    }
+                    RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
+                }
+                more = rows.size() == EXPORT_BATCH_SIZE;
+
+                for (ImageRow row : rows) {
+                    after = SearchCursor.of(searchQuery, row);
+                    if (BrokenPathQueue.isPending(row.getFilePath(), tbNameFull)) {
+                        skipped++;
+                        continue;
+                    }
+                    Path file = Path.of(ApiSettings.getFullFilePath(row.getFilePath()));
+                    if (!Files.isRegularFile(file)) {
+                        BrokenPathQueue.report(row.getFilePath(), tbNameFull);
+                        skipped++;
+                        continue;
+                    }
+                    String entryName = row.getId() + "_" + row.getFilename().replace('/', '_').replace('\\', '_');
+                    zip.addFile(entryName, file);
+                    exported++;
+                }
+            }
+            zip.finish();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+                response.getWriter().write("SQL error");
+            }
+            // otherwise the client gets a truncated archive, and can resume after its last complete entry
+            return;
+        }
+        System.out.println("INFO: Exported " + exported + " image(s) from \"" + tbNameFull + "\", skipped " + skipped +
+                " missing file(s)");
+    }
+
     /**
      * Gets a base64 encoded thumbnail for an image in the DB
      *
@@ -181,31 +753,21 @@ public class ImageController {
         String schemaName = ApiSettings.getSchemaName();
         String tbNameFull = schemaName + "." + tbName;
 
-        String query = "SELECT file_path FROM " + tbNameFull + " WHERE id='" + id + "';";
-
-        String b64Thumb = null;
+        String filePath;
         try {
-            Statement statement = Main.getDbconn().createStatement();
-            ResultSet result = statement.executeQuery(query);
-
-            if (!result.next()) {
-                ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error: no results returned");
-            }
-
-            String filePath = result.getString("file_path");
-            if (filePath == null) {
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOError: this file is probably deleted from the filesystem");
-            }
-            b64Thumb = getThumbnailForImageB64(ApiSettings.getFullFilePath(filePath), thumbHeightVal, tbNameFull);
-            if (b64Thumb == null) {
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error: no results returned from query");
-            }
-
+            filePath = getFilePath(tbNameFull, id);
+        } catch (ResponseStatusException e) {
+            return ResponseEntity.status(e.getStatus()).body(e.getReason());
         } catch (SQLException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
         }
 
+        String b64Thumb = getThumbnailForImageB64(ApiSettings.getFullFilePath(filePath), thumbHeightVal, tbNameFull);
+        if (b64Thumb == null) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error: no results returned from query");
+        }
+
         String jsonOut = "{" +
                 "\"id\": \"" + id + "\"," +
                 "\n\"thumb_base64\": \"" + b64Thumb + "\"\n}";
@@ -231,32 +793,18 @@ public class ImageController {
         String schemaName = ApiSettings.getSchemaName();
         String tbNameFull = schemaName + "." + tbName;
 
-        String query = "SELECT file_path FROM " + tbNameFull + " WHERE id='" + id + "';";
-
-        byte[] thumbBytes = null;
+        String filePath;
         try {
-            Statement statement = Main.getDbconn().createStatement();
-            ResultSet result = statement.executeQuery(query);
-
-            if (!result.next()) {
-                ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error: no results returned");
-            }
-
-            String filePath = result.getString("file_path");
-            if (filePath == null) {
-                throw new ServerErrorException("IOError: this file is probably deleted from the filesystem");
-            }
-
-            thumbBytes = getThumbnailForImage(ApiSettings.getFullFilePath(filePath), thumbHeightVal, tbNameFull);
-            if (thumbBytes == null) {
-                throw new ServerErrorException("Error: Could not create thumbnail for image");
-            }
-
+            filePath = getFilePath(tbNameFull, id);
         } catch (SQLException e) {
             e.printStackTrace();
             throw new ServerErrorException("SQL error");
         }
 
+        byte[] thumbBytes = getThumbnailForImage(ApiSettings.getFullFilePath(filePath), thumbHeightVal, tbNameFull);
+        if (thumbBytes == null) {
+            throw new ServerErrorException("Error: Could not create thumbnail for image");
+        }
 
         return thumbBytes;
     }
@@ -274,31 +822,21 @@ public class ImageController {
         String schemaName = ApiSettings.getSchemaName();
         String tbNameFull = schemaName + "." + tbName;
 
-        String query = "SELECT file_path FROM " + tbNameFull + " WHERE id=" + id + ";";
-
-        String b64Image = null;
+        String filePath;
         try {
-            Statement statement = Main.getDbconn().createStatement();
-            ResultSet result = statement.executeQuery(query);
-
-            if (!result.next()) {
-                ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error: no results returned");
-            }
-
-            String filePath = result.getString("file_path");
-            if (filePath == null) {
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOError: this file is probably deleted from the filesystem");
-            }
-            b64Image = getFullImage_b64(ApiSettings.getFullFilePath(filePath), tbNameFull);
-            if (b64Image == null) {
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error: no results returned from query");
-            }
-
+            filePath = getFilePath(tbNameFull, id);
+        } catch (ResponseStatusException e) {
+            return ResponseEntity.status(e.getStatus()).body(e.getReason());
         } catch (SQLException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
         }
 
+        String b64Image = getFullImage_b64(ApiSettings.getFullFilePath(filePath), tbNameFull);
+        if (b64Image == null) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error: no results returned from query");
+        }
+
         String jsonOut = "{" +
                 "\"id\": \"" + id + "\"," +
                 "\n\"image_base64\": \"" + b64Image + "\"\n}";
@@ -319,31 +857,19 @@ public class ImageController {
         String schemaName = ApiSettings.getSchemaName();
         String tbNameFull = schemaName + "." + tbName;
 
-        String query = "SELECT file_path FROM " + tbNameFull + " WHERE id=" + id + ";";
-
-        byte[] imageBytes = null;
+        String filePath;
         try {
-            Statement statement = Main.getDbconn().createStatement();
-            ResultSet result = statement.executeQuery(query);
-
-            if (!result.next()) {
-                ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error: no results returned");
-            }
-
-            String filePath = result.getString("file_path");
-            if (filePath == null) {
-                throw new ServerErrorException("IOError: this file is probably deleted from the filesystem");
-            }
-            imageBytes = getFullImage(ApiSettings.getFullFilePath(filePath), tbNameFull);
-            if (imageBytes == null) {
-                throw new ServerErrorException("SQL error: no results returned from query");
-            }
-
+            filePath = getFilePath(tbNameFull, id);
         } catch (SQLException e) {
             e.printStackTrace();
             throw new ServerErrorException("SQL error");
         }
 
+        byte[] imageBytes = getFullImage(ApiSettings.getFullFilePath(filePath), tbNameFull);
+        if (imageBytes == null) {
+            throw new ServerErrorException("SQL error: no results returned from query");
+        }
+
         return imageBytes;
     }
 
@@ -366,9 +892,10 @@ public class ImageController {
                 "WHERE at.id=" + id + ";";
 
         String jsonOut = "[";
-        try {
-            Statement statement = Main.getDbconn().createStatement();
+        try (Connection conn = Main.getReadConnection(); Statement statement = conn.createStatement()) {
+            long queryStart = System.nanoTime();
             ResultSet result = statement.executeQuery(query);
+            RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
 
             ArrayList<String> jsonEntries = new ArrayList<>();
             while (result.next()) {
@@ -390,6 +917,102 @@ public class ImageController {
         return ResponseEntity.status(HttpStatus.OK).body(jsonOut);
     }
 
+    /**
+     * Gets the tags of many images at once, with a single query. The response is a JSON object mapping each requested
+     * id to its tags (same format as {@link #get_image_tags}), in id order. It is written as the rows arrive instead of
+     * being built in memory first
+     *
+     * @param tbName   DB table name
+     * @param ids      IDs of images in the table (at most {@link #MAX_TAG_BATCH_IDS})
+     * @param response Response to stream the JSON to
+     * @throws IOException
+     */
+    @RequestMapping(value = "/images/get_tags/batch", produces = "application/json")
+    public void get_images_tags(@RequestParam("table_name") String tbName,
+                                @RequestParam("ids") List<Long> ids,
+                                HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (ids.size() > MAX_TAG_BATCH_IDS) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            response.getWriter().write("Cannot request tags for more than " + MAX_TAG_BATCH_IDS + " images at once");
+            return;
+        }
+        long[] sortedIds = ids.stream().mapToLong(Long::longValue).distinct().sorted().toArray();
+
+        Writer out = response.getWriter();
+        try (Connection conn = Main.getReadConnection()) {
+            out.write("{");
+            boolean[] first = {true};
+            queryTagsForImages(conn, tbName, sortedIds, (id, tagsJson) -> {
+                out.write((first[0] ? "" : ",") + "\"" + id + "\": " + tagsJson);
+                first[0] = false;
+            });
+            out.write("}");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (response.isCommitted()) {
+                // too late to change the status; the client gets truncated JSON
+                return;
+            }
+            response.resetBuffer();
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            out.write("SQL error");
+        }
+    }
+
+    /**
+     * Receives the tags of one image at a time, see {@link #queryTagsForImages}
+     */
+    @FunctionalInterface
+    private interface ImageTagsConsumer {
+        void accept(long id, String tagsJson) throws IOException;
+    }
+
+    /**
+     * Gets the tags of several images with a single query. Rows are fetched from the DB in chunks, so large batches
+     * don't have to fit in memory at once
+     *
+     * @param conn      Read connection. It is left in a transaction; give it back to the pool afterwards
+     * @param tbName    DB table name
+     * @param sortedIds Distinct image IDs, in ascending order
+     * @param consumer  Called once per id, in order, with the image's tags as a JSON array (empty if it has none)
+     * @throws SQLException
+     * @throws IOException  If the consumer fails
+     */
+    private static void queryTagsForImages(Connection conn, String tbName, long[] sortedIds,
+                                           ImageTagsConsumer consumer) throws SQLException, IOException {
+        String schemaName = ApiSettings.getSchemaName();
+        String query = "SELECT at.id, at.tag_name, t.nsfw FROM " + schemaName + ".tags t " +
+                "JOIN " + schemaName + "." + tbName + "_tags_join at ON t.tag_name = at.tag_name " +
+                "WHERE at.id = ANY(?) ORDER BY at.id, at.tag_name;";
+
+        // the driver only fetches in chunks inside a transaction
+        conn.setAutoCommit(false);
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setFetchSize(TAG_BATCH_FETCH_SIZE);
+            statement.setArray(1, conn.createArrayOf("bigint", Arrays.stream(sortedIds).boxed().toArray()));
+            long queryStart = System.nanoTime();
+            ResultSet result = statement.executeQuery();
+            RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
+
+            // rows come in id order, so each id's tags are one run of rows
+            boolean hasRow = result.next();
+            for (long id : sortedIds) {
+                StringBuilder tagsJson = new StringBuilder("[");
+                while (hasRow && result.getLong("id") == id) {
+                    if (tagsJson.length() > 1) {
+                        tagsJson.append(',');
+                    }
+                    tagsJson.append("{\"tag_name\": \"").append(JSONValue.escape(result.getString("tag_name")))
+                            .append("\",\"nsfw\": ").append(result.getBoolean("nsfw")).append('}');
+                    hasRow = result.next();
+                }
+                consumer.accept(id, tagsJson.append(']').toString());
+            }
+        }
+    }
+
     /**
      * Adds a tag to an image in the DB
      *
@@ -427,22 +1050,38 @@ public class ImageController {
         String query2 = "INSERT INTO " + schemaName + "." + tagJoinTableName + " (id, tag_name) VALUES (?, ?)" +
                 " ON CONFLICT DO NOTHING;";
 
-        try {
+        try (Connection conn = Main.getWriteConnection();
+             PreparedStatement statement1 = conn.prepareStatement(query1);
+             PreparedStatement statement2 = conn.prepareStatement(query2)) {
             // add tag if not already in tag table
-            PreparedStatement statement1 = Main.getDbconn().prepareStatement(query1);
             statement1.setString(1, tagName);
             statement1.setBoolean(2, nsfwVal);
             statement1.executeUpdate();
+            TagIndex.tagUpserted(tagName, nsfwVal, overwriteNsfwVal);
+
+            boolean maintainArray = TagArrays.isMaintained(schemaName + "." + tbName);
+            if (maintainArray) {
+                conn.setAutoCommit(false);
+                TagArrays.lockRows(conn, schemaName + "." + tbName, List.of(id));
+            }
 
             // add entry into join table
-            PreparedStatement statement2 = Main.getDbconn().prepareStatement(query2);
             statement2.setLong(1, id);
             statement2.setString(2, tagName);
-            statement2.executeUpdate();
+            int inserted = statement2.executeUpdate();
+
+            if (maintainArray) {
+                TagArrays.refresh(conn, schemaName + "." + tbName, List.of(id));
+                conn.commit();
+            }
+            TagIndex.usageChanged(schemaName + "." + tbName, tagName, inserted);
 
         } catch (SQLException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+        } finally {
+            // bump after writing (even partially), so a search that ran before the write can't be cached as fresh
+            publishTagChange(schemaName + "." + tbName, List.of(id), List.of(tagName), overwriteNsfwVal);
         }
 
         return ResponseEntity.status(HttpStatus.OK).body("Successfully added tag");
@@ -488,8 +1127,9 @@ public class ImageController {
         String query2 = "INSERT INTO " + schemaName + "." + tagJoinTableName + " (id, tag_name) VALUES (?, ?)" +
                 " ON CONFLICT DO NOTHING;";
 
-        try (PreparedStatement statement2 = Main.getDbconn().prepareStatement(query2);
-             PreparedStatement statement1 = Main.getDbconn().prepareStatement(query1)) {
+        try (Connection conn = Main.getWriteConnection();
+             PreparedStatement statement2 = conn.prepareStatement(query2);
+             PreparedStatement statement1 = conn.prepareStatement(query1)) {
 
             for (String tagName : tagNames) {
                 for (Long id : ids) {
@@ -507,11 +1147,34 @@ public class ImageController {
 
             // Run batch query
             statement1.executeBatch();
-            statement2.executeBatch();
+            for (String tagName : tagNames) {
+                TagIndex.tagUpserted(tagName, false, overwriteNsfwVal);
+            }
+
+            boolean maintainArray = TagArrays.isMaintained(schemaName + "." + tbName);
+            if (maintainArray) {
+                conn.setAutoCommit(false);
+                TagArrays.lockRows(conn, schemaName + "." + tbName, ids);
+            }
+
+            int[] inserted = statement2.executeBatch();
+
+            if (maintainArray) {
+                TagArrays.refresh(conn, schemaName + "." + tbName, ids);
+                conn.commit();
+            }
+            // batch results are in the order the rows were added: every id for the first tag, then the next tag...
+            for (int i = 0; i < inserted.length; i++) {
+                if (inserted[i] > 0) {
+                    TagIndex.usageChanged(schemaName + "." + tbName, tagNames.get(i / ids.size()), inserted[i]);
+                }
+            }
 
         } catch (SQLException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+        } finally {
+            publishTagChange(schemaName + "." + tbName, ids, tagNames, overwriteNsfwVal);
         }
 
         return ResponseEntity.status(HttpStatus.OK).body("Successfully added tag");
@@ -533,25 +1196,100 @@ public class ImageController {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Cannot have empty tag name in request");
         }
 
+        // as stored by add_tag, and as the tag index and invalidation events know it
         tagName = tagName.replace("'", "''");
         String schemaName = ApiSettings.getSchemaName();
         String tagJoinTableName = tbName + "_tags_join";
-        tagName = tagName.replace("'", "''");
 
-        String query = "DELETE FROM " + schemaName + "." + tagJoinTableName + " WHERE id = '" + id + "'" +
-                " AND tag_name = '" + tagName + "';";
+        String query = "DELETE FROM " + schemaName + "." + tagJoinTableName + " WHERE id = ? AND tag_name = ?;";
 
-        try {
-            Statement statement = Main.getDbconn().createStatement();
-            statement.executeUpdate(query);
+        try (Connection conn = Main.getWriteConnection(); PreparedStatement statement = conn.prepareStatement(query)) {
+            Long parsedId = null;
+            try {
+                parsedId = Long.parseLong(id);
+            } catch (NumberFormatException e) {
+                // matches no rows; nothing to keep in sync
+            }
+            boolean maintainArray = parsedId != null && TagArrays.isMaintained(schemaName + "." + tbName);
+            if (maintainArray) {
+                conn.setAutoCommit(false);
+                TagArrays.lockRows(conn, schemaName + "." + tbName, List.of(parsedId));
+            }
+
+            int deleted = 0;
+            if (parsedId != null) {
+                statement.setLong(1, parsedId);
+                statement.setString(2, tagName);
+                deleted = statement.executeUpdate();
+            }
+
+            if (maintainArray) {
+                TagArrays.refresh(conn, schemaName + "." + tbName, List.of(parsedId));
+                conn.commit();
+            }
+            TagIndex.usageChanged(schemaName + "." + tbName, tagName, -deleted);
         } catch (SQLException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+        } finally {
+            List<Long> ids = new ArrayList<>();
+            try {
+                ids.add(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                // nothing was deleted; still invalidate, just without the id
+            }
+            InvalidationBus.publish(schemaName + "." + tbName, ids, List.of(tagName));
         }
 
         return ResponseEntity.status(HttpStatus.OK).body("Successfully added tag");
     }
 
+    /**
+     * Looks up the path of an image. The DB connection is given back before the caller does any file work
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param id            ID of image in the table
+     * @return Path of the image relative to the file share base directory
+     * @throws ResponseStatusException NOT_FOUND if there is no such image, GONE if its path was removed
+     * @throws SQLException
+     */
+    private static String getFilePath(String fullTableName, long id) throws SQLException {
+        String query = "SELECT file_path FROM " + fullTableName + " WHERE id=" + id + ";";
+
+        try (Connection conn = Main.getReadConnection(); Statement statement = conn.createStatement()) {
+            long queryStart = System.nanoTime();
+            ResultSet result = statement.executeQuery(query);
+            RequestTiming.add(RequestTiming.DB, System.nanoTime() - queryStart);
+
+            if (!result.next()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "SQL error: no results returned");
+            }
+
+            String filePath = result.getString("file_path");
+            if (filePath == null) {
+                throw new ResponseStatusException(HttpStatus.GONE, "IOError: this file is probably deleted from the filesystem");
+            }
+            return filePath;
+        }
+    }
+
+    /**
+     * Invalidates cached data, on this and other replicas, after a tag mutation
+     *
+     * @param fullTableName    Table name ([schema_name].[table_name]) that was tagged
+     * @param ids              IDs of the tagged images
+     * @param tags             Tags that were added
+     * @param nsfwMaybeChanged True if a tag's NSFW flag may have been overwritten, which affects every table
+     */
+    private static void publishTagChange(String fullTableName, List<Long> ids, List<String> tags,
+                                         boolean nsfwMaybeChanged) {
+        if (nsfwMaybeChanged) {
+            InvalidationBus.publish(InvalidationBus.ALL_TABLES, null, tags);
+        } else {
+            InvalidationBus.publish(fullTableName, ids, tags);
+        }
+    }
+
     /**
      * Create a base64 encoded thumbnail for an image
      *
@@ -563,47 +1301,11 @@ public class ImageController {
      * @return
      */
     private String getThumbnailForImageB64(String imagePath, int thumbHeight, String fullTableName) {
-
-        ByteArrayOutputStream boas = new ByteArrayOutputStream();
-        String imgExt = FilenameUtils.getExtension(imagePath);
-        try {
-            BufferedImage img = ImageIO.read(new File(imagePath));
-            BufferedImage imgSmall = null;
-
-            double w = img.getWidth();
-            double h = img.getHeight();
-            int targetWidth = (int) (w * (thumbHeight / h));
-            Image resultingImage = img.getScaledInstance(targetWidth, thumbHeight, Image.SCALE_AREA_AVERAGING | Image.SCALE_FAST);
-            BufferedImage outputImage = new BufferedImage(targetWidth, thumbHeight, BufferedImage.TYPE_INT_RGB);
-            outputImage.getGraphics().drawImage(resultingImage, 0, 0, null);
-            imgSmall = outputImage;
-
-            // convert image to jpg compatible format if necessary
-            if (imgExt.equals("png")) {
-                BufferedImage newBufferedImage = new BufferedImage(imgSmall.getWidth(), imgSmall.getHeight(),
-                        BufferedImage.TYPE_INT_RGB);
-                newBufferedImage.createGraphics().drawImage(imgSmall, 0, 0, Color.WHITE, null);
-                imgSmall = newBufferedImage;
-            }
-            if (!ImageIO.write(imgSmall, "jpg", boas)) {
-                System.out.println("ERROR: Failed to write image to buffer for b64 encoding.");
-                return null;
-            }
-        } catch (IOException e) {
-            System.out.println("ERROR: IO error while trying to encode image" + imagePath + ". \n" + e.getMessage());
-            if (!Files.exists(Path.of(imagePath))) {
-                // keep DB entry but set path to null
-                String relPath = ApiSettings.getPathRelativeToShare(imagePath);
-                try {
-                    Main.removeBrokenPathInDB(relPath, fullTableName);
-                } catch (SQLException sqlException) {
-                    System.out.println("WARNING: Could not delete path from DB: \"" + relPath + "\"");
-                }
-            }
+        byte[] thumbBytes = getThumbnailForImage(imagePath, thumbHeight, fullTableName);
+        if (thumbBytes == null) {
             return null;
         }
-        return Base64.getEncoder().encodeToString(boas.toByteArray());
-
+        return Base64.getEncoder().encodeToString(thumbBytes);
     }
 
     /**
@@ -617,46 +1319,29 @@ public class ImageController {
      * @return Byte array of image
      */
     private byte[] getThumbnailForImage(String imagePath, int thumbHeight, String fullTableName) {
-
-        ByteArrayOutputStream boas = new ByteArrayOutputStream();
-        String imgExt = FilenameUtils.getExtension(imagePath);
+        failIfKnownBroken(imagePath, fullTableName);
+        byte[] cached = ThumbnailCache.get(imagePath, thumbHeight);
+        if (cached != null) {
+            return cached;
+        }
+        ThumbnailPrefetcher.foregroundStarted();
         try {
-            BufferedImage img = ImageIO.read(new File(imagePath));
-            BufferedImage imgSmall = null;
-
-            double w = img.getWidth();
-            double h = img.getHeight();
-            int targetWidth = (int) (w * (thumbHeight / h));
-            Image resultingImage = img.getScaledInstance(targetWidth, thumbHeight, Image.SCALE_AREA_AVERAGING | Image.SCALE_FAST);
-            BufferedImage outputImage = new BufferedImage(targetWidth, thumbHeight, BufferedImage.TYPE_INT_RGB);
-            outputImage.getGraphics().drawImage(resultingImage, 0, 0, null);
-            imgSmall = outputImage;
-
-            // convert image to jpg compatible format if necessary
-            if (imgExt.equals("png")) {
-                BufferedImage newBufferedImage = new BufferedImage(imgSmall.getWidth(), imgSmall.getHeight(),
-                        BufferedImage.TYPE_INT_RGB);
-                newBufferedImage.createGraphics().drawImage(imgSmall, 0, 0, Color.WHITE, null);
-                imgSmall = newBufferedImage;
-            }
-            if (!ImageIO.write(imgSmall, "jpg", boas)) {
+            // the scaled image is all a perceptual hash needs, so hash it here if the image doesn't have one yet
+            byte[] thumbBytes = ImageUtils.createThumbnail(imagePath, thumbHeight,
+                    thumb -> PerceptualIndex.offerThumbnail(fullTableName, imagePath, thumb));
+            if (thumbBytes == null) {
                 System.out.println("ERROR: Failed to write image to buffer for b64 encoding.");
-                return null;
+            } else {
+                ThumbnailCache.put(imagePath, thumbHeight, thumbBytes, false);
             }
+            return thumbBytes;
         } catch (IOException e) {
             System.out.println("ERROR: IO error while trying to encode image" + imagePath + ". \n" + e.getMessage());
-            if (!Files.exists(Path.of(imagePath))) {
-                // keep DB entry but set path to null
-                String relPath = ApiSettings.getPathRelativeToShare(imagePath);
-                try {
-                    Main.removeBrokenPathInDB(relPath, fullTableName);
-                } catch (SQLException sqlException) {
-                    System.out.println("WARNING: Could not delete path from DB: \"" + relPath + "\"");
-                }
-            }
+            reportIfBroken(imagePath, fullTableName);
             return null;
+        } finally {
+            ThumbnailPrefetcher.foregroundFinished();
         }
-        return boas.toByteArray();
     }
 
     /**
@@ -668,28 +1353,11 @@ public class ImageController {
      * @return
      */
     private String getFullImage_b64(String imagePath, String fullTableName) {
-        ByteArrayOutputStream boas = new ByteArrayOutputStream();
-        try {
-            BufferedImage img = ImageIO.read(new File(imagePath));
-            String extension = FilenameUtils.getExtension(imagePath);
-            if (!ImageIO.write(img, extension, boas)) {
-                System.out.println("ERROR: Failed to write image to buffer for b64 encoding.");
-                return null;
-            }
-        } catch (IOException e) {
-            System.out.println("ERROR: IO error while trying to encode image " + imagePath + ". \n" + e.getMessage());
-            if (!Files.exists(Path.of(imagePath))) {
-                // keep DB entry but set path to null
-                String relPath = ApiSettings.getPathRelativeToShare(imagePath);
-                try {
-                    Main.removeBrokenPathInDB(relPath, fullTableName);
-                } catch (SQLException sqlException) {
-                    System.out.println("WARNING: Could not delete path from DB: \"" + relPath + "\"");
-                }
-            }
+        byte[] imageBytes = getFullImage(imagePath, fullTableName);
+        if (imageBytes == null) {
             return null;
         }
-        return Base64.getEncoder().encodeToString(boas.toByteArray());
+        return Base64.getEncoder().encodeToString(imageBytes);
     }
 
     /**
@@ -701,214 +1369,90 @@ public class ImageController {
      * @return
      */
     private byte[] getFullImage(String imagePath, String fullTableName) {
-        ByteArrayOutputStream boas = new ByteArrayOutputStream();
+        failIfKnownBroken(imagePath, fullTableName);
         try {
-            BufferedImage img = ImageIO.read(new File(imagePath));
-            String extension = FilenameUtils.getExtension(imagePath);
-            if (!ImageIO.write(img, extension, boas)) {
+            byte[] imageBytes = ImageUtils.readFullImage(imagePath);
+            if (imageBytes == null) {
                 System.out.println("ERROR: Failed to write image to buffer for b64 encoding.");
-                return null;
             }
+            return imageBytes;
         } catch (IOException e) {
             System.out.println("ERROR: IO error while trying to encode image " + imagePath + ". \n" + e.getMessage());
-            if (!Files.exists(Path.of(imagePath))) {
-                // keep DB entry but set path to null
-                String relPath = ApiSettings.getPathRelativeToShare(imagePath);
-                try {
-                    Main.removeBrokenPathInDB(relPath, fullTableName);
-                } catch (SQLException sqlException) {
-                    System.out.println("WARNING: Could not delete path from DB: \"" + relPath + "\"");
-                }
-            }
+            reportIfBroken(imagePath, fullTableName);
             return null;
         }
-        return boas.toByteArray();
     }
 
     /**
-     * Creates the SQL query for the search request
-     * <p>
-     * NOTE: does not include a terminating semicolon so that this query can be used as a sub-query
+     * Fails fast with 410 GONE if an image's path has already been reported as broken and is waiting to be nulled
      *
-     * @param tbNameFull     Full table name
-     * @param tbName         Table name
-     * @param schemaName     Schema name
-     * @param inputTags      List of tags
-     * @param pageNum        Page number ( use -1 if you want all results)
-     * @param resultsPerPage Number of results per page
-     * @param includeNsfwVal Whether to include NSFW results
-     * @param minWidth       Min width
-     * @param minHeight      Min height
-     * @param aspectRatio    Aspect ratio
-     * @param ascending      Asc/Desc
-     * @param sortBy         Sort by string
-     * @return SQL query to search for images in DB (no trailing ';')
+     * @param imagePath     Full path to an image
+     * @param fullTableName Table name ([schema_name].[table_name]) of image
      */
-    private String createSearchQuery(String tbNameFull, String tbName, String schemaName, String[] inputTags, int pageNum, int resultsPerPage,
-                                     boolean includeNsfwVal, Optional<Integer> minWidth, Optional<Integer> minHeight,
-                                     Optional<Double> aspectRatio, boolean ascending, Optional<String> sortBy) {
-
-        String tagJoinTableName = schemaName + "." + tbName + "_tags_join";
-        String tagTableName = schemaName + "." + "tags";
-        for (int i = 0; i < inputTags.length; i++) {
-            inputTags[i] = inputTags[i].replace("'", "''");
+    private void failIfKnownBroken(String imagePath, String fullTableName) {
+        if (BrokenPathQueue.isPending(ApiSettings.getPathRelativeToShare(imagePath), fullTableName)) {
+            throw new ResponseStatusException(HttpStatus.GONE, "IOError: this file is probably deleted from the filesystem");
         }
+    }
 
-        // Get excluded tags
-        ArrayList<String> excludeTags = new ArrayList<>();
-        for (int i = 0; i < inputTags.length; i++) {
-            if (inputTags[i].startsWith("-")) {
-                excludeTags.add(inputTags[i].replace("-", ""));
-            }
-        }
-        // Remove excluded tags from input tags
-        ArrayList<String> newTags = new ArrayList<>();
-        for (String tag : inputTags) {
-            if (!tag.startsWith("-")) {
-                newTags.add(tag);
-            }
-        }
-        String[] tags = newTags.toArray(String[]::new);
-
-        String excludeString = "'" + String.join("','", excludeTags.toArray(String[]::new)) + "'";
-        boolean excludingTags = excludeTags.size() > 0;
-
-        // Main query
-        String fullQuery = createBaseQuery(tbNameFull, tagJoinTableName, tagTableName, tags, includeNsfwVal, excludingTags);
-
-        // Filter query if applicable
-        boolean hExists = minHeight.isPresent();
-        boolean wExists = minWidth.isPresent();
-        boolean arExists = aspectRatio.isPresent();
-        boolean doSubQuery = hExists || wExists || arExists;
-        String extraFilteringString = "";
-
-        // Need to create this subquery if either filtering or excluding tags
-        if(doSubQuery || excludingTags){
-            String filterSelectPrefix = (excludingTags) ? "s1.id" : "*";
-            fullQuery = "SELECT " + filterSelectPrefix + " FROM ( " + fullQuery + ") AS s1 ";
+    /**
+     * Handles a failed image read. If the file no longer exists, its path is queued to be nulled in the DB (see
+     * {@link BrokenPathQueue}) and the request fails fast with 410 GONE instead of waiting on the DB
+     *
+     * @param imagePath     Full path to an image
+     * @param fullTableName Table name ([schema_name].[table_name]) of image
+     */
+    private void reportIfBroken(String imagePath, String fullTableName) {
+        if (!Files.exists(Path.of(imagePath))) {
+            // keep DB entry but set path to null
+            BrokenPathQueue.report(ApiSettings.getPathRelativeToShare(imagePath), fullTableName);
+            throw new ResponseStatusException(HttpStatus.GONE, "IOError: this file is probably deleted from the filesystem");
         }
+    }
 
-        // Back to filtering stuff
-        if (doSubQuery) {
-            extraFilteringString = "WHERE ";
-
-
-            // Build filtering "WHERE" clause
-            if (hExists) {
-                extraFilteringString += "resolution_height >= " + minHeight.get() + " ";
-                if (wExists) {
-                    extraFilteringString += "AND ";
-                }
-            }
-            if (wExists) {
-                extraFilteringString += "resolution_width >= " + minWidth.get() + " ";
-                if (arExists) {
-                    extraFilteringString += "AND ";
-                }
-            }
-            if (arExists) {
-                String sign = "=";
-                if (aspectRatio.get() > 1.0) {
-                    sign = ">=";
-                } else if (aspectRatio.get() < 1.0) {
-                    sign = "<=";
-                }
-                extraFilteringString += "CAST(resolution_width AS FLOAT) / CAST(resolution_height AS FLOAT) " + sign + " " + aspectRatio.get() + " ";
+    /**
+     * Gets the DB timing histogram for a search query's shape. Tag counts are bucketed so the number of label
+     * combinations stays small
+     *
+     * @param kind        "page", "count", "federated" or "random"
+     * @param inputTags   List of tags (excluded tags start with '-')
+     * @param minWidth    Min width
+     * @param minHeight   Min height
+     * @param aspectRatio Aspect ratio
+     * @param sortBy      Sort by string
+     * @return Histogram for the query shape
+     */
+    private static Metrics.Histogram searchQueryTimer(String kind, String[] inputTags, Optional<Integer> minWidth,
+                                                      Optional<Integer> minHeight, Optional<Double> aspectRatio,
+                                                      Optional<String> sortBy) {
+        int numExclude = 0;
+        for (String tag : inputTags) {
+            if (tag.startsWith("-")) {
+                numExclude++;
             }
         }
-
-        // Tertiary query if applicable
-        if (excludingTags) {
-            fullQuery = "SELECT * FROM (" + fullQuery;
-            fullQuery += "JOIN " + tagJoinTableName + " xat ON (s1.id) = (xat.id)" +
-                    "GROUP BY (s1.id)" +
-                    "HAVING MAX(CASE WHEN xat.tag_name IN ("+ excludeString + ") THEN 1 ELSE 0 END) = 0";
-            fullQuery += ") AS s2 JOIN " + tbNameFull + " j ON s2.id = j.id ";
-        }
-
-        // Add extra filtering to end of query
-        fullQuery += extraFilteringString;
-
-        // Add Sorting to end of query
-        String sortBySql = "ORDER BY ";
-        String ascDescString = (ascending) ? "ASC " : "DESC ";
-        String sortByPrefix = (excludingTags)? "j." : "";
-        switch ((sortBy.isPresent()) ? sortBy.get().toLowerCase() : "") {
+        int numInclude = inputTags.length - numExclude;
+        boolean filtered = minWidth.isPresent() || minHeight.isPresent() || aspectRatio.isPresent();
+        String sort = sortBy.map(String::toLowerCase).orElse("id");
+        switch (sort) {
             case "height":
-                sortBySql += sortByPrefix + "resolution_height " + ascDescString;
-                break;
             case "width":
-                sortBySql += sortByPrefix + "resolution_width " + ascDescString;
-                break;
             case "file_size":
-                sortBySql += sortByPrefix + "file_size_bytes " + ascDescString;
-                break;
             case "aspect_ratio":
-                sortBySql += sortByPrefix + "resolution_width * " + sortByPrefix + "resolution_height " + ascDescString;
                 break;
-        }
-        sortBySql += ((sortBy.isPresent()) ? "," : "") + " " + sortByPrefix + "id " + ascDescString;
-
-        fullQuery += sortBySql;
-
-        // End of main query
-        if (pageNum >= 0) {
-            fullQuery += " OFFSET " + pageNum * resultsPerPage + " LIMIT " + resultsPerPage;
+            default:
+                sort = "id";
         }
 
-        return fullQuery;
+        return Metrics.histogram("bmedia_search_query_seconds", "DB time of search queries by query shape",
+                Metrics.LATENCY_BUCKETS, "kind", kind, "include_tags", bucketTagCount(numInclude),
+                "exclude_tags", bucketTagCount(numExclude), "filtered", String.valueOf(filtered), "sort", sort);
     }
 
-    /**
-     * Creates the base query that would run with minimum parameters, but makes changes that are necessary if there are
-     * more parameters specified
-     *
-     * @param tbNameFull Full tablename ( [schema].[table] )
-     * @param tagJoinTableName Full table name for the tag join table
-     * @param tagTableName Name only of tag table
-     * @param tags list of tags to include in search
-     * @param includeNsfwVal True/False include NSFW
-     * @param excludingTags This should be true if the subsequent queries will account for excluding tags
-     * @return Base query as a String
-     */
-    private String createBaseQuery(String tbNameFull, String tagJoinTableName, String tagTableName, String[] tags, boolean includeNsfwVal, boolean excludingTags) {
-        int numTags = tags.length;
-        String tagString = "'" + String.join("','", tags) + "'";
-        String nsfwString1 = "";
-        String nsfwString2 = "";
-        String nsfwJoinString = "";
-        if (!includeNsfwVal) {
-            nsfwJoinString += "JOIN " + tagTableName + " t ON at.tag_name = t.tag_name ";
-            nsfwString1 += "t.nsfw = TRUE ";
-            nsfwString2 += "MAX(CASE t.nsfw WHEN TRUE THEN 1 ELSE 0 END) = 0 ";
-        }
-        String includeNonExclude = "";
-
-        if (!excludingTags) {
-            includeNonExclude = ",a.md5,a.filename,a.resolution_width,a.resolution_height,a.file_size_bytes";
-        }
-
-        String query = "SELECT a.id" + includeNonExclude +
-                " FROM " + tbNameFull + " a JOIN " + tagJoinTableName + " at ON (a.id) = (at.id) " +
-                nsfwJoinString;
-
-        // Query with no specified tags
-        if (numTags == 0) {
-            if (!includeNsfwVal) {
-                nsfwString2 = "HAVING " + nsfwString2;
-            }
-            query += " WHERE NOT a.file_path IS NULL " +
-                    "GROUP BY (a.id)" + nsfwString2;
-        } else {
-            if (!includeNsfwVal) {
-                nsfwString1 = "OR  " + nsfwString1;
-                nsfwString2 = " AND " + nsfwString2;
-            }
-            query += "WHERE NOT a.file_path IS NULL AND at.tag_name IN (" + tagString + ") " + nsfwString1 +
-                    "GROUP BY (a.id) HAVING COUNT(at.tag_name) >= " + numTags + " " + nsfwString2;
+    private static String bucketTagCount(int count) {
+        if (count <= 1) {
+            return String.valueOf(count);
         }
-
-        return query;
+        return (count < 5) ? "2-4" : "5+";
     }
 }
@@ -0,0 +1,265 @@
+package org.bmedia;
+
+import org.json.simple.JSONValue;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An image row from a search result
+ */
+public class ImageRow {
+
+    /**
+     * Every column a row can be read from, in select list and JSON order
+     */
+    public static final List<String> COLUMNS = List.of("id", "md5", "filename", "resolution_width",
+            "resolution_height", "file_size_bytes", "file_path", "blurhash");
+
+    private final long id;
+    private final String md5;
+    private final String filename;
+    private final int resolutionWidth;
+    private final int resolutionHeight;
+    private final int fileSizeBytes;
+    private final String filePath;
+    private final String blurHash;
+
+    /**
+     * Main constructor
+     *
+     * @param id               Image ID
+     * @param md5              md5 of the image file
+     * @param filename         Image file name
+     * @param resolutionWidth  Width (pixels)
+     * @param resolutionHeight Height (pixels)
+     * @param fileSizeBytes    File size
+     */
+    public ImageRow(long id, String md5, String filename, int resolutionWidth, int resolutionHeight, int fileSizeBytes) {
+        this(id, md5, filename, resolutionWidth, resolutionHeight, fileSizeBytes, null);
+    }
+
+    /**
+     * Constructor for rows that also carry the image's file path
+     *
+     * @param id               Image ID
+     * @param md5              md5 of the image file
+     * @param filename         Image file name
+     * @param resolutionWidth  Width (pixels)
+     * @param resolutionHeight Height (pixels)
+     * @param fileSizeBytes    File size
+     * @param filePath         Path of the image relative to the file share base directory
+     */
+    public ImageRow(long id, String md5, String filename, int resolutionWidth, int resolutionHeight, int fileSizeBytes,
+                    String filePath) {
+        this(id, md5, filename, resolutionWidth, resolutionHeight, fileSizeBytes, filePath, null);
+    }
+
+    /**
+     * Constructor for rows that also carry the image's placeholder
+     *
+     * @param id               Image ID
+     * @param md5              md5 of the image file
+     * @param filename         Image file name
+     * @param resolutionWidth  Width (pixels)
+     * @param resolutionHeight Height (pixels)
+     * @param fileSizeBytes    File size
+     * @param filePath         Path of the image relative to the file share base directory
+     * @param blurHash         BlurHash placeholder of the image (see {@link Placeholders}), or null
+     */
+    public ImageRow(long id, String md5, String filename, int resolutionWidth, int resolutionHeight, int fileSizeBytes,
+                    String filePath, String blurHash) {
+        this.id = id;
+        this.md5 = md5;
+        this.filename = filename;
+        this.resolutionWidth = resolutionWidth;
+        this.resolutionHeight = resolutionHeight;
+        this.fileSizeBytes = fileSizeBytes;
+        this.filePath = filePath;
+        this.blurHash = blurHash;
+    }
+
+    /**
+     * Reads the current row of a search result. Only the columns of {@link #COLUMNS} the result has are read; the
+     * others are left null/0 (see {@link SearchQuery}'s field selection)
+     *
+     * @param result Search result, positioned on a row
+     * @return Image row
+     * @throws SQLException
+     */
+    public static ImageRow fromResultSet(ResultSet result) throws SQLException {
+        long id = 0;
+        String md5 = null;
+        String filename = null;
+        int resolutionWidth = 0;
+        int resolutionHeight = 0;
+        int fileSizeBytes = 0;
+        String filePath = null;
+        String blurHash = null;
+        // by index in one pass, instead of a by-name lookup (and a possible missing column error) per column
+        ResultSetMetaData metaData = result.getMetaData();
+        for (int i = metaData.getColumnCount(); i >= 1; i--) {
+            switch (metaData.getColumnLabel(i).toLowerCase()) {
+                case "id":
+                    // the first "id" wins, like a by-name lookup
+                    id = result.getLong(i);
+                    break;
+                case "md5":
+                    md5 = result.getString(i);
+                    break;
+                case "filename":
+                    filename = result.getString(i);
+                    break;
+                case "resolution_width":
+                    resolutionWidth = result.getInt(i);
+                    break;
+                case "resolution_height":
+                    resolutionHeight = result.getInt(i);
+                    break;
+                case "file_size_bytes":
+                    fileSizeBytes = result.getInt(i);
+                    break;
+                case "file_path":
+                    filePath = result.getString(i);
+                    break;
+                case "blurhash":
+                    blurHash = result.getString(i);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new ImageRow(id, md5, filename, resolutionWidth, resolutionHeight, fileSizeBytes, filePath, blurHash);
+    }
+
+    /**
+     * Serializes the row as a JSON object
+     *
+     * @param extraFields Extra JSON fields to add to the object (must start with a ','), or null
+     * @return JSON object
+     */
+    public String toJson(String extraFields) {
+        return toJson(extraFields, null);
+    }
+
+    /**
+     * Serializes some of the row's columns as a JSON object
+     *
+     * @param extraFields Extra JSON fields to add to the object (must start with a ','), or null
+     * @param fields      Columns of {@link #COLUMNS} to include (id is always included), or null for the default set
+     *                    (every column but file_path)
+     * @return JSON object
+     */
+    public String toJson(String extraFields, Set<String> fields) {
+        if (fields != null) {
+            StringBuilder json = new StringBuilder("{\"id\": ").append(id);
+            for (String field : COLUMNS) {
+                if (!fields.contains(field) || field.equals("id")) {
+                    continue;
+                }
+                Object value = getColumn(field);
+                if (value == null) {
+                    continue;
+                }
+                json.append(",\"").append(field).append("\": ");
+                if (value instanceof String) {
+                    json.append("\"").append(JSONValue.escape((String) value)).append("\"");
+                } else {
+                    json.append(value);
+                }
+            }
+            if (extraFields != null) {
+                json.append(extraFields);
+            }
+            return json.append("}").toString();
+        }
+
+        String jsonEntry = "{" +
+                "\"id\": " + id + "," +
+                "\"md5\": \"" + md5 + "\"," +
+                "\"filename\": \"" + filename + "\"," +
+                "\"resolution_width\": " + resolutionWidth + "," +
+                "\"resolution_height\": " + resolutionHeight + "," +
+                "\"file_size_bytes\": " + fileSizeBytes;
+        if (blurHash != null) {
+            // BlurHash characters never need escaping in JSON
+            jsonEntry += ",\"blurhash\": \"" + blurHash + "\"";
+        }
+        if (extraFields != null) {
+            jsonEntry += extraFields;
+        }
+        return jsonEntry + "}";
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public int getResolutionWidth() {
+        return resolutionWidth;
+    }
+
+    public int getResolutionHeight() {
+        return resolutionHeight;
+    }
+
+    public int getFileSizeBytes() {
+        return fileSizeBytes;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    private Object getColumn(String column) {
+        switch (column) {
+            case "id":
+                return id;
+            case "md5":
+                return md5;
+            case "filename":
+                return filename;
+            case "resolution_width":
+                return resolutionWidth;
+            case "resolution_height":
+                return resolutionHeight;
+            case "file_size_bytes":
+                return fileSizeBytes;
+            case "file_path":
+                return filePath;
+            case "blurhash":
+                return blurHash;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Estimates the memory used by this row, for weighing cache entries
+     *
+     * @return Approximate size in bytes
+     */
+    public long estimateBytes() {
+        // object header and fields, plus the strings' headers and (Latin-1) contents
+        return 48 + stringBytes(md5) + stringBytes(filename) + stringBytes(filePath) + stringBytes(blurHash);
+    }
+
+    private static long stringBytes(String s) {
+        return (s == null) ? 0 : 40 + s.length();
+    }
+}
@@ -0,0 +1,212 @@
+package org.bmedia;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Image decode/scale/encode pipeline used by the image endpoints. Every step is timed (see {@link Metrics} and
+ * {@link RequestTiming})
+ */
+public class ImageUtils {
+
+    /**
+     * Reads and decodes an image file
+     *
+     * @param imagePath Full path to an image
+     * @return Decoded image
+     * @throws IOException If the file can't be read or isn't a supported image format
+     */
+    public static BufferedImage readImage(String imagePath) throws IOException {
+        // read the whole file first so file share latency and decode time can be told apart
+        long start = System.nanoTime();
+        byte[] fileBytes = Files.readAllBytes(Path.of(imagePath));
+        long readNanos = System.nanoTime() - start;
+        Metrics.IMAGE_FILE_READ.observeNanos(readNanos);
+        Metrics.IMAGE_SOURCE_BYTES.observe(fileBytes.length);
+        RequestTiming.add(RequestTiming.FILE_READ, readNanos);
+
+        start = System.nanoTime();
+        BufferedImage img = ImageCodec.decode(fileBytes, 0);
+        if (img == null) {
+            throw new IOException("Unsupported image format: " + imagePath);
+        }
+        long decodeNanos = System.nanoTime() - start;
+        Metrics.IMAGE_DECODE.observeNanos(decodeNanos);
+        RequestTiming.add(RequestTiming.DECODE, decodeNanos);
+        return img;
+    }
+
+    /**
+     * Reads and decodes an image file at reduced resolution. Only every n-th pixel of every n-th row is decoded, with n
+     * chosen so that neither side ends up smaller than minSide, which is much cheaper than decoding the full image when
+     * only a small version is needed
+     *
+     * @param imagePath Full path to an image
+     * @param minSide   Min width and height (pixels) of the decoded image, unless the image itself is smaller
+     * @return Decoded image
+     * @throws IOException If the file can't be read or isn't a supported image format
+     */
+    public static BufferedImage readImageSubsampled(String imagePath, int minSide) throws IOException {
+        long start = System.nanoTime();
+        byte[] fileBytes = Files.readAllBytes(Path.of(imagePath));
+        long readNanos = System.nanoTime() - start;
+        Metrics.IMAGE_FILE_READ.observeNanos(readNanos);
+        Metrics.IMAGE_SOURCE_BYTES.observe(fileBytes.length);
+        RequestTiming.add(RequestTiming.FILE_READ, readNanos);
+
+        start = System.nanoTime();
+        BufferedImage img = ImageCodec.decode(fileBytes, minSide);
+        if (img == null) {
+            throw new IOException("Unsupported image format: " + imagePath);
+        }
+        long decodeNanos = System.nanoTime() - start;
+        Metrics.IMAGE_DECODE.observeNanos(decodeNanos);
+        RequestTiming.add(RequestTiming.DECODE, decodeNanos);
+        return img;
+    }
+
+    /**
+     * Computes the 64-bit difference hash (dHash) of an image. The image is reduced to 9x8 grayscale cells, and each bit
+     * says whether a cell is brighter than its right neighbour. Resized or re-encoded copies of an image get the same or
+     * a very similar hash, so the Hamming distance between hashes measures how alike two images look
+     *
+     * @param img Image, ideally already small (e.g. a thumbnail)
+     * @return dHash
+     */
+    public static long dHash(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int[] pixels = img.getRGB(0, 0, w, h, null, 0, w);
+
+        // average luminance of each cell
+        double[][] cells = new double[8][9];
+        for (int cy = 0; cy < 8; cy++) {
+            int y0 = cy * h / 8;
+            int y1 = Math.max(y0 + 1, (cy + 1) * h / 8);
+            for (int cx = 0; cx < 9; cx++) {
+                int x0 = cx * w / 9;
+                int x1 = Math.max(x0 + 1, (cx + 1) * w / 9);
+                long sum = 0;
+                for (int y = y0; y < Math.min(y1, h); y++) {
+                    for (int x = x0; x < Math.min(x1, w); x++) {
+                        int rgb = pixels[y * w + x];
+                        sum += (((rgb >> 16) & 0xFF) * 299 + ((rgb >> 8) & 0xFF) * 587 + (rgb & 0xFF) * 114) / 1000;
+                    }
+                }
+                cells[cy][cx] = sum / (double) Math.max(1, (Math.min(y1, h) - y0) * (Math.min(x1, w) - x0));
+            }
+        }
+
+        long hash = 0;
+        for (int cy = 0; cy < 8; cy++) {
+            for (int cx = 0; cx < 8; cx++) {
+                hash = (hash << 1) | ((cells[cy][cx] > cells[cy][cx + 1]) ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Scales an image to a given height, keeping its aspect ratio
+     *
+     * @param img         Image to scale
+     * @param thumbHeight Height (pixels) of the scaled image
+     * @return Scaled RGB image
+     */
+    public static BufferedImage scaleToHeight(BufferedImage img, int thumbHeight) {
+        long start = System.nanoTime();
+        double w = img.getWidth();
+        double h = img.getHeight();
+        int targetWidth = (int) (w * (thumbHeight / h));
+        Image resultingImage = img.getScaledInstance(targetWidth, thumbHeight, Image.SCALE_AREA_AVERAGING | Image.SCALE_FAST);
+        BufferedImage outputImage = new BufferedImage(targetWidth, thumbHeight, BufferedImage.TYPE_INT_RGB);
+        outputImage.getGraphics().drawImage(resultingImage, 0, 0, null);
+        long resizeNanos = System.nanoTime() - start;
+        Metrics.IMAGE_RESIZE.observeNanos(resizeNanos);
+        RequestTiming.add(RequestTiming.RESIZE, resizeNanos);
+        return outputImage;
+    }
+
+    /**
+     * Encodes an image
+     *
+     * @param img      Image to encode
+     * @param format   ImageIO format name, e.g. "jpg"
+     * @param endpoint Endpoint the image is for ({@link ImageCodec#THUMBNAIL} or {@link ImageCodec#FULL_IMAGE}), which
+     *                 selects the JPEG settings
+     * @return Encoded bytes, or null if there is no writer for the format
+     * @throws IOException
+     */
+    public static byte[] encode(BufferedImage img, String format, String endpoint) throws IOException {
+        long start = System.nanoTime();
+        byte[] bytes = ImageCodec.encode(img, format, endpoint);
+        if (bytes == null) {
+            return null;
+        }
+        long encodeNanos = System.nanoTime() - start;
+        Metrics.IMAGE_ENCODE.observeNanos(encodeNanos);
+        RequestTiming.add(RequestTiming.ENCODE, encodeNanos);
+        Metrics.IMAGE_ENCODED_BYTES.observe(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Creates a JPEG thumbnail for an image
+     *
+     * @param imagePath   Full path to an image
+     * @param thumbHeight Height (pixels) of thumbnail image (width will be whatever is required to keep the aspect ratio
+     *                    for the given height)
+     * @return JPEG bytes, or null if the image couldn't be encoded
+     * @throws IOException If the file can't be read
+     */
+    public static byte[] createThumbnail(String imagePath, int thumbHeight) throws IOException {
+        return createThumbnail(imagePath, thumbHeight, null);
+    }
+
+    /**
+     * Creates a JPEG thumbnail for an image, and hands the scaled image to a callback before encoding it, so other work
+     * that needs a small version of the image (e.g. {@link #dHash(BufferedImage)}) doesn't have to decode it again
+     *
+     * @param imagePath   Full path to an image
+     * @param thumbHeight Height (pixels) of thumbnail image (width will be whatever is required to keep the aspect ratio
+     *                    for the given height)
+     * @param onScaled    Called with the scaled image, or null
+     * @return JPEG bytes, or null if the image couldn't be encoded
+     * @throws IOException If the file can't be read
+     */
+    public static byte[] createThumbnail(String imagePath, int thumbHeight, Consumer<BufferedImage> onScaled)
+            throws IOException {
+        String imgExt = FilenameUtils.getExtension(imagePath);
+        BufferedImage imgSmall = scaleToHeight(readImage(imagePath), thumbHeight);
+        if (onScaled != null) {
+            onScaled.accept(imgSmall);
+        }
+
+        // convert image to jpg compatible format if necessary
+        if (imgExt.equals("png")) {
+            BufferedImage newBufferedImage = new BufferedImage(imgSmall.getWidth(), imgSmall.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            newBufferedImage.createGraphics().drawImage(imgSmall, 0, 0, Color.WHITE, null);
+            imgSmall = newBufferedImage;
+        }
+        return encode(imgSmall, "jpg", ImageCodec.THUMBNAIL);
+    }
+
+    /**
+     * Reads an image and re-encodes it in the format matching its file extension
+     *
+     * @param imagePath Full path to an image
+     * @return Encoded bytes, or null if the image couldn't be encoded
+     * @throws IOException If the file can't be read
+     */
+    public static byte[] readFullImage(String imagePath) throws IOException {
+        BufferedImage img = readImage(imagePath);
+        return encode(img, FilenameUtils.getExtension(imagePath), ImageCodec.FULL_IMAGE);
+    }
+}
@@ -0,0 +1,323 @@
+package org.bmedia;
+
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scans the media tables for paths that no longer exist on the file share and queues them to be nulled (see
+ * {@link BrokenPathQueue}).
+ * <p>
+ * Rows are streamed from the DB with a cursor, ordered by path in byte order, so that all files in a directory arrive
+ * before the scan leaves that directory's subtree. Each directory is then checked with a single listing instead of one
+ * stat per file, which matters a lot on NFS where
+ * every round trip is expensive. Directories are checked in parallel by a bounded number of threads
+ */
+public class IntegrityScanner {
+
+    private static final int FETCH_SIZE = 2000;
+    private static final long PROGRESS_LOG_INTERVAL = 50000;
+
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+    private static ScheduledExecutorService scheduler = null;
+
+    // Progress/results of the current (or last) scan
+    private static volatile String currentTable = null;
+    private static volatile long startedAtMillis = 0;
+    private static volatile long finishedAtMillis = 0;
+    private static volatile String lastError = null;
+    private static final AtomicLong rowsScanned = new AtomicLong();
+    private static final AtomicLong directoriesChecked = new AtomicLong();
+    private static final AtomicLong missingFiles = new AtomicLong();
+    private static final AtomicLong sizeMismatches = new AtomicLong();
+
+    /**
+     * Starts the scan scheduler. Scans run every {@link ApiSettings#getIntegrityScanIntervalMinutes()} minutes, and can
+     * also be triggered manually with {@link #triggerScan()}
+     */
+    public synchronized static void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "integrity-scanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = ApiSettings.getIntegrityScanIntervalMinutes();
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(IntegrityScanner::scanAllTables, interval, interval, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Starts a scan in the background if one is not already running
+     *
+     * @return True if a new scan was started
+     */
+    public static boolean triggerScan() {
+        if (scheduler == null || running.get()) {
+            return false;
+        }
+        scheduler.submit(IntegrityScanner::scanAllTables);
+        return true;
+    }
+
+    /**
+     * Gets the progress of the running scan, or the results of the last scan, as JSON
+     *
+     * @return Scan status JSON
+     */
+    public static String getStatusJson() {
+        return "{" +
+                "\"running\": " + running.get() + "," +
+                "\"current_table\": " + ((currentTable == null) ? "null" : "\"" + currentTable + "\"") + "," +
+                "\"started_at_millis\": " + startedAtMillis + "," +
+                "\"finished_at_millis\": " + finishedAtMillis + "," +
+                "\"rows_scanned\": " + rowsScanned.get() + "," +
+                "\"directories_checked\": " + directoriesChecked.get() + "," +
+                "\"missing_files\": " + missingFiles.get() + "," +
+                "\"size_mismatches\": " + sizeMismatches.get() + "," +
+                "\"last_error\": " + ((lastError == null) ? "null" : "\"" + JSONValue.escape(lastError) + "\"") +
+                "}";
+    }
+
+    /**
+     * Scans every media table
+     */
+    private static void scanAllTables() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        startedAtMillis = System.currentTimeMillis();
+        finishedAtMillis = 0;
+        lastError = null;
+        rowsScanned.set(0);
+        directoriesChecked.set(0);
+        missingFiles.set(0);
+        sizeMismatches.set(0);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, ApiSettings.getIntegrityScanThreads()), r -> {
+            Thread thread = new Thread(r, "integrity-scanner-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            if (!isShareAvailable()) {
+                lastError = "File share \"" + ApiSettings.getFileShareBaseDir() + "\" is empty or unavailable, skipping scan";
+                System.out.println("WARNING: " + lastError);
+                return;
+            }
+
+            System.out.println("INFO: Starting file share integrity scan");
+            for (String tbName : Main.getMediaTableNames()) {
+                currentTable = tbName;
+                scanTable(ApiSettings.getSchemaName() + "." + tbName, pool);
+            }
+            System.out.println("INFO: Finished file share integrity scan. " + getStatusJson());
+        } catch (SQLException | InterruptedException e) {
+            lastError = e.getMessage();
+            System.out.println("ERROR: File share integrity scan failed:\n" + e.getMessage());
+        } catch (RuntimeException e) {
+            lastError = e.toString();
+            e.printStackTrace();
+        } finally {
+            pool.shutdownNow();
+            currentTable = null;
+            finishedAtMillis = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+
+    /**
+     * Streams all paths of a table and checks them one directory at a time
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param pool          Pool to run the directory checks on
+     * @throws SQLException
+     * @throws InterruptedException
+     */
+    private static void scanTable(String fullTableName, ExecutorService pool) throws SQLException, InterruptedException {
+        String query = "SELECT id, file_path, file_size_bytes FROM " + fullTableName +
+                " WHERE file_path IS NOT NULL ORDER BY file_path COLLATE \"C\";";
+
+        int threads = Math.max(1, ApiSettings.getIntegrityScanThreads());
+        // bounds the number of directories that are queued or being checked at once, so memory stays flat
+        Semaphore inFlight = new Semaphore(threads * 2);
+        boolean checkSize = ApiSettings.getIntegrityScanCheckSize();
+
+        try (Connection conn = Main.createDbConnection()) {
+            // the driver only uses a cursor inside a transaction
+            conn.setAutoCommit(false);
+            try (PreparedStatement statement = conn.prepareStatement(query)) {
+                statement.setFetchSize(FETCH_SIZE);
+                ResultSet result = statement.executeQuery();
+
+                // in byte order a directory's whole subtree is contiguous, but its files and its subdirectories
+                // interleave. So a directory stays open until the scan leaves its subtree, and is listed once
+                LinkedHashMap<String, ArrayList<ScanEntry>> openDirs = new LinkedHashMap<>();
+                while (result.next()) {
+                    String relPath = result.getString("file_path");
+                    ScanEntry entry = new ScanEntry(relPath, result.getLong("file_size_bytes"));
+
+                    String dir = parentOf(relPath);
+                    Iterator<Map.Entry<String, ArrayList<ScanEntry>>> open = openDirs.entrySet().iterator();
+                    while (open.hasNext()) {
+                        Map.Entry<String, ArrayList<ScanEntry>> openDir = open.next();
+                        if (!isSameOrAncestor(openDir.getKey(), dir)) {
+                            submitDirectory(openDir.getKey(), openDir.getValue(), fullTableName, checkSize, pool,
+                                    inFlight);
+                            open.remove();
+                        }
+                    }
+                    openDirs.computeIfAbsent(dir, d -> new ArrayList<>()).add(entry);
+
+                    if (rowsScanned.incrementAndGet() % PROGRESS_LOG_INTERVAL == 0) {
+                        System.out.println("INFO: Integrity scan progress: " + getStatusJson());
+                    }
+                }
+                for (Map.Entry<String, ArrayList<ScanEntry>> openDir : openDirs.entrySet()) {
+                    submitDirectory(openDir.getKey(), openDir.getValue(), fullTableName, checkSize, pool, inFlight);
+                }
+            }
+            conn.commit();
+        }
+
+        // wait for all directory checks of this table to finish
+        inFlight.acquire(threads * 2);
+        inFlight.release(threads * 2);
+    }
+
+    private static void submitDirectory(String relDir, List<ScanEntry> entries, String fullTableName, boolean checkSize,
+                                        ExecutorService pool, Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                checkDirectory(relDir, entries, fullTableName, checkSize);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Checks all DB entries of a single directory against one listing of that directory
+     *
+     * @param relDir        Directory relative to the file share base directory
+     * @param entries       DB entries in the directory
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param checkSize     If true, compare file sizes to the DB
+     */
+    private static void checkDirectory(String relDir, List<ScanEntry> entries, String fullTableName, boolean checkSize) {
+        Path dir = Path.of(ApiSettings.getFullFilePath(relDir));
+        HashSet<String> names = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                names.add(child.getFileName().toString());
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            // whole directory is gone, every entry in it is missing. Unless the share itself dropped out (e.g. an NFS
+            // hiccup), which would look the same and must not null a whole directory of paths
+            Path parent = relDir.isEmpty() ? null : dir.getParent();
+            if (!isShareAvailable() || (parent != null && !Files.isDirectory(parent)) || Files.exists(dir)) {
+                System.out.println("WARNING: Integrity scan could not list \"" + dir + "\" and could not confirm " +
+                        "it is gone, skipping it: " + e.getMessage());
+                return;
+            }
+        } catch (IOException e) {
+            // can't tell what is missing, so don't touch anything in this directory
+            System.out.println("WARNING: Integrity scan could not list \"" + dir + "\": " + e.getMessage());
+            return;
+        }
+        directoriesChecked.incrementAndGet();
+
+        for (ScanEntry entry : entries) {
+            String name = entry.relPath.substring(entry.relPath.lastIndexOf('/') + 1);
+            if (!names.contains(name)) {
+                missingFiles.incrementAndGet();
+                BrokenPathQueue.report(entry.relPath, fullTableName);
+                continue;
+            }
+            if (checkSize && entry.sizeBytes > 0) {
+                try {
+                    long size = Files.size(Path.of(ApiSettings.getFullFilePath(entry.relPath)));
+                    if (size != entry.sizeBytes) {
+                        sizeMismatches.incrementAndGet();
+                        System.out.println("WARNING: Size of \"" + entry.relPath + "\" is " + size + " bytes, DB has " +
+                                entry.sizeBytes + " bytes");
+                    }
+                } catch (IOException e) {
+                    // file disappeared between the listing and the stat, the next scan will catch it
+                }
+            }
+        }
+    }
+
+    /**
+     * Guards against nulling every path in the DB when the file share isn't mounted
+     *
+     * @return True if the file share base directory exists and has something in it
+     */
+    static boolean isShareAvailable() {
+        String baseDir = ApiSettings.getFileShareBaseDir();
+        if (baseDir == null) {
+            return false;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Path.of(baseDir))) {
+            return stream.iterator().hasNext();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param dir   Directory relative to the file share base directory
+     * @param other Another relative directory
+     * @return True if other is dir or inside it
+     */
+    private static boolean isSameOrAncestor(String dir, String other) {
+        return dir.isEmpty() || other.equals(dir) || other.startsWith(dir + "/");
+    }
+
+    private static String parentOf(String relPath) {
+        int idx = relPath.lastIndexOf('/');
+        return (idx < 0) ? "" : relPath.substring(0, idx);
+    }
+
+    /**
+     * Path and size of a file as stored in the DB
+     */
+    private static class ScanEntry {
+        private final String relPath;
+        private final long sizeBytes;
+
+        private ScanEntry(String relPath, long sizeBytes) {
+            this.relPath = relPath;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+}
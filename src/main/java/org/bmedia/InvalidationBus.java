@@ -0,0 +1,403 @@
+package org.bmedia;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps in-process state (search cache, tag data) consistent across API replicas.
+ * <p>
+ * Code that changes the DB calls {@link #publish(String, Collection, Collection)}. The change is applied locally right
+ * away (the table's {@link TableGenerations generation} is bumped and listeners are called), then queued and sent to
+ * the other replicas with Postgres NOTIFY. Events are coalesced per table, so a burst of tag edits becomes one
+ * notification. Every replica LISTENs on a dedicated connection and applies the events it receives from other replicas.
+ * If the listener loses its connection, notifications sent in the meantime are lost, so everything is invalidated when
+ * it reconnects
+ */
+public class InvalidationBus {
+
+    /**
+     * Table name used for changes that affect every table (e.g. a tag's NSFW flag)
+     */
+    public static final String ALL_TABLES = "*";
+
+    // NOTIFY payloads must be shorter than 8000 bytes. Bigger events are sent without their ids, and their tags are
+    // split over several notifications
+    private static final int MAX_PAYLOAD_LENGTH = 7000;
+    private static final long PUBLISH_INTERVAL_MS = 50;
+    private static final int LISTEN_POLL_MS = 10000;
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+
+    private static final Metrics.Counter EVENTS_PUBLISHED = Metrics.counter("bmedia_invalidation_events_published_total",
+            "Invalidation notifications sent to other replicas");
+    private static final Metrics.Counter EVENTS_RECEIVED = Metrics.counter("bmedia_invalidation_events_received_total",
+            "Invalidation notifications received from other replicas");
+    private static final Metrics.Counter RESYNCS = Metrics.counter("bmedia_invalidation_resyncs_total",
+            "Full invalidations after the listener reconnected");
+
+    // identifies this replica, so it can ignore its own notifications
+    private static final String instanceId = UUID.randomUUID().toString().substring(0, 8);
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    // full table name -> changes waiting to be sent
+    private static final ConcurrentHashMap<String, PendingEvent> outbound = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService publisher = null;
+    private static ScheduledExecutorService lagInvalidator = null;
+    private static Thread listenerThread = null;
+
+    /**
+     * Receives invalidation events, both local and from other replicas. Called on the publishing thread or the
+     * listener thread, so implementations must be thread-safe and quick
+     */
+    public interface Listener {
+
+        /**
+         * Called when data in a table changed
+         *
+         * @param fullTableName Table name ([schema_name].[table_name]), or {@link #ALL_TABLES}
+         * @param ids           IDs of the changed images. Empty if unknown
+         * @param tags          Changed tags. Empty if unknown
+         */
+        void onInvalidate(String fullTableName, Set<Long> ids, Set<String> tags);
+
+        /**
+         * Called when events may have been missed. Everything should be reloaded
+         */
+        void onResync();
+    }
+
+    /**
+     * Starts publishing and listening for invalidation events. Calling this more than once does nothing
+     */
+    public synchronized static void start() {
+        if (!ApiSettings.getInvalidationBusEnabled() || publisher != null) {
+            return;
+        }
+        publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "invalidation-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publisher.scheduleWithFixedDelay(InvalidationBus::flush, PUBLISH_INTERVAL_MS, PUBLISH_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+
+        listenerThread = new Thread(InvalidationBus::listen, "invalidation-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    /**
+     * Registers a listener
+     *
+     * @param listener Listener
+     */
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Publishes a change to a table. Call this after the change was written to the DB
+     *
+     * @param fullTableName Table name ([schema_name].[table_name]), or {@link #ALL_TABLES}
+     * @param ids           IDs of the changed images, or null if unknown
+     * @param tags          Changed tags, or null if unknown
+     */
+    public static void publish(String fullTableName, Collection<Long> ids, Collection<String> tags) {
+        Set<Long> idSet = (ids == null) ? Set.of() : new HashSet<>(ids);
+        Set<String> tagSet = (tags == null) ? Set.of() : new HashSet<>(tags);
+        applyLocal(fullTableName, idSet, tagSet);
+
+        if (publisher != null) {
+            // merge inside compute() so the event can't be taken by a concurrent flush() half-way through
+            outbound.compute(fullTableName, (k, event) -> {
+                event = (event == null) ? new PendingEvent() : event;
+                event.add(idSet, tagSet);
+                return event;
+            });
+        }
+    }
+
+    /**
+     * Publishes a change to a table without details of what changed
+     *
+     * @param fullTableName Table name ([schema_name].[table_name]), or {@link #ALL_TABLES}
+     */
+    public static void publish(String fullTableName) {
+        publish(fullTableName, null, null);
+    }
+
+    private static void applyLocal(String fullTableName, Set<Long> ids, Set<String> tags) {
+        invalidate(fullTableName, ids, tags);
+
+        // a read replica may not have the change yet, and a search running against it right now would cache the old
+        // data under the new generation. Invalidate again once the replica should have caught up
+        if (ApiSettings.hasSeparateReadHost() && ApiSettings.getReadReplicaMaxLagMs() > 0) {
+            getLagInvalidator().schedule(() -> invalidate(fullTableName, ids, tags),
+                    ApiSettings.getReadReplicaMaxLagMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized static ScheduledExecutorService getLagInvalidator() {
+        if (lagInvalidator == null) {
+            lagInvalidator = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "replica-lag-invalidator");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return lagInvalidator;
+    }
+
+    private static void invalidate(String fullTableName, Set<Long> ids, Set<String> tags) {
+        if (fullTableName.equals(ALL_TABLES)) {
+            TableGenerations.bumpAll();
+        } else {
+            TableGenerations.bump(fullTableName);
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.onInvalidate(fullTableName, ids, tags);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void resync() {
+        RESYNCS.inc();
+        TableGenerations.bumpAll();
+        for (Listener listener : listeners) {
+            try {
+                listener.onResync();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends every queued event, one NOTIFY per table. Events that fail to send are re-queued
+     */
+    static void flush() {
+        if (outbound.isEmpty()) {
+            return;
+        }
+        HashMap<String, PendingEvent> batch = new HashMap<>();
+        for (String fullTableName : outbound.keySet()) {
+            PendingEvent event = outbound.remove(fullTableName);
+            if (event != null) {
+                batch.put(fullTableName, event);
+            }
+        }
+
+        String query = "SELECT pg_notify(?, ?);";
+        try (Connection conn = Main.getWriteConnection();
+             PreparedStatement statement = conn.prepareStatement(query)) {
+            for (Map.Entry<String, PendingEvent> entry : batch.entrySet()) {
+                for (String payload : entry.getValue().toPayloads(entry.getKey())) {
+                    statement.setString(1, ApiSettings.getInvalidationChannel());
+                    statement.setString(2, payload);
+                    statement.executeQuery();
+                }
+            }
+            EVENTS_PUBLISHED.add(batch.size());
+        } catch (SQLException | RuntimeException e) {
+            System.out.println("WARNING: Could not publish " + batch.size() + " invalidation event(s). Will retry:\n" +
+                    e.getMessage());
+            for (Map.Entry<String, PendingEvent> entry : batch.entrySet()) {
+                outbound.merge(entry.getKey(), entry.getValue(), (queued, failed) -> {
+                    queued.merge(failed);
+                    return queued;
+                });
+            }
+        }
+    }
+
+    /**
+     * Listener thread loop. Reconnects with a growing delay when the connection is lost
+     */
+    private static void listen() {
+        boolean connectedBefore = false;
+        long reconnectDelayMs = 1000;
+        while (true) {
+            try (Connection conn = Main.createDbConnection()) {
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute("LISTEN " + ApiSettings.getInvalidationChannel() + ";");
+                }
+                if (connectedBefore) {
+                    System.out.println("INFO: Invalidation listener reconnected. Invalidating all cached data");
+                    resync();
+                }
+                connectedBefore = true;
+                reconnectDelayMs = 1000;
+
+                PGConnection pgConn = conn.unwrap(PGConnection.class);
+                while (true) {
+                    PGNotification[] notifications = pgConn.getNotifications(LISTEN_POLL_MS);
+                    if (notifications == null || notifications.length == 0) {
+                        // nothing arrived; make sure the connection is still alive
+                        try (Statement statement = conn.createStatement()) {
+                            statement.execute("SELECT 1;");
+                        }
+                        continue;
+                    }
+                    apply(notifications);
+                }
+            } catch (SQLException e) {
+                System.out.println("WARNING: Invalidation listener lost its DB connection. Reconnecting in " +
+                        reconnectDelayMs + "ms:\n" + e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+
+            try {
+                Thread.sleep(reconnectDelayMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+        }
+    }
+
+    /**
+     * Applies received notifications. Notifications for the same table are merged so each table is only invalidated
+     * once per batch
+     */
+    private static void apply(PGNotification[] notifications) {
+        HashMap<String, PendingEvent> byTable = new HashMap<>();
+        for (PGNotification notification : notifications) {
+            Object parsed = JSONValue.parse(notification.getParameter());
+            if (!(parsed instanceof JSONObject)) {
+                System.out.println("WARNING: Ignoring malformed invalidation event: " + notification.getParameter());
+                continue;
+            }
+            JSONObject event = (JSONObject) parsed;
+            if (instanceId.equals(event.get("src"))) {
+                continue;
+            }
+            EVENTS_RECEIVED.inc();
+
+            try {
+                PendingEvent merged = byTable.computeIfAbsent((String) event.get("table"), k -> new PendingEvent());
+                merged.addJson((JSONArray) event.get("ids"), (JSONArray) event.get("tags"));
+            } catch (ClassCastException e) {
+                System.out.println("WARNING: Ignoring malformed invalidation event: " + notification.getParameter());
+            }
+        }
+
+        for (Map.Entry<String, PendingEvent> entry : byTable.entrySet()) {
+            if (entry.getKey() != null) {
+                applyLocal(entry.getKey(), entry.getValue().ids, entry.getValue().tags);
+            }
+        }
+    }
+
+    /**
+     * Changes to one table, merged
+     */
+    private static class PendingEvent {
+        private final Set<Long> ids = new HashSet<>();
+        private final Set<String> tags = new HashSet<>();
+
+        private synchronized void add(Set<Long> newIds, Set<String> newTags) {
+            ids.addAll(newIds);
+            tags.addAll(newTags);
+        }
+
+        private void merge(PendingEvent other) {
+            synchronized (other) {
+                add(other.ids, other.tags);
+            }
+        }
+
+        private void addJson(JSONArray jsonIds, JSONArray jsonTags) {
+            if (jsonIds != null) {
+                for (Object id : jsonIds) {
+                    ids.add(((Number) id).longValue());
+                }
+            }
+            if (jsonTags != null) {
+                for (Object tag : jsonTags) {
+                    tags.add((String) tag);
+                }
+            }
+        }
+
+        /**
+         * Formats the event as NOTIFY payloads, e.g. {"src":"1a2b3c4d","table":"media.art","gen":12,"ids":[4,5],"tags":["cat"]}.
+         * Usually that is one payload. If it is too big, the ids are left out (receivers treat missing ids as "any image
+         * in the table may have changed"), and if the tags alone are still too big they are split over several
+         * payloads. Tags are never left out, since receivers can't tell which tag counts to re-read without them
+         */
+        private synchronized List<String> toPayloads(String fullTableName) {
+            String payload = toPayload(fullTableName, ids, tags);
+            if (fits(payload)) {
+                return List.of(payload);
+            }
+            payload = toPayload(fullTableName, null, tags);
+            if (fits(payload)) {
+                return List.of(payload);
+            }
+
+            ArrayList<String> payloads = new ArrayList<>();
+            ArrayList<String> chunk = new ArrayList<>();
+            // without the tags, so each chunk can be measured by adding up tag lengths
+            int baseLength = utf8Length(toPayload(fullTableName, null, Set.of()));
+            int chunkLength = baseLength;
+            for (String tag : tags) {
+                // the tag as a JSON string, plus a comma
+                int tagLength = utf8Length(JSONValue.toJSONString(tag)) + 1;
+                if (!chunk.isEmpty() && chunkLength + tagLength > MAX_PAYLOAD_LENGTH) {
+                    payloads.add(toPayload(fullTableName, null, chunk));
+                    chunk = new ArrayList<>();
+                    chunkLength = baseLength;
+                }
+                chunk.add(tag);
+                chunkLength += tagLength;
+            }
+            if (!chunk.isEmpty()) {
+                payloads.add(toPayload(fullTableName, null, chunk));
+            }
+            return payloads;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static String toPayload(String fullTableName, Collection<Long> eventIds, Collection<String> eventTags) {
+            JSONObject event = new JSONObject();
+            event.put("src", instanceId);
+            event.put("table", fullTableName);
+            event.put("gen", fullTableName.equals(ALL_TABLES) ? null : TableGenerations.get(fullTableName));
+            if (eventIds != null) {
+                JSONArray jsonIds = new JSONArray();
+                jsonIds.addAll(eventIds);
+                event.put("ids", jsonIds);
+            }
+            JSONArray jsonTags = new JSONArray();
+            jsonTags.addAll(eventTags);
+            event.put("tags", jsonTags);
+            return event.toJSONString();
+        }
+
+        private static boolean fits(String payload) {
+            return utf8Length(payload) <= MAX_PAYLOAD_LENGTH;
+        }
+
+        private static int utf8Length(String text) {
+            return text.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+}
@@ -13,6 +13,8 @@ import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Main class for the API. Starts SpringBoot and handles the DB connection
@@ -22,7 +24,8 @@ import java.util.Arrays;
 @CrossOrigin(origins = "*")
 public class Main {
 
-    private static Connection dbconn = null;
+    private static ConnectionPool writePool = null;
+    private static ConnectionPool readPool = null;
 
     /**
      * Main function that runs the API and starts the SpringBoot app
@@ -39,15 +42,30 @@ public class Main {
         ApiSettings.init(args[0]);
 
         try {
-            String url = "jdbc:postgresql://" + ApiSettings.getDbHostName() + ":" +
-                    ApiSettings.getDbHostPort() + "/" + ApiSettings.getDbName();
-            System.out.println("INFO: Connnecting to DB: \n" + url);
-            dbconn = DriverManager.getConnection(url, ApiSettings.getAdminUsername(), ApiSettings.getAdminPassword());
+            System.out.println("INFO: Connnecting to DB: \n" + getDbUrl());
+            writePool = new ConnectionPool("write", getDbUrl(), ApiSettings.getAdminUsername(),
+                    ApiSettings.getAdminPassword(), ApiSettings.getWritePoolSize(), ApiSettings.getDbPoolTimeoutMs());
+            createReadPool();
+            // fail fast if the DB can't be reached
+            writePool.borrow().close();
+            readPool.borrow().close();
         } catch (SQLException e) {
             e.printStackTrace();
             System.out.println("ERROR: Unable to establish connection to database. Exiting...");
             return;
         }
+        // before the migrations, which kick off a backfill when they finish
+        TagArrays.start();
+        PerceptualIndex.start();
+        Placeholders.start();
+        SchemaMigrations.start();
+        InvalidationBus.start();
+        TagIndex.start();
+        ThumbnailPrefetcher.start();
+        BrokenPathQueue.start();
+        IntegrityScanner.start();
+        RelinkJob.start();
+
         args = (new ArrayList<>((Arrays.asList(args))).subList(1, args.length)).toArray(new String[0]);
         SpringApplication.run(Main.class, args);
     }
@@ -63,24 +81,100 @@ public class Main {
     }
 
     /**
-     * Gets the connection to the DB. Will create a new connection if needed
+     * Gets a pooled connection for read-only queries (searches, counts, tag listings, path lookups). This may be a
+     * streaming replica running as the read-only query user. Reads from a client that wrote recently go to the primary
+     * instead (see {@link ReadYourWrites}). Close the connection to return it to the pool
      *
      * @return {@link Connection} to the DB
      * @throws SQLException
      */
-    public synchronized static Connection getDbconn() throws SQLException {
-        try {
-            Statement statement = dbconn.createStatement();
-            ResultSet result = statement.executeQuery("SELECT 1;");
-        } catch (SQLException e) {
-            dbconn = DriverManager.getConnection("jdbc:postgresql://" + ApiSettings.getDbHostName() + ":" +
-                            ApiSettings.getDbHostPort() + "/" + ApiSettings.getDbName(),
-                    ApiSettings.getAdminUsername(), ApiSettings.getAdminPassword());
-            System.out.println("INFO: Error encountered while checking DB connection:\n" + e.getMessage());
-            System.out.println("INFO: Connection with database was closed. Re-connecting to database");
+    public static Connection getReadConnection() throws SQLException {
+        return getReadConnection(ReadYourWrites.shouldReadFromPrimary());
+    }
+
+    /**
+     * Gets a pooled connection for read-only queries, for threads that work on behalf of a request but can't see it.
+     * Decide the routing with {@link ReadYourWrites#shouldReadFromPrimary()} on the request thread
+     *
+     * @param fromPrimary True to read from the primary instead of the read pool
+     * @return {@link Connection} to the DB
+     * @throws SQLException
+     */
+    static Connection getReadConnection(boolean fromPrimary) throws SQLException {
+        if (fromPrimary) {
+            return writePool.borrow();
         }
+        return readPool.borrow();
+    }
 
-        return dbconn;
+    /**
+     * Gets a pooled connection to the primary DB, as the admin user, for anything that changes data. Close the
+     * connection to return it to the pool
+     *
+     * @return {@link Connection} to the DB
+     * @throws SQLException
+     */
+    public static Connection getWriteConnection() throws SQLException {
+        ReadYourWrites.markWrite();
+        return writePool.borrow();
+    }
+
+    private static void createReadPool() {
+        String username = ApiSettings.getQueryUsername();
+        String password = ApiSettings.getQueryPassword();
+        if (username == null) {
+            System.out.println("WARNING: No \"query_username\" configured. Read queries will run as the admin user");
+            username = ApiSettings.getAdminUsername();
+            password = ApiSettings.getAdminPassword();
+        }
+        String url = "jdbc:postgresql://" + ApiSettings.getReadDbHostName() + ":" + ApiSettings.getReadDbHostPort() +
+                "/" + ApiSettings.getDbName();
+        if (ApiSettings.hasSeparateReadHost()) {
+            System.out.println("INFO: Sending read queries to: \n" + url);
+        }
+        readPool = new ConnectionPool("read", url, username, password, ApiSettings.getReadPoolSize(),
+                ApiSettings.getDbPoolTimeoutMs());
+    }
+
+    /**
+     * Creates a new, dedicated connection to the primary DB. Use this for long-running background work (e.g. cursors)
+     * that should not hold up a pooled connection. The caller is responsible for closing it
+     *
+     * @return New {@link Connection} to the DB
+     * @throws SQLException
+     */
+    public static Connection createDbConnection() throws SQLException {
+        return DriverManager.getConnection(getDbUrl(), ApiSettings.getAdminUsername(), ApiSettings.getAdminPassword());
+    }
+
+    /**
+     * Gets the names of all media tables in the schema. A media table is any table that has a matching
+     * [table_name]_tags_join table
+     *
+     * @return Table names (without the schema prefix)
+     * @throws SQLException
+     */
+    public static List<String> getMediaTableNames() throws SQLException {
+        String query = "SELECT t.table_name FROM information_schema.tables t " +
+                "JOIN information_schema.tables j ON j.table_schema = t.table_schema " +
+                "AND j.table_name = t.table_name || '_tags_join' " +
+                "WHERE t.table_schema = ? ORDER BY t.table_name;";
+
+        ArrayList<String> tableNames = new ArrayList<>();
+        try (Connection conn = Main.getReadConnection();
+             PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setString(1, ApiSettings.getSchemaName());
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                tableNames.add(result.getString("table_name"));
+            }
+        }
+        return tableNames;
+    }
+
+    private static String getDbUrl() {
+        return "jdbc:postgresql://" + ApiSettings.getDbHostName() + ":" +
+                ApiSettings.getDbHostPort() + "/" + ApiSettings.getDbName();
     }
 
     /**
@@ -92,15 +186,37 @@ public class Main {
      * @throws SQLException DB Exception
      */
     public static void removeBrokenPathInDB(String relativeDbPath, String fullTableName) throws SQLException {
-        String baseQuery = "UPDATE " + fullTableName + " SET file_path=NULL WHERE file_path=?;";
+        removeBrokenPathsInDB(List.of(relativeDbPath), fullTableName);
+    }
+
+    /**
+     * Sets several items' paths to NULL with a single set-based UPDATE. See {@link #removeBrokenPathInDB(String, String)}
+     *
+     * @param relativeDbPaths Paths of the images to "remove" relative to the file share base directory
+     * @param fullTableName   DB table the images belong to
+     * @throws SQLException DB Exception
+     */
+    public static void removeBrokenPathsInDB(Collection<String> relativeDbPaths, String fullTableName) throws SQLException {
+        String baseQuery = "UPDATE " + fullTableName + " SET file_path=NULL WHERE file_path = ANY(?);";
 
-        if (relativeDbPath.startsWith("/") || relativeDbPath.startsWith("\\")) {
-            relativeDbPath = relativeDbPath.substring(1);
+        String[] paths = new String[relativeDbPaths.size()];
+        int i = 0;
+        for (String relativeDbPath : relativeDbPaths) {
+            if (relativeDbPath.startsWith("/") || relativeDbPath.startsWith("\\")) {
+                relativeDbPath = relativeDbPath.substring(1);
+            }
+            paths[i++] = relativeDbPath;
         }
 
-        PreparedStatement statement = Main.getDbconn().prepareStatement(baseQuery);
-        statement.setString(1, relativeDbPath);
-        statement.executeUpdate();
-        System.out.println("INFO: Nulled broken path in DB: \"" + relativeDbPath + "\"");
+        try (Connection conn = Main.getWriteConnection();
+             PreparedStatement statement = conn.prepareStatement(baseQuery)) {
+            statement.setArray(1, conn.createArrayOf("text", paths));
+            int updated = statement.executeUpdate();
+            Metrics.BROKEN_PATHS_NULLED.add(updated);
+            if (updated > 0) {
+                InvalidationBus.publish(fullTableName);
+            }
+            System.out.println("INFO: Nulled " + updated + " broken path(s) in DB table \"" + fullTableName + "\"");
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,260 @@
+package org.bmedia;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal, lock-free metrics registry that renders in the Prometheus text format (see {@link MetricsController}).
+ * <p>
+ * Recording only touches {@link LongAdder}s and {@link DoubleAdder}s, so it is cheap enough for the hot path. Metrics
+ * that are recorded on every request are kept in static fields to also skip the registry lookup
+ */
+public class Metrics {
+
+    /**
+     * Bucket upper bounds (seconds) for latency histograms
+     */
+    public static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10};
+
+    /**
+     * Bucket upper bounds (bytes) for size histograms
+     */
+    public static final double[] BYTE_BUCKETS = {1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216,
+            67108864};
+
+    private static final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+
+    // Hot path metrics
+    public static final Histogram IMAGE_FILE_READ = histogram("bmedia_image_file_read_seconds",
+            "Time spent reading source image files from the file share", LATENCY_BUCKETS);
+    public static final Histogram IMAGE_DECODE = histogram("bmedia_image_decode_seconds",
+            "Time spent decoding source images", LATENCY_BUCKETS);
+    public static final Histogram IMAGE_RESIZE = histogram("bmedia_image_resize_seconds",
+            "Time spent scaling images to thumbnail size", LATENCY_BUCKETS);
+    public static final Histogram IMAGE_ENCODE = histogram("bmedia_image_encode_seconds",
+            "Time spent encoding images for the response", LATENCY_BUCKETS);
+    public static final Histogram IMAGE_SOURCE_BYTES = histogram("bmedia_image_source_bytes",
+            "Size of source image files read from the file share", BYTE_BUCKETS);
+    public static final Histogram IMAGE_ENCODED_BYTES = histogram("bmedia_image_encoded_bytes",
+            "Size of encoded images sent in responses", BYTE_BUCKETS);
+    public static final Counter BROKEN_PATHS_REPORTED = counter("bmedia_broken_paths_reported_total",
+            "Number of distinct broken paths reported");
+    public static final Counter BROKEN_PATHS_NULLED = counter("bmedia_broken_paths_nulled_total",
+            "Number of rows whose path was nulled in the DB");
+
+    /**
+     * Gets or registers an unlabeled histogram
+     *
+     * @param name    Metric name
+     * @param help    Metric description
+     * @param buckets Bucket upper bounds
+     * @return Histogram
+     */
+    public static Histogram histogram(String name, String help, double[] buckets) {
+        return histogram(name, help, buckets, "");
+    }
+
+    /**
+     * Gets or registers a labeled histogram
+     *
+     * @param name    Metric name
+     * @param help    Metric description
+     * @param buckets Bucket upper bounds
+     * @param labels  Alternating label names and values, e.g. "endpoint", "/tags/get_all_tags"
+     * @return Histogram
+     */
+    public static Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, "histogram"));
+        return (Histogram) family.children.computeIfAbsent(formatLabels(labels), k -> new Histogram(buckets));
+    }
+
+    /**
+     * Gets or registers an unlabeled counter
+     *
+     * @param name Metric name
+     * @param help Metric description
+     * @return Counter
+     */
+    public static Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    /**
+     * Gets or registers a labeled counter
+     *
+     * @param name   Metric name
+     * @param help   Metric description
+     * @param labels Alternating label names and values
+     * @return Counter
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, "counter"));
+        return (Counter) family.children.computeIfAbsent(formatLabels(labels), k -> new Counter());
+    }
+
+    /**
+     * Registers a labeled gauge whose value is read when metrics are rendered. Registering the same name and labels
+     * again replaces the supplier
+     *
+     * @param name   Metric name
+     * @param help   Metric description
+     * @param value  Supplies the current value
+     * @param labels Alternating label names and values
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, "gauge"));
+        family.children.put(formatLabels(labels), value);
+    }
+
+    /**
+     * Renders every registered metric in the Prometheus text exposition format
+     *
+     * @return Metrics text
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : new TreeMap<>(families).values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> child : new TreeMap<>(family.children).entrySet()) {
+                if (child.getValue() instanceof Histogram) {
+                    ((Histogram) child.getValue()).render(out, family.name, child.getKey());
+                } else if (child.getValue() instanceof LongSupplier) {
+                    out.append(family.name).append(wrapLabels(child.getKey())).append(' ')
+                            .append(((LongSupplier) child.getValue()).getAsLong()).append('\n');
+                } else {
+                    out.append(family.name).append(wrapLabels(child.getKey())).append(' ')
+                            .append(((Counter) child.getValue()).get()).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static String formatLabels(String... labels) {
+        if (labels.length == 0 || (labels.length == 1 && labels[0].isEmpty())) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (out.length() > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return out.toString();
+    }
+
+    private static String wrapLabels(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    /**
+     * All metrics that share a name
+     */
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final ConcurrentHashMap<String, Object> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Monotonic counter
+     */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Cumulative histogram with fixed buckets
+     */
+    public static class Histogram {
+        private final double[] buckets;
+        private final LongAdder[] counts;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] buckets) {
+            this.buckets = buckets;
+            this.counts = new LongAdder[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a value in the histogram's unit
+         *
+         * @param value Value to record
+         */
+        public void observe(double value) {
+            // values above the last bucket only show up in +Inf, which is derived from count
+            for (int i = 0; i < buckets.length; i++) {
+                if (value <= buckets[i]) {
+                    counts[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Records a duration in a histogram measured in seconds
+         *
+         * @param nanos Duration in nanoseconds
+         */
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        /**
+         * Records the time elapsed since a {@link System#nanoTime()} start time
+         *
+         * @param startNanos Start time from {@link System#nanoTime()}
+         */
+        public void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+
+        private void render(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += counts[i].sum();
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(buckets[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            long total = count.sum();
+            out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+            out.append(name).append("_sum").append(wrapLabels(labels)).append(' ').append(sum.sum()).append('\n');
+            out.append(name).append("_count").append(wrapLabels(labels)).append(' ').append(total).append('\n');
+        }
+    }
+}
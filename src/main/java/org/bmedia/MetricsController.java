@@ -0,0 +1,36 @@
+package org.bmedia;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * API controller for telemetry
+ */
+@RestController
+@RequestMapping("/")
+@CrossOrigin(origins = "*")
+public class MetricsController {
+
+    /**
+     * Gets all API metrics in the Prometheus text format
+     *
+     * @return
+     */
+    @RequestMapping(value = "/metrics", produces = "text/plain; version=0.0.4")
+    public ResponseEntity<String> getMetrics() {
+        return ResponseEntity.status(HttpStatus.OK).body(Metrics.render());
+    }
+
+    /**
+     * Dumps the most recent slow image and search requests, with their parameters, SQL and phase timings
+     *
+     * @return
+     */
+    @RequestMapping(value = "/debug/slow_requests", produces = "application/json")
+    public ResponseEntity<String> getSlowRequests() {
+        return ResponseEntity.status(HttpStatus.OK).body(SlowRequestLog.toJson());
+    }
+}
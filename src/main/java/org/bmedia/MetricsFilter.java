@@ -0,0 +1,34 @@
+package org.bmedia;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Records the latency of every API request, labeled by the endpoint's mapping (not the raw URL, so query strings and
+ * unknown paths don't create new label values) and status code class
+ */
+@Component
+public class MetricsFilter extends OncePerRequestFilter {
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long start = System.nanoTime();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            String endpoint = (pattern == null) ? "unmatched" : pattern.toString();
+            String status = (response.getStatus() / 100) + "xx";
+            Metrics.histogram("bmedia_http_request_seconds", "Latency of API requests by endpoint",
+                    Metrics.LATENCY_BUCKETS, "endpoint", endpoint, "status", status).observeSince(start);
+        }
+    }
+}
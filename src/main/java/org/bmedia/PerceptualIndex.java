@@ -0,0 +1,300 @@
+package org.bmedia;
+
+import java.awt.image.BufferedImage;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Perceptual hashes (see {@link ImageUtils#dHash(BufferedImage)}) of the images of every media table, with an in-memory
+ * {@link BkTree} per table for near-duplicate search.
+ * <p>
+ * Hashes are stored in the dhash column (see {@link SchemaMigrations}). Images without one get it from whichever comes
+ * first: the thumbnail pipeline, which hashes the thumbnail it already decoded and scaled, or the backfill job, which
+ * decodes the image at reduced resolution (see {@link ImageBackfill}). The backfill also (re)loads each table's tree
+ * from the DB. It runs after schema migrations and every
+ * {@link ApiSettings#getPerceptualHashBackfillIntervalMinutes()} minutes
+ */
+public class PerceptualIndex {
+
+    // decoded size for hashing; the hash only looks at 9x8 cells
+    private static final int HASH_DECODE_SIDE = 64;
+    private static final long WRITE_INTERVAL_MS = 1000;
+
+    private static ScheduledExecutorService writer = null;
+
+    private static final ConcurrentHashMap<String, TableIndex> tables = new ConcurrentHashMap<>();
+    // hashes from the thumbnail pipeline waiting to be written to the DB
+    private static final ConcurrentLinkedQueue<PendingHash> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private static final ImageBackfill<Long> backfill = new ImageBackfill<>("dhash", "bigint", HASH_DECODE_SIDE) {
+        @Override
+        protected Long compute(BufferedImage img) {
+            return ImageUtils.dHash(img);
+        }
+
+        @Override
+        protected boolean isDone(String fullTableName, long id, String relativePath) {
+            // hashed by the thumbnail pipeline in the meantime
+            TableIndex table = tables.get(fullTableName);
+            return table.pendingIdByPath.remove(relativePath) == null && table.hashById.containsKey(id);
+        }
+
+        @Override
+        protected void notDone(String fullTableName, long id, String relativePath) {
+            // the thumbnail pipeline may still manage to hash it
+            tables.get(fullTableName).pendingIdByPath.put(relativePath, id);
+        }
+
+        @Override
+        protected void written(String fullTableName, List<Long> ids, List<Long> hashes) {
+            TableIndex table = tables.get(fullTableName);
+            for (int i = 0; i < ids.size(); i++) {
+                table.put(ids.get(i), hashes.get(i));
+            }
+            HASHED_BY_BACKFILL.add(ids.size());
+        }
+    };
+    private static final BackfillJob job = new BackfillJob("perceptual-hash-backfill", "dhash",
+            PerceptualIndex::backfillTable, "images_hashed", "images_failed", "images_skipped");
+
+    private static final Metrics.Counter HASHED_FROM_THUMBNAILS = Metrics.counter(
+            "bmedia_perceptual_hashes_total", "Perceptual hashes computed, by source", "source", "thumbnail");
+    private static final Metrics.Counter HASHED_BY_BACKFILL = Metrics.counter(
+            "bmedia_perceptual_hashes_total", "Perceptual hashes computed, by source", "source", "backfill");
+
+    /**
+     * Hashes of one table
+     */
+    private static class TableIndex {
+        private final BkTree tree = new BkTree();
+        private final ConcurrentHashMap<Long, Long> hashById = new ConcurrentHashMap<>();
+        // images that still need a hash, by relative path, so the thumbnail pipeline can tell quickly
+        private final ConcurrentHashMap<String, Long> pendingIdByPath = new ConcurrentHashMap<>();
+
+        private void put(long id, long hash) {
+            Long old = hashById.put(id, hash);
+            if (old != null) {
+                tree.remove(old, id);
+            }
+            tree.add(hash, id);
+        }
+    }
+
+    private static class PendingHash {
+        private final String fullTableName;
+        private final long id;
+        private final long hash;
+
+        private PendingHash(String fullTableName, long id, long hash) {
+            this.fullTableName = fullTableName;
+            this.id = id;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Starts the backfill scheduler and the writer for hashes from the thumbnail pipeline. The first backfill runs
+     * after schema migrations
+     */
+    public synchronized static void start() {
+        if (writer != null) {
+            return;
+        }
+        job.start(ApiSettings.getPerceptualHashBackfillIntervalMinutes());
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "perceptual-hash-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(PerceptualIndex::flushWrites, WRITE_INTERVAL_MS, WRITE_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a backfill in the background if one is not already running
+     *
+     * @return True if a new backfill was started
+     */
+    public static boolean triggerBackfill() {
+        return job.trigger();
+    }
+
+    /**
+     * Checks if a table's hashes have been loaded
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @return True if similarity searches can be served for the table
+     */
+    public static boolean isLoaded(String fullTableName) {
+        return tables.containsKey(fullTableName);
+    }
+
+    /**
+     * Gets the hash of an image
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param id            Image ID
+     * @return Hash, or null if the image has none (yet)
+     */
+    public static Long getHash(String fullTableName, long id) {
+        TableIndex table = tables.get(fullTableName);
+        return (table == null) ? null : table.hashById.get(id);
+    }
+
+    /**
+     * Finds the images whose hash is within a Hamming distance of a hash
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param hash          Query hash
+     * @param maxDistance   Max Hamming distance (inclusive)
+     * @return Matches as {id, distance}, closest first (then by id)
+     */
+    public static List<long[]> findSimilar(String fullTableName, long hash, int maxDistance) {
+        TableIndex table = tables.get(fullTableName);
+        if (table == null) {
+            return List.of();
+        }
+        List<long[]> matches = table.tree.search(hash, maxDistance);
+        matches.sort(Comparator.<long[]>comparingLong(m -> m[1]).thenComparingLong(m -> m[0]));
+        return matches;
+    }
+
+    /**
+     * Called by the thumbnail pipeline with the scaled image. Hashes it if the image doesn't have a hash yet; otherwise
+     * this is a single map lookup
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param imagePath     Full path of the image
+     * @param thumbnail     Scaled image
+     */
+    public static void offerThumbnail(String fullTableName, String imagePath, BufferedImage thumbnail) {
+        TableIndex table = tables.get(fullTableName);
+        if (table == null || table.pendingIdByPath.isEmpty()) {
+            return;
+        }
+        String relativePath = ApiSettings.getPathRelativeToShare(imagePath);
+        if (relativePath == null) {
+            return;
+        }
+        Long id = table.pendingIdByPath.remove(BrokenPathQueue.normalizePath(relativePath));
+        if (id == null) {
+            return;
+        }
+        long hash = ImageUtils.dHash(thumbnail);
+        HASHED_FROM_THUMBNAILS.inc();
+        table.put(id, hash);
+        pendingWrites.add(new PendingHash(fullTableName, id, hash));
+    }
+
+    /**
+     * Gets the progress of the running backfill, or the results of the last one, as JSON
+     *
+     * @return Backfill status JSON
+     */
+    public static String getStatusJson() {
+        long indexed = 0;
+        long pending = 0;
+        for (TableIndex table : tables.values()) {
+            indexed += table.hashById.size();
+            pending += table.pendingIdByPath.size();
+        }
+        return job.getStatusJson(
+                "\"loaded_tables\": " + tables.size() + "," +
+                "\"indexed_images\": " + indexed + "," +
+                "\"pending_images\": " + pending + ",");
+    }
+
+    /**
+     * Reloads a table's index and hashes the images that don't have a hash yet
+     */
+    private static void backfillTable(Connection conn, String fullTableName) throws SQLException {
+        tables.put(fullTableName, loadTable(conn, fullTableName));
+        backfill.backfillTable(conn, fullTableName, job.counter("images_hashed"), job.counter("images_failed"),
+                job.counter("images_skipped"));
+    }
+
+    /**
+     * Builds a table's index from the DB. Hashes written by the thumbnail pipeline while this runs are picked up on
+     * the next load
+     */
+    private static TableIndex loadTable(Connection conn, String fullTableName) throws SQLException {
+        long start = System.currentTimeMillis();
+        TableIndex table = new TableIndex();
+        String query = "SELECT id, dhash, file_path FROM " + fullTableName + " WHERE file_path IS NOT NULL;";
+        // the driver only streams results (instead of loading all rows at once) inside a transaction
+        conn.setAutoCommit(false);
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setFetchSize(10000);
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                long id = result.getLong("id");
+                long hash = result.getLong("dhash");
+                if (result.wasNull()) {
+                    table.pendingIdByPath.put(BrokenPathQueue.normalizePath(result.getString("file_path")), id);
+                } else {
+                    table.put(id, hash);
+                }
+            }
+        } finally {
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+        // keep hashes the thumbnail pipeline computed for the old index that haven't been written yet
+        TableIndex old = tables.get(fullTableName);
+        if (old != null) {
+            for (PendingHash pendingHash : pendingWrites) {
+                if (pendingHash.fullTableName.equals(fullTableName)) {
+                    table.put(pendingHash.id, pendingHash.hash);
+                    table.pendingIdByPath.values().remove(pendingHash.id);
+                }
+            }
+        }
+        System.out.println("INFO: Loaded " + table.hashById.size() + " perceptual hash(es) for \"" + fullTableName +
+                "\" in " + (System.currentTimeMillis() - start) + "ms, " + table.pendingIdByPath.size() + " pending");
+        return table;
+    }
+
+    /**
+     * Writes the hashes from the thumbnail pipeline, one UPDATE per table. Failed writes are retried on the next flush
+     */
+    private static void flushWrites() {
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+        ConcurrentHashMap<String, List<PendingHash>> batch = new ConcurrentHashMap<>();
+        PendingHash pendingHash;
+        while ((pendingHash = pendingWrites.poll()) != null) {
+            batch.computeIfAbsent(pendingHash.fullTableName, k -> new ArrayList<>()).add(pendingHash);
+        }
+        for (Map.Entry<String, List<PendingHash>> table : batch.entrySet()) {
+            ArrayList<Long> ids = new ArrayList<>();
+            ArrayList<Long> hashes = new ArrayList<>();
+            for (PendingHash hash : table.getValue()) {
+                ids.add(hash.id);
+                hashes.add(hash.hash);
+            }
+            try (Connection conn = Main.getWriteConnection()) {
+                backfill.write(conn, table.getKey(), ids, hashes);
+            } catch (SQLException e) {
+                System.out.println("WARNING: Could not write " + hashes.size() + " perceptual hash(es) to \"" +
+                        table.getKey() + "\". Will retry:\n" + e.getMessage());
+                pendingWrites.addAll(table.getValue());
+            } catch (RuntimeException e) {
+                // never let an exception kill the scheduled writer
+                e.printStackTrace();
+                pendingWrites.addAll(table.getValue());
+            }
+        }
+    }
+}
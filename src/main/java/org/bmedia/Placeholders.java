@@ -0,0 +1,76 @@
+package org.bmedia;
+
+import java.awt.image.BufferedImage;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Maintains the blurhash column: a {@link BlurHash} placeholder of a few dozen bytes per image, returned with search
+ * results so clients can lay out and paint a page before its thumbnails load.
+ * <p>
+ * NULL means "not computed yet". A backfill job computes missing placeholders (e.g. for images added by the ingest
+ * tools), decoding each image at reduced resolution (see {@link ImageBackfill}). It runs after schema migrations and
+ * every {@link ApiSettings#getPlaceholderBackfillIntervalMinutes()} minutes
+ */
+public class Placeholders {
+
+    // decoded size for encoding; a 4x3 component BlurHash can't show more detail than this
+    private static final int DECODE_SIDE = 32;
+
+    private static final ImageBackfill<String> backfill = new ImageBackfill<>("blurhash", "text", DECODE_SIDE) {
+        @Override
+        protected String compute(BufferedImage img) {
+            return BlurHash.encode(img);
+        }
+    };
+    private static final BackfillJob job = new BackfillJob("placeholder-backfill", "blurhash",
+            Placeholders::backfillTable, "images_encoded", "images_failed", "images_skipped");
+
+    /**
+     * Starts the backfill scheduler. The first backfill runs after schema migrations
+     */
+    public static void start() {
+        job.start(ApiSettings.getPlaceholderBackfillIntervalMinutes());
+    }
+
+    /**
+     * Starts a backfill in the background if one is not already running
+     *
+     * @return True if a new backfill was started
+     */
+    public static boolean triggerBackfill() {
+        return job.trigger();
+    }
+
+    /**
+     * Checks if a table has the blurhash column, in which case search queries should select it
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @return True if the table has placeholders
+     */
+    public static boolean isAvailable(String fullTableName) {
+        return SchemaMigrations.hasColumn(fullTableName, "blurhash");
+    }
+
+    /**
+     * Gets the progress of the running backfill, or the results of the last one, as JSON
+     *
+     * @return Backfill status JSON
+     */
+    public static String getStatusJson() {
+        return job.getStatusJson("");
+    }
+
+    /**
+     * Computes the missing placeholders of a table
+     */
+    private static void backfillTable(Connection conn, String fullTableName) throws SQLException {
+        long written = backfill.backfillTable(conn, fullTableName, job.counter("images_encoded"),
+                job.counter("images_failed"), job.counter("images_skipped"));
+        if (written > 0) {
+            System.out.println("INFO: Computed " + written + " placeholder(s) for \"" + fullTableName + "\"");
+            // cached search pages don't have the new placeholders
+            TableGenerations.bump(fullTableName);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.bmedia;
+
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Optional read-your-writes routing for clients that edit and then immediately read back (e.g. tag editing in the UI).
+ * <p>
+ * When a request borrows a write connection, the response sets a short-lived cookie. Reads from a client that sends
+ * the cookie back go to the primary instead of the read pool until it expires, so they can't see a lagging replica.
+ * Clients that don't keep cookies simply get normal read routing
+ */
+public class ReadYourWrites {
+
+    static final String COOKIE_NAME = "bmedia_ryw";
+
+    /**
+     * Marks the current request as having written to the DB. Does nothing outside of a request or if read-your-writes
+     * is disabled
+     */
+    static void markWrite() {
+        long windowMs = ApiSettings.getReadYourWritesWindowMs();
+        ServletRequestAttributes attributes = currentRequest();
+        if (windowMs <= 0 || attributes == null || attributes.getResponse() == null) {
+            return;
+        }
+        HttpServletResponse response = attributes.getResponse();
+        if (response.isCommitted()) {
+            return;
+        }
+        Cookie cookie = new Cookie(COOKIE_NAME, String.valueOf(System.currentTimeMillis() + windowMs));
+        cookie.setPath("/");
+        cookie.setHttpOnly(true);
+        cookie.setMaxAge((int) Math.max(1, (windowMs + 999) / 1000));
+        response.addCookie(cookie);
+    }
+
+    /**
+     * Checks if reads for the current request should go to the primary
+     *
+     * @return True if the client wrote recently
+     */
+    static boolean shouldReadFromPrimary() {
+        ServletRequestAttributes attributes = currentRequest();
+        if (ApiSettings.getReadYourWritesWindowMs() <= 0 || attributes == null) {
+            return false;
+        }
+        HttpServletRequest request = attributes.getRequest();
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return false;
+        }
+        for (Cookie cookie : cookies) {
+            if (cookie.getName().equals(COOKIE_NAME)) {
+                try {
+                    return Long.parseLong(cookie.getValue()) > System.currentTimeMillis();
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static ServletRequestAttributes currentRequest() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        return (attributes instanceof ServletRequestAttributes) ? (ServletRequestAttributes) attributes : null;
+    }
+}
@@ -0,0 +1,467 @@
+package org.bmedia;
+
+import org.apache.commons.codec.binary.Hex;
+import org.json.simple.JSONValue;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-links moved or re-added images. {@link Main#removeBrokenPathInDB(String, String)} only nulls a broken path so the
+ * tag data is kept; this job finds files on the file share that aren't referenced by any table, hashes them and sets
+ * the path of every row with a NULL path and a matching md5.
+ * <p>
+ * Files are hashed in parallel by memory-mapping them in large windows. The size, mtime and md5 of every hashed file is
+ * remembered, and saved to {@link ApiSettings#getRelinkHashCachePath()} after every run, so files that haven't changed
+ * since the last run are never read again, also across restarts
+ */
+public class RelinkJob {
+
+    private static final int FETCH_SIZE = 5000;
+    private static final long MAP_WINDOW_BYTES = 64L * 1024 * 1024;
+    // files queued or being hashed at once, per hashing thread
+    private static final int IN_FLIGHT_PER_THREAD = 4;
+
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+    private static ScheduledExecutorService scheduler = null;
+
+    // relative path -> state of the file the last time it was hashed
+    private static final ConcurrentHashMap<String, FileState> hashCache = new ConcurrentHashMap<>();
+    private static boolean hashCacheLoaded = false;
+
+    // Progress/results of the current (or last) run
+    private static volatile long startedAtMillis = 0;
+    private static volatile long finishedAtMillis = 0;
+    private static volatile String lastError = null;
+    private static final AtomicLong filesWalked = new AtomicLong();
+    private static final AtomicLong filesHashed = new AtomicLong();
+    private static final AtomicLong filesSkipped = new AtomicLong();
+    private static final AtomicLong bytesHashed = new AtomicLong();
+    private static final AtomicLong rowsRelinked = new AtomicLong();
+
+    /**
+     * Starts the re-link scheduler. Runs happen every {@link ApiSettings#getRelinkIntervalMinutes()} minutes, and can
+     * also be triggered manually with {@link #triggerRun()}
+     */
+    public synchronized static void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "relink-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = ApiSettings.getRelinkIntervalMinutes();
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(RelinkJob::run, interval, interval, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Starts a re-link run in the background if one is not already running
+     *
+     * @return True if a new run was started
+     */
+    public static boolean triggerRun() {
+        if (scheduler == null || running.get()) {
+            return false;
+        }
+        scheduler.submit(RelinkJob::run);
+        return true;
+    }
+
+    /**
+     * Gets the progress of the running job, or the results of the last run, as JSON
+     *
+     * @return Job status JSON
+     */
+    public static String getStatusJson() {
+        return "{" +
+                "\"running\": " + running.get() + "," +
+                "\"started_at_millis\": " + startedAtMillis + "," +
+                "\"finished_at_millis\": " + finishedAtMillis + "," +
+                "\"files_walked\": " + filesWalked.get() + "," +
+                "\"files_hashed\": " + filesHashed.get() + "," +
+                "\"files_skipped_unchanged\": " + filesSkipped.get() + "," +
+                "\"bytes_hashed\": " + bytesHashed.get() + "," +
+                "\"rows_relinked\": " + rowsRelinked.get() + "," +
+                "\"last_error\": " + ((lastError == null) ? "null" : "\"" + JSONValue.escape(lastError) + "\"") +
+                "}";
+    }
+
+    private static void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        startedAtMillis = System.currentTimeMillis();
+        finishedAtMillis = 0;
+        lastError = null;
+        filesWalked.set(0);
+        filesHashed.set(0);
+        filesSkipped.set(0);
+        bytesHashed.set(0);
+        rowsRelinked.set(0);
+        if (!IntegrityScanner.isShareAvailable()) {
+            // an empty walk would find nothing to relink and empty the hash cache
+            lastError = "File share base directory is missing or empty";
+            System.out.println("WARNING: Skipping re-link job: the file share base directory is missing or empty");
+            finishedAtMillis = System.currentTimeMillis();
+            running.set(false);
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, ApiSettings.getRelinkThreads()), r -> {
+            Thread thread = new Thread(r, "relink-hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (Connection conn = Main.createDbConnection()) {
+            List<String> tableNames = Main.getMediaTableNames();
+
+            // lowercase md5 -> rows (table and md5 as stored) with that md5 and a NULL path
+            HashMap<String, List<OrphanRef>> orphanedMd5s = new HashMap<>();
+            HashSet<String> referencedPaths = new HashSet<>();
+            conn.setAutoCommit(false);
+            for (String tbName : tableNames) {
+                loadTableState(conn, ApiSettings.getSchemaName() + "." + tbName, orphanedMd5s, referencedPaths);
+            }
+            conn.commit();
+
+            loadHashCache();
+            if (orphanedMd5s.isEmpty()) {
+                System.out.println("INFO: No rows with NULL paths, nothing to re-link");
+                return;
+            }
+
+            System.out.println("INFO: Looking for moved files to re-link " + orphanedMd5s.size() + " md5(s)");
+            Map<String, String> foundPaths = hashUnreferencedFiles(referencedPaths, orphanedMd5s, pool);
+
+            conn.setAutoCommit(true);
+            relinkRows(conn, foundPaths, orphanedMd5s);
+            System.out.println("INFO: Finished re-link job. " + getStatusJson());
+        } catch (SQLException | IOException | InterruptedException e) {
+            lastError = e.getMessage();
+            System.out.println("ERROR: Re-link job failed:\n" + e.getMessage());
+        } catch (RuntimeException e) {
+            lastError = e.toString();
+            e.printStackTrace();
+        } finally {
+            pool.shutdownNow();
+            finishedAtMillis = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+
+    /**
+     * Streams a table, collecting the paths it references and the md5s of its rows with NULL paths
+     */
+    private static void loadTableState(Connection conn, String fullTableName, Map<String, List<OrphanRef>> orphanedMd5s,
+                                       HashSet<String> referencedPaths) throws SQLException {
+        String query = "SELECT file_path, md5 FROM " + fullTableName + ";";
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setFetchSize(FETCH_SIZE);
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                String filePath = result.getString("file_path");
+                if (filePath != null) {
+                    referencedPaths.add(filePath);
+                    continue;
+                }
+                String md5 = result.getString("md5");
+                if (md5 != null) {
+                    List<OrphanRef> refs = orphanedMd5s.computeIfAbsent(md5.toLowerCase(), k -> new ArrayList<>(1));
+                    OrphanRef ref = new OrphanRef(fullTableName, md5);
+                    if (!refs.contains(ref)) {
+                        refs.add(ref);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the file share and hashes every file that no table references, unless its size and mtime are unchanged
+     * since it was last hashed
+     *
+     * @return md5 -> relative path for every hashed file whose md5 belongs to a row with a NULL path
+     */
+    private static Map<String, String> hashUnreferencedFiles(HashSet<String> referencedPaths,
+                                                             Map<String, List<OrphanRef>> orphanedMd5s,
+                                                             ExecutorService pool) throws IOException, InterruptedException {
+        Path baseDir = Path.of(ApiSettings.getFileShareBaseDir());
+        int maxInFlight = Math.max(1, ApiSettings.getRelinkThreads()) * IN_FLIGHT_PER_THREAD;
+        // bounds the files that are queued or being hashed, so the walk can't run ahead of the hashers
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        ConcurrentHashMap<String, String> foundPaths = new ConcurrentHashMap<>();
+        HashSet<String> seenPaths = new HashSet<>();
+        // files and directories that could not be visited; their cache entries must survive the walk
+        AtomicInteger visitFailures = new AtomicInteger();
+
+        Files.walkFileTree(baseDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                filesWalked.incrementAndGet();
+                String relPath = baseDir.relativize(file).toString().replace('\\', '/');
+                seenPaths.add(relPath);
+                if (referencedPaths.contains(relPath)) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                long size = attrs.size();
+                long mtime = attrs.lastModifiedTime().toMillis();
+                FileState cached = hashCache.get(relPath);
+                if (cached != null && cached.sizeBytes == size && cached.mtimeMillis == mtime) {
+                    filesSkipped.incrementAndGet();
+                    if (orphanedMd5s.containsKey(cached.md5)) {
+                        foundPaths.putIfAbsent(cached.md5, relPath);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return FileVisitResult.TERMINATE;
+                }
+                pool.execute(() -> {
+                    try {
+                        String md5 = md5Mapped(file, size);
+                        hashCache.put(relPath, new FileState(size, mtime, md5));
+                        filesHashed.incrementAndGet();
+                        bytesHashed.addAndGet(size);
+                        if (orphanedMd5s.containsKey(md5)) {
+                            foundPaths.putIfAbsent(md5, relPath);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("WARNING: Could not hash \"" + relPath + "\": " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.out.println("WARNING: Could not visit \"" + file + "\": " + e.getMessage());
+                visitFailures.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // wait for the last files to be hashed
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException("Re-link job interrupted");
+        }
+
+        // forget files that are gone so the cache doesn't grow forever, but only after a complete walk
+        if (visitFailures.get() == 0) {
+            hashCache.keySet().retainAll(seenPaths);
+        } else {
+            System.out.println("WARNING: " + visitFailures.get() + " path(s) could not be visited, keeping the re-link " +
+                    "hash cache entries of unseen files");
+        }
+        saveHashCache();
+        return foundPaths;
+    }
+
+    /**
+     * Loads the hash cache saved by an earlier run, once per process
+     */
+    private static void loadHashCache() {
+        String cachePath = ApiSettings.getRelinkHashCachePath();
+        if (hashCacheLoaded || cachePath == null || cachePath.isEmpty()) {
+            return;
+        }
+        hashCacheLoaded = true;
+        Path path = Path.of(cachePath);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // size, mtime, md5, path; the path goes last since it is the only field that can contain a tab
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    hashCache.put(fields[3], new FileState(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            fields[2]));
+                }
+            }
+            System.out.println("INFO: Loaded " + hashCache.size() + " re-link hash cache entries from \"" + path + "\"");
+        } catch (IOException | NumberFormatException e) {
+            hashCache.clear();
+            System.out.println("WARNING: Could not load the re-link hash cache \"" + path + "\", all unreferenced " +
+                    "files will be hashed again: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the hash cache, replacing the old file only once the new one is complete
+     */
+    private static void saveHashCache() {
+        String cachePath = ApiSettings.getRelinkHashCachePath();
+        if (cachePath == null || cachePath.isEmpty()) {
+            return;
+        }
+        Path path = Path.of(cachePath);
+        Path tmpPath = Path.of(cachePath + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, FileState> entry : hashCache.entrySet()) {
+                    if (entry.getKey().indexOf('\n') >= 0 || entry.getKey().indexOf('\r') >= 0) {
+                        continue;
+                    }
+                    FileState state = entry.getValue();
+                    writer.write(state.sizeBytes + "\t" + state.mtimeMillis + "\t" + state.md5 + "\t" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("WARNING: Could not save the re-link hash cache \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the path of every row with a NULL path and a matching md5, with one update per table. The md5 is compared
+     * as stored, so the md5 index can be used
+     */
+    private static void relinkRows(Connection conn, Map<String, String> foundPaths,
+                                   Map<String, List<OrphanRef>> orphanedMd5s) throws SQLException {
+        HashMap<String, List<String>> md5sByTable = new HashMap<>();
+        HashMap<String, List<String>> pathsByTable = new HashMap<>();
+        for (Map.Entry<String, String> found : foundPaths.entrySet()) {
+            for (OrphanRef ref : orphanedMd5s.get(found.getKey())) {
+                md5sByTable.computeIfAbsent(ref.fullTableName, k -> new ArrayList<>()).add(ref.md5);
+                pathsByTable.computeIfAbsent(ref.fullTableName, k -> new ArrayList<>()).add(found.getValue());
+            }
+        }
+
+        for (Map.Entry<String, List<String>> tableEntry : md5sByTable.entrySet()) {
+            String fullTableName = tableEntry.getKey();
+            String query = "UPDATE " + fullTableName + " t SET file_path = v.path FROM unnest(?, ?) AS v(md5, path) " +
+                    "WHERE t.md5 = v.md5 AND t.file_path IS NULL;";
+            try (PreparedStatement statement = conn.prepareStatement(query)) {
+                statement.setArray(1, conn.createArrayOf("text", tableEntry.getValue().toArray()));
+                statement.setArray(2, conn.createArrayOf("text", pathsByTable.get(fullTableName).toArray()));
+                int relinked = statement.executeUpdate();
+                rowsRelinked.addAndGet(relinked);
+                if (relinked > 0) {
+                    InvalidationBus.publish(fullTableName);
+                }
+                System.out.println("INFO: Re-linked " + relinked + " row(s) in DB table \"" + fullTableName + "\"");
+            }
+        }
+    }
+
+    /**
+     * Computes the md5 of a file by memory-mapping it in {@link #MAP_WINDOW_BYTES} windows
+     *
+     * @param file      File to hash
+     * @param sizeBytes Size of the file
+     * @return Lowercase hex md5
+     * @throws IOException
+     */
+    static String md5Mapped(Path file, long sizeBytes) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < sizeBytes) {
+                long length = Math.min(MAP_WINDOW_BYTES, sizeBytes - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                digest.update(buffer);
+                position += length;
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * A table with rows that have a NULL path and a given md5, and the md5 exactly as the table stores it
+     */
+    private static class OrphanRef {
+        private final String fullTableName;
+        private final String md5;
+
+        private OrphanRef(String fullTableName, String md5) {
+            this.fullTableName = fullTableName;
+            this.md5 = md5;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof OrphanRef)) {
+                return false;
+            }
+            OrphanRef other = (OrphanRef) o;
+            return fullTableName.equals(other.fullTableName) && md5.equals(other.md5);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fullTableName, md5);
+        }
+    }
+
+    /**
+     * Size, mtime and md5 of a file when it was last hashed
+     */
+    private static class FileState {
+        private final long sizeBytes;
+        private final long mtimeMillis;
+        private final String md5;
+
+        private FileState(long sizeBytes, long mtimeMillis, String md5) {
+            this.sizeBytes = sizeBytes;
+            this.mtimeMillis = mtimeMillis;
+            this.md5 = md5;
+        }
+    }
+}
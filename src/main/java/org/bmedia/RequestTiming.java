@@ -0,0 +1,132 @@
+package org.bmedia;
+
+/**
+ * Per-request breakdown of where time was spent. The {@link RequestTimingFilter} starts one for every image and search
+ * request; code on the request thread adds to it with {@link #add(int, long)}, which does nothing when no timing is
+ * active (e.g. on background threads). The breakdown is sent back in the Server-Timing header and kept for slow
+ * requests (see {@link SlowRequestLog})
+ */
+public class RequestTiming {
+
+    public static final int DB = 0;
+    public static final int FILE_READ = 1;
+    public static final int DECODE = 2;
+    public static final int RESIZE = 3;
+    public static final int ENCODE = 4;
+    public static final int SERIALIZE = 5;
+
+    /**
+     * Phase names, indexed by the phase constants. Also used as the Server-Timing metric names
+     */
+    public static final String[] PHASE_NAMES = {"db", "file_read", "decode", "resize", "encode", "serialize"};
+
+    private static final ThreadLocal<RequestTiming> current = new ThreadLocal<>();
+
+    private final long startNanos = System.nanoTime();
+    private final long[] phaseNanos = new long[PHASE_NAMES.length];
+    private String sql = null;
+
+    /**
+     * Starts timing the current request
+     *
+     * @return New timing for the request
+     */
+    static RequestTiming start() {
+        RequestTiming timing = new RequestTiming();
+        current.set(timing);
+        return timing;
+    }
+
+    /**
+     * Stops timing the current request
+     */
+    static void clear() {
+        current.remove();
+    }
+
+    /**
+     * Gets the timing of the request being handled on this thread
+     *
+     * @return Timing, or null if the current request isn't timed
+     */
+    public static RequestTiming current() {
+        return current.get();
+    }
+
+    /**
+     * Adds time to a phase of the current request
+     *
+     * @param phase One of the phase constants
+     * @param nanos Time spent in nanoseconds
+     */
+    public static void add(int phase, long nanos) {
+        RequestTiming timing = current.get();
+        if (timing != null) {
+            timing.phaseNanos[phase] += nanos;
+        }
+    }
+
+    /**
+     * Records the SQL generated for the current request, so it can be looked at if the request is slow
+     *
+     * @param sql SQL query
+     */
+    public static void setSql(String sql) {
+        RequestTiming timing = current.get();
+        if (timing != null) {
+            timing.sql = sql;
+        }
+    }
+
+    /**
+     * Gets the time spent in the image phases (read, decode, resize, encode) so far
+     *
+     * @return Time in nanoseconds
+     */
+    public long getImageNanos() {
+        return phaseNanos[FILE_READ] + phaseNanos[DECODE] + phaseNanos[RESIZE] + phaseNanos[ENCODE];
+    }
+
+    /**
+     * Gets the time spent in a phase
+     *
+     * @param phase One of the phase constants
+     * @return Time in nanoseconds
+     */
+    public long getPhaseNanos(int phase) {
+        return phaseNanos[phase];
+    }
+
+    /**
+     * Gets the time since the request started
+     *
+     * @return Time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Formats the breakdown as a Server-Timing header value, e.g. "db;dur=3.21, decode;dur=10.5, total;dur=15.02"
+     *
+     * @return Header value
+     */
+    public String toServerTimingHeader() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            if (phaseNanos[i] > 0) {
+                out.append(PHASE_NAMES[i]).append(";dur=").append(formatMillis(phaseNanos[i])).append(", ");
+            }
+        }
+        out.append("total;dur=").append(formatMillis(getElapsedNanos()));
+        return out.toString();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.valueOf(Math.round(nanos / 10000.0) / 100.0);
+    }
+}
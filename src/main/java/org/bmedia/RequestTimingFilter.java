@@ -0,0 +1,50 @@
+package org.bmedia;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Starts a {@link RequestTiming} for every image and search request and hands slow ones to {@link SlowRequestLog}. The
+ * Server-Timing header itself is added by {@link ServerTimingAdvice}, since headers must be set before the body is
+ * written
+ */
+@Component
+public class RequestTimingFilter extends OncePerRequestFilter {
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        return !(path.startsWith("/images/") || path.startsWith("/search_images/"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        RequestTiming timing = RequestTiming.start();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            RequestTiming.clear();
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            String endpoint = (pattern == null) ? request.getRequestURI() : pattern.toString();
+            SlowRequestLog.recordIfSlow(endpoint, formatParams(request), response.getStatus(), timing);
+        }
+    }
+
+    private static String formatParams(HttpServletRequest request) {
+        ArrayList<String> params = new ArrayList<>();
+        for (Map.Entry<String, String[]> param : request.getParameterMap().entrySet()) {
+            params.add(param.getKey() + "=" + String.join(",", param.getValue()));
+        }
+        return String.join("&", params);
+    }
+}
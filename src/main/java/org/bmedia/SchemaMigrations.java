@@ -0,0 +1,389 @@
+package org.bmedia;
+
+import org.json.simple.JSONValue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Versioned schema migrations for the media tables, run in the background at startup.
+ * <p>
+ * Migrations are applied to every media table and recorded per table in [schema].bmedia_schema_migrations, so tables
+ * added later get them on the next run. Every statement is idempotent and indexes are built CONCURRENTLY, so a run
+ * that was interrupted half-way can simply be repeated. Migrations must never take long locks on the media tables:
+ * columns are only added without defaults (a catalog change), never as stored generated columns or with volatile
+ * defaults, which rewrite the table under an ACCESS EXCLUSIVE lock. After migrating, the expected columns and indexes are
+ * verified; invalid indexes (e.g. left behind by a failed concurrent build) are dropped and rebuilt. Query code should
+ * only rely on a column once {@link #hasColumn(String, String)} says it was verified. Replicas take a DB advisory lock
+ * so only one of them migrates at a time
+ */
+public class SchemaMigrations {
+
+    // arbitrary, but fixed, key for pg_advisory_lock
+    private static final long ADVISORY_LOCK_KEY = 0x626d656469614d67L;
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+
+    /**
+     * Every migration, in version order. Never change or remove a migration that has shipped; add a new one instead
+     */
+    private static final List<Migration> MIGRATIONS = List.of(
+            // expression indexes rather than generated columns: adding a stored column rewrites the whole table
+            // under an ACCESS EXCLUSIVE lock, which would block every search while it runs
+            new Migration(1, "aspect ratio and pixel count expression indexes")
+                    .index("pixel_count_expr_idx", false, "(" + SearchQuery.pixelCountSql("") + ", id) " +
+                            "WHERE file_path IS NOT NULL")
+                    .index("aspect_ratio_expr_idx", false, "(" + SearchQuery.aspectRatioSql("") + ", id) " +
+                            "WHERE file_path IS NOT NULL"),
+            new Migration(2, "partial indexes on present files and sort indexes")
+                    .index("present_idx", false, "(id) WHERE file_path IS NOT NULL")
+                    .index("file_size_idx", false, "(file_size_bytes, id) WHERE file_path IS NOT NULL")
+                    .index("width_idx", false, "(resolution_width, id) WHERE file_path IS NOT NULL")
+                    .index("height_idx", false, "(resolution_height, id) WHERE file_path IS NOT NULL"),
+            new Migration(3, "(tag_name, id) index on the tag join table")
+                    .index("tag_id_idx", true, "(tag_name, id)"),
+            new Migration(4, "tag_array column for the array search engine")
+                    .onlyIf(tbName -> ApiSettings.getSearchEngine(tbName).equals(ApiSettings.SEARCH_ENGINE_ARRAY))
+                    .column("tag_array", "TEXT[]")
+                    .index("tag_array_gin", false, "USING GIN (tag_array)")
+                    .index("tag_array_pending_idx", false, "(id) WHERE tag_array IS NULL"),
+            new Migration(5, "dhash column for perceptual hash similarity search")
+                    .column("dhash", "BIGINT")
+                    .index("dhash_pending_idx", false, "(id) WHERE dhash IS NULL AND file_path IS NOT NULL"),
+            new Migration(6, "blurhash placeholder column")
+                    .column("blurhash", "TEXT")
+                    .index("blurhash_pending_idx", false, "(id) WHERE blurhash IS NULL AND file_path IS NOT NULL")
+    );
+
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+    private static ExecutorService executor = null;
+
+    // full table name -> columns added by migrations that were verified to exist
+    private static final ConcurrentHashMap<String, Set<String>> verifiedColumns = new ConcurrentHashMap<>();
+    // full table name -> status of the last run, for the status endpoint
+    private static final ConcurrentHashMap<String, String> tableStatus = new ConcurrentHashMap<>();
+    private static volatile long startedAtMillis = 0;
+    private static volatile long finishedAtMillis = 0;
+    private static volatile String lastError = null;
+
+    /**
+     * Starts migrating all media tables in the background. Calling this more than once does nothing
+     */
+    public synchronized static void start() {
+        if (executor != null || !ApiSettings.getSchemaMigrationsEnabled()) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "schema-migrations");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.submit(SchemaMigrations::migrateAllTables);
+    }
+
+    /**
+     * Runs the migrations again in the background (e.g. after adding a media table) if they are not already running
+     *
+     * @return True if a new run was started
+     */
+    public static boolean triggerRun() {
+        if (executor == null || running.get()) {
+            return false;
+        }
+        executor.submit(SchemaMigrations::migrateAllTables);
+        return true;
+    }
+
+    /**
+     * Checks if a column added by a migration exists on a table
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param column        Column name
+     * @return True if the column was verified
+     */
+    public static boolean hasColumn(String fullTableName, String column) {
+        Set<String> columns = verifiedColumns.get(fullTableName);
+        return columns != null && columns.contains(column);
+    }
+
+    /**
+     * Gets the status of the running migration, or the results of the last one, as JSON
+     *
+     * @return Migration status JSON
+     */
+    public static String getStatusJson() {
+        ArrayList<String> tables = new ArrayList<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(tableStatus).entrySet()) {
+            tables.add("\"" + entry.getKey() + "\": \"" + JSONValue.escape(entry.getValue()) + "\"");
+        }
+        return "{" +
+                "\"running\": " + running.get() + "," +
+                "\"latest_version\": " + MIGRATIONS.get(MIGRATIONS.size() - 1).version + "," +
+                "\"started_at_millis\": " + startedAtMillis + "," +
+                "\"finished_at_millis\": " + finishedAtMillis + "," +
+                "\"tables\": {" + String.join(",", tables) + "}," +
+                "\"last_error\": " + ((lastError == null) ? "null" : "\"" + JSONValue.escape(lastError) + "\"") +
+                "}";
+    }
+
+    /**
+     * Migrates and verifies every media table
+     */
+    private static void migrateAllTables() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        startedAtMillis = System.currentTimeMillis();
+        finishedAtMillis = 0;
+        lastError = null;
+
+        // CREATE INDEX CONCURRENTLY can't run in a transaction, so this connection stays in auto-commit
+        try (Connection conn = Main.createDbConnection()) {
+            String schemaName = ApiSettings.getSchemaName();
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS " + schemaName + ".bmedia_schema_migrations (" +
+                        "table_name TEXT NOT NULL, version INTEGER NOT NULL, description TEXT NOT NULL, " +
+                        "applied_at TIMESTAMPTZ NOT NULL DEFAULT now(), PRIMARY KEY (table_name, version));");
+                statement.execute("SELECT pg_advisory_lock(" + ADVISORY_LOCK_KEY + ");");
+            }
+            try {
+                for (String tbName : Main.getMediaTableNames()) {
+                    String fullTableName = schemaName + "." + tbName;
+                    try {
+                        migrateTable(conn, schemaName, tbName);
+                        verifyTable(conn, schemaName, tbName);
+                    } catch (SQLException e) {
+                        tableStatus.put(fullTableName, "failed: " + e.getMessage());
+                        lastError = e.getMessage();
+                        System.out.println("ERROR: Schema migration of \"" + fullTableName + "\" failed:\n" +
+                                e.getMessage());
+                    }
+                }
+            } finally {
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute("SELECT pg_advisory_unlock(" + ADVISORY_LOCK_KEY + ");");
+                }
+            }
+        } catch (SQLException e) {
+            lastError = e.getMessage();
+            System.out.println("ERROR: Schema migrations failed:\n" + e.getMessage());
+        } catch (RuntimeException e) {
+            lastError = e.toString();
+            e.printStackTrace();
+        } finally {
+            finishedAtMillis = System.currentTimeMillis();
+            running.set(false);
+        }
+        // new tag_array, dhash and blurhash columns need to be filled in
+        TagArrays.triggerBackfill();
+        PerceptualIndex.triggerBackfill();
+        Placeholders.triggerBackfill();
+    }
+
+    /**
+     * Applies every migration the table doesn't have yet, in order
+     */
+    private static void migrateTable(Connection conn, String schemaName, String tbName) throws SQLException {
+        String fullTableName = schemaName + "." + tbName;
+        Set<Integer> applied = new HashSet<>();
+        String query = "SELECT version FROM " + schemaName + ".bmedia_schema_migrations WHERE table_name = ?;";
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setString(1, tbName);
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                applied.add(result.getInt("version"));
+            }
+        }
+
+        for (Migration migration : MIGRATIONS) {
+            // migrations that don't apply yet aren't recorded, so they run if the table's config changes later
+            if (applied.contains(migration.version) || !migration.appliesTo.test(tbName)) {
+                continue;
+            }
+            tableStatus.put(fullTableName, "applying version " + migration.version);
+            System.out.println("INFO: Applying schema migration " + migration.version + " (" + migration.description +
+                    ") to \"" + fullTableName + "\"");
+            long start = System.currentTimeMillis();
+            try (Statement statement = conn.createStatement()) {
+                for (String sql : migration.toSql(schemaName, tbName)) {
+                    statement.execute(sql);
+                }
+            }
+            String insert = "INSERT INTO " + schemaName + ".bmedia_schema_migrations (table_name, version, description) " +
+                    "VALUES (?, ?, ?) ON CONFLICT DO NOTHING;";
+            try (PreparedStatement statement = conn.prepareStatement(insert)) {
+                statement.setString(1, tbName);
+                statement.setInt(2, migration.version);
+                statement.setString(3, migration.description);
+                statement.executeUpdate();
+            }
+            System.out.println("INFO: Applied schema migration " + migration.version + " to \"" + fullTableName +
+                    "\" in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Checks that every column and index the migrations create exists and is valid. Invalid or missing indexes are
+     * rebuilt once
+     */
+    private static void verifyTable(Connection conn, String schemaName, String tbName) throws SQLException {
+        String fullTableName = schemaName + "." + tbName;
+
+        Set<String> columns = new HashSet<>();
+        String columnQuery = "SELECT column_name FROM information_schema.columns WHERE table_schema = ? AND table_name = ?;";
+        try (PreparedStatement statement = conn.prepareStatement(columnQuery)) {
+            statement.setString(1, schemaName);
+            statement.setString(2, tbName);
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                columns.add(result.getString("column_name"));
+            }
+        }
+        Set<String> verified = ConcurrentHashMap.newKeySet();
+        ArrayList<String> problems = new ArrayList<>();
+        for (Migration migration : MIGRATIONS) {
+            if (!migration.appliesTo.test(tbName)) {
+                continue;
+            }
+            for (String[] column : migration.columns) {
+                if (columns.contains(column[0])) {
+                    verified.add(column[0]);
+                } else {
+                    problems.add("missing column " + column[0]);
+                }
+            }
+        }
+        verifiedColumns.put(fullTableName, verified);
+
+        for (Migration migration : MIGRATIONS) {
+            if (!migration.appliesTo.test(tbName)) {
+                continue;
+            }
+            for (IndexDef index : migration.indexes) {
+                String indexName = index.name(tbName);
+                Boolean valid = isIndexValid(conn, schemaName, indexName);
+                if (valid != null && valid) {
+                    continue;
+                }
+                System.out.println("WARNING: Index \"" + schemaName + "." + indexName + "\" is " +
+                        ((valid == null) ? "missing" : "invalid") + ". Rebuilding it");
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute("DROP INDEX CONCURRENTLY IF EXISTS " + schemaName + "." + indexName + ";");
+                    statement.execute(index.toSql(schemaName, tbName));
+                }
+                valid = isIndexValid(conn, schemaName, indexName);
+                if (valid == null || !valid) {
+                    problems.add("index " + indexName + " is " + ((valid == null) ? "missing" : "invalid"));
+                }
+            }
+        }
+
+        if (problems.isEmpty()) {
+            tableStatus.put(fullTableName, "verified at version " + MIGRATIONS.get(MIGRATIONS.size() - 1).version);
+        } else {
+            tableStatus.put(fullTableName, "verification failed: " + String.join(", ", problems));
+            System.out.println("WARNING: Schema verification of \"" + fullTableName + "\" failed: " +
+                    String.join(", ", problems));
+        }
+    }
+
+    /**
+     * @return True if the index is valid, false if it exists but is invalid, null if it doesn't exist
+     */
+    private static Boolean isIndexValid(Connection conn, String schemaName, String indexName) throws SQLException {
+        String query = "SELECT i.indisvalid FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid " +
+                "JOIN pg_namespace n ON n.oid = c.relnamespace WHERE n.nspname = ? AND c.relname = ?;";
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setString(1, schemaName);
+            statement.setString(2, indexName);
+            ResultSet result = statement.executeQuery();
+            return result.next() ? result.getBoolean("indisvalid") : null;
+        }
+    }
+
+    /**
+     * One schema version: columns added to the media table and indexes on the media or tag join table
+     */
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final List<String[]> columns = new ArrayList<>();
+        private final List<IndexDef> indexes = new ArrayList<>();
+        private Predicate<String> appliesTo = tbName -> true;
+
+        private Migration(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+
+        private Migration onlyIf(Predicate<String> appliesTo) {
+            this.appliesTo = appliesTo;
+            return this;
+        }
+
+        private Migration column(String name, String definition) {
+            columns.add(new String[]{name, definition});
+            return this;
+        }
+
+        private Migration index(String suffix, boolean onJoinTable, String definition) {
+            indexes.add(new IndexDef(suffix, onJoinTable, definition));
+            return this;
+        }
+
+        private List<String> toSql(String schemaName, String tbName) {
+            ArrayList<String> sql = new ArrayList<>();
+            for (String[] column : columns) {
+                sql.add("ALTER TABLE " + schemaName + "." + tbName + " ADD COLUMN IF NOT EXISTS " + column[0] + " " +
+                        column[1] + ";");
+            }
+            for (IndexDef index : indexes) {
+                sql.add(index.toSql(schemaName, tbName));
+            }
+            return sql;
+        }
+    }
+
+    /**
+     * An index created by a migration. Index names are derived from the table name so every table gets its own
+     */
+    private static class IndexDef {
+        private final String suffix;
+        private final boolean onJoinTable;
+        private final String definition;
+
+        private IndexDef(String suffix, boolean onJoinTable, String definition) {
+            this.suffix = suffix;
+            this.onJoinTable = onJoinTable;
+            this.definition = definition;
+        }
+
+        private String name(String tbName) {
+            String prefix = tbName + (onJoinTable ? "_tags_join" : "");
+            // Postgres silently truncates long names, which would break verification by name
+            int maxPrefix = MAX_IDENTIFIER_LENGTH - suffix.length() - "_bm_".length();
+            if (prefix.length() > maxPrefix) {
+                prefix = prefix.substring(0, maxPrefix);
+            }
+            return prefix + "_bm_" + suffix;
+        }
+
+        private String toSql(String schemaName, String tbName) {
+            String target = schemaName + "." + tbName + (onJoinTable ? "_tags_join" : "");
+            return "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name(tbName) + " ON " + target + " " + definition + ";";
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.bmedia;
+
+import java.util.List;
+
+/**
+ * Cache of search results, keyed by {@link SearchQuery#canonicalKey(int, int)}. Pages store the ordered rows (ids and
+ * metadata); counts store the total number of results.
+ * <p>
+ * Entries remember the {@link TableGenerations generation} of their table at the time the query started. Any change
+ * to the table made through the API bumps the generation, so those stale entries are never returned; they are dropped
+ * when next looked up or pushed out by newer entries. Changes made by the external ingester don't bump anything, so
+ * entries also expire after {@link ApiSettings#getSearchCacheMaxAgeSeconds()}
+ */
+public class SearchCache {
+
+    private static WeightedLruCache<String, Entry> cache = null;
+
+    private static synchronized WeightedLruCache<String, Entry> getCache() {
+        if (cache == null) {
+            cache = new WeightedLruCache<>("search", ApiSettings.getSearchCacheMaxBytes(), Entry::estimateBytes);
+        }
+        return cache;
+    }
+
+    /**
+     * Gets a cached page of results
+     *
+     * @param key        Canonical search key
+     * @param generation Current generation of the searched table
+     * @return Rows of the page, or null if not cached or stale
+     */
+    public static List<ImageRow> getPage(String key, long generation) {
+        Entry entry = get("page|" + key, generation);
+        return (entry == null) ? null : entry.rows;
+    }
+
+    /**
+     * Caches a page of results
+     *
+     * @param key        Canonical search key
+     * @param generation Generation of the searched table, read before the query ran
+     * @param rows       Rows of the page
+     */
+    public static void putPage(String key, long generation, List<ImageRow> rows) {
+        getCache().put("page|" + key, new Entry(generation, rows, -1));
+    }
+
+    /**
+     * Gets a cached result count
+     *
+     * @param key        Canonical search key
+     * @param generation Current generation of the searched table
+     * @return Total number of results, or -1 if not cached or stale
+     */
+    public static int getCount(String key, long generation) {
+        Entry entry = get("count|" + key, generation);
+        return (entry == null) ? -1 : entry.count;
+    }
+
+    /**
+     * Caches a result count
+     *
+     * @param key        Canonical search key
+     * @param generation Generation of the searched table, read before the query ran
+     * @param count      Total number of results
+     */
+    public static void putCount(String key, long generation, int count) {
+        getCache().put("count|" + key, new Entry(generation, null, count));
+    }
+
+    private static Entry get(String key, long generation) {
+        long maxAgeNanos = ApiSettings.getSearchCacheMaxAgeSeconds() * 1_000_000_000L;
+        long now = System.nanoTime();
+        return getCache().get(key, entry -> entry.generation == generation &&
+                (maxAgeNanos <= 0 || now - entry.createdNanos < maxAgeNanos));
+    }
+
+    private static class Entry {
+        private final long generation;
+        private final List<ImageRow> rows;
+        private final int count;
+        private final long createdNanos = System.nanoTime();
+
+        private Entry(long generation, List<ImageRow> rows, int count) {
+            this.generation = generation;
+            this.rows = rows;
+            this.count = count;
+        }
+
+        private long estimateBytes() {
+            // entry, key and list overhead
+            long bytes = 200;
+            if (rows != null) {
+                for (ImageRow row : rows) {
+                    bytes += 8 + row.estimateBytes();
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.bmedia;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in the results of a search across several tables (see {@link FederatedSearch}).
+ * <p>
+ * Results of all tables are merged by sort key, then id, then table name, so the last result of a page identifies
+ * exactly where the next page starts in every table. Clients get the cursor as an opaque string
+ */
+public class SearchCursor implements Comparable<SearchCursor> {
+
+    private final String sort;
+    private final Long sortKey;
+    private final long id;
+    private final String tableName;
+
+    /**
+     * Main constructor
+     *
+     * @param sort      Sort description (see {@link SearchQuery#getSortDescription()})
+     * @param sortKey   Sort key of the result, or null if results are only sorted by id
+     * @param id        Image ID
+     * @param tableName Table name ([schema_name].[table_name])
+     */
+    public SearchCursor(String sort, Long sortKey, long id, String tableName) {
+        this.sort = sort;
+        this.sortKey = sortKey;
+        this.id = id;
+        this.tableName = tableName;
+    }
+
+    /**
+     * Creates the cursor of a search result
+     *
+     * @param query Search the row was found by
+     * @param row   Result row
+     * @return Cursor pointing at the row
+     */
+    public static SearchCursor of(SearchQuery query, ImageRow row) {
+        return new SearchCursor(query.getSortDescription(), query.getSortKey(row), row.getId(), query.getFullTableName());
+    }
+
+    /**
+     * Encodes the cursor for clients
+     *
+     * @return URL-safe cursor string
+     */
+    @SuppressWarnings("unchecked")
+    public String encode() {
+        JSONObject json = new JSONObject();
+        json.put("s", sort);
+        json.put("k", sortKey);
+        json.put("id", id);
+        json.put("t", tableName);
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(json.toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor from {@link #encode()}
+     *
+     * @param encoded Cursor string
+     * @param sort    Sort description of the search it is used with
+     * @return Cursor
+     * @throws IllegalArgumentException If the cursor is malformed or belongs to a search with a different sort order
+     */
+    public static SearchCursor decode(String encoded, String sort) {
+        Object parsed;
+        try {
+            parsed = JSONValue.parse(new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        if (!(parsed instanceof JSONObject)) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        JSONObject json = (JSONObject) parsed;
+        if (!sort.equals(json.get("s"))) {
+            throw new IllegalArgumentException("Cursor belongs to a search with a different sort order");
+        }
+        Object sortKey = json.get("k");
+        Object id = json.get("id");
+        Object tableName = json.get("t");
+        // only searches sorted by id alone have no sort key
+        boolean needsSortKey = !sort.startsWith("id:");
+        if ((needsSortKey ? !(sortKey instanceof Long) : sortKey != null) || !(id instanceof Long) ||
+                !(tableName instanceof String)) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        return new SearchCursor(sort, (Long) sortKey, (Long) id, (String) tableName);
+    }
+
+    /**
+     * Orders cursors ascending by sort key, then id, then table name. Searches sorted descending reverse this
+     */
+    @Override
+    public int compareTo(SearchCursor other) {
+        if (sortKey != null && other.sortKey != null) {
+            int bySortKey = Long.compare(sortKey, other.sortKey);
+            if (bySortKey != 0) {
+                return bySortKey;
+            }
+        }
+        int byId = Long.compare(id, other.id);
+        if (byId != 0) {
+            return byId;
+        }
+        return tableName.compareTo(other.tableName);
+    }
+
+    public Long getSortKey() {
+        return sortKey;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+}
@@ -0,0 +1,683 @@
+package org.bmedia;
+
+import org.json.simple.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Builds the SQL for a tag search. The search parameters are parsed once when the query is created; {@link #toSql(int, int)}
+ * can then be called for any page
+ */
+public class SearchQuery {
+
+    // an EXISTS probe of the join table's (id, tag_name) key costs about as much as reading this many join rows
+    private static final long EXISTS_PROBE_COST = 4;
+
+    private static final Metrics.Counter PLAN_JOIN = planCounter("join");
+    private static final Metrics.Counter PLAN_EXISTS = planCounter("exists");
+    private static final Metrics.Counter PLAN_ARRAY = planCounter("array");
+    private static final Metrics.Counter PLAN_EMPTY = planCounter("empty");
+
+    private final String tbName;
+    private final String tbNameFull;
+    private final String tagJoinTableName;
+    private final String tagTableName;
+    private final String[] tags;
+    private final ArrayList<String> excludeTags;
+    private final boolean includeNsfwVal;
+    private final Optional<Integer> minWidth;
+    private final Optional<Integer> minHeight;
+    private final Optional<Double> aspectRatio;
+    private final boolean ascending;
+    private final Optional<String> sortBy;
+    private final Set<String> fields;
+
+    /**
+     * Main constructor
+     *
+     * @param tbName         Table name
+     * @param schemaName     Schema name
+     * @param inputTags      List of tags. Tags starting with '-' are excluded from the results
+     * @param includeNsfwVal Whether to include NSFW results
+     * @param minWidth       Min width
+     * @param minHeight      Min height
+     * @param aspectRatio    Aspect ratio
+     * @param ascending      Asc/Desc
+     * @param sortBy         Sort by string
+     */
+    public SearchQuery(String tbName, String schemaName, String[] inputTags, boolean includeNsfwVal,
+                       Optional<Integer> minWidth, Optional<Integer> minHeight, Optional<Double> aspectRatio,
+                       boolean ascending, Optional<String> sortBy) {
+        this(tbName, schemaName, inputTags, includeNsfwVal, minWidth, minHeight, aspectRatio, ascending, sortBy, null);
+    }
+
+    /**
+     * Constructor for searches that only need some of the row columns. Columns the query itself needs (sort keys and
+     * filtered columns) are always selected as well
+     *
+     * @param tbName         Table name
+     * @param schemaName     Schema name
+     * @param inputTags      List of tags. Tags starting with '-' are excluded from the results
+     * @param includeNsfwVal Whether to include NSFW results
+     * @param minWidth       Min width
+     * @param minHeight      Min height
+     * @param aspectRatio    Aspect ratio
+     * @param ascending      Asc/Desc
+     * @param sortBy         Sort by string
+     * @param fields         Row columns to select (see {@link ImageRow#COLUMNS}), or null for all of them
+     */
+    public SearchQuery(String tbName, String schemaName, String[] inputTags, boolean includeNsfwVal,
+                       Optional<Integer> minWidth, Optional<Integer> minHeight, Optional<Double> aspectRatio,
+                       boolean ascending, Optional<String> sortBy, Set<String> fields) {
+        this.tbName = tbName;
+        this.tbNameFull = schemaName + "." + tbName;
+        this.tagJoinTableName = schemaName + "." + tbName + "_tags_join";
+        this.tagTableName = schemaName + "." + "tags";
+        this.includeNsfwVal = includeNsfwVal;
+        this.minWidth = minWidth;
+        this.minHeight = minHeight;
+        this.aspectRatio = aspectRatio;
+        this.ascending = ascending;
+        this.sortBy = sortBy;
+        this.fields = fields;
+
+        String[] escapedTags = new String[inputTags.length];
+        for (int i = 0; i < inputTags.length; i++) {
+            escapedTags[i] = inputTags[i].replace("'", "''");
+        }
+
+        // Get excluded tags
+        excludeTags = new ArrayList<>();
+        for (int i = 0; i < escapedTags.length; i++) {
+            if (escapedTags[i].startsWith("-")) {
+                excludeTags.add(escapedTags[i].replace("-", ""));
+            }
+        }
+        // Remove excluded tags from input tags
+        ArrayList<String> newTags = new ArrayList<>();
+        for (String tag : escapedTags) {
+            if (!tag.startsWith("-")) {
+                newTags.add(tag);
+            }
+        }
+        tags = newTags.toArray(String[]::new);
+    }
+
+    /**
+     * Creates the SQL query for the search request
+     * <p>
+     * NOTE: does not include a terminating semicolon so that this query can be used as a sub-query
+     *
+     * @param pageNum        Page number ( use -1 if you want all results)
+     * @param resultsPerPage Number of results per page
+     * @return SQL query to search for images in DB (no trailing ';')
+     */
+    public String toSql(int pageNum, int resultsPerPage) {
+        return toSql(pageNum, resultsPerPage, null);
+    }
+
+    /**
+     * Creates the SQL query for the first results that come after a cursor (keyset pagination). Unlike OFFSET paging,
+     * the DB doesn't have to produce and skip the earlier results, and results don't shift when images are added
+     * <p>
+     * NOTE: does not include a terminating semicolon so that this query can be used as a sub-query
+     *
+     * @param after Cursor to continue after, or null for the first results
+     * @param limit Max number of results
+     * @return SQL query to search for images in DB (no trailing ';')
+     */
+    public String toSqlAfter(SearchCursor after, int limit) {
+        return toSql(0, limit, after);
+    }
+
+    /**
+     * Creates the SQL query for the first result after a cursor, for probing the table at random positions. Each probe
+     * only reads the rows from the cursor up to the first match, so the join-based query, which groups the join rows of
+     * every included tag before the first result comes out, is not used:
+     * <ul>
+     *     <li>array engine: the tag_array conditions are checked on the image rows</li>
+     *     <li>included tags: the existence-based query, walking the rarest tag's (tag_name, id) index from the cursor
+     *     (tags with an unknown count are treated as the most common)</li>
+     *     <li>no included tags: image rows from the cursor on, with EXISTS for having any tag</li>
+     * </ul>
+     * A repeated included tag changes the meaning of the join query (see {@link #prefersExists(long[])}), so such
+     * searches still probe with it
+     * <p>
+     * NOTE: does not include a terminating semicolon so that this query can be used as a sub-query
+     *
+     * @param after Cursor to continue after
+     * @return SQL query for at most one image (no trailing ';')
+     */
+    public String toProbeSql(SearchCursor after) {
+        long[] tagCounts = getTagCounts();
+        boolean arrayEngine = ApiSettings.getSearchEngine(tbName).equals(ApiSettings.SEARCH_ENGINE_ARRAY);
+        if (isKnownEmpty(tagCounts) || (arrayEngine && TagArrays.isReady(tbNameFull)) ||
+                Arrays.stream(tags).distinct().count() < tags.length) {
+            return toSql(0, 1, after);
+        }
+        long[] probeCounts = new long[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            probeCounts[i] = (tagCounts == null || tagCounts[i] < 0) ? Long.MAX_VALUE : tagCounts[i];
+        }
+        PLAN_EXISTS.inc();
+        return toExistsSql(0, 1, after, probeCounts);
+    }
+
+    private String toSql(int pageNum, int resultsPerPage, SearchCursor after) {
+        long[] tagCounts = getTagCounts();
+        if (isKnownEmpty(tagCounts)) {
+            PLAN_EMPTY.inc();
+            return "SELECT " + rowColumns("a.") + " FROM " + tbNameFull + " a WHERE FALSE";
+        }
+        boolean arrayEngine = ApiSettings.getSearchEngine(tbName).equals(ApiSettings.SEARCH_ENGINE_ARRAY);
+        if (arrayEngine && TagArrays.isReady(tbNameFull)) {
+            PLAN_ARRAY.inc();
+            return toArraySql(pageNum, resultsPerPage, after);
+        }
+        if (prefersExists(tagCounts)) {
+            PLAN_EXISTS.inc();
+            return toExistsSql(pageNum, resultsPerPage, after, tagCounts);
+        }
+        PLAN_JOIN.inc();
+
+        String excludeString = "'" + String.join("','", excludeTags.toArray(String[]::new)) + "'";
+        boolean excludingTags = excludeTags.size() > 0;
+
+        // Main query
+        String fullQuery = createBaseQuery(excludingTags);
+
+        // Filter query if applicable
+        boolean hExists = minHeight.isPresent();
+        boolean wExists = minWidth.isPresent();
+        boolean arExists = aspectRatio.isPresent();
+        boolean doSubQuery = hExists || wExists || arExists || after != null;
+        String extraFilteringString = "";
+
+        // Need to create this subquery if either filtering or excluding tags
+        if(doSubQuery || excludingTags){
+            String filterSelectPrefix = (excludingTags) ? "s1.id" : "*";
+            fullQuery = "SELECT " + filterSelectPrefix + " FROM ( " + fullQuery + ") AS s1 ";
+        }
+
+        // Back to filtering stuff
+        if (doSubQuery) {
+            // Build filtering "WHERE" clause
+            ArrayList<String> filters = new ArrayList<>();
+            if (hExists) {
+                filters.add("resolution_height >= " + minHeight.get() + " ");
+            }
+            if (wExists) {
+                filters.add("resolution_width >= " + minWidth.get() + " ");
+            }
+            if (arExists) {
+                filters.add(aspectRatioFilterSql(""));
+            }
+            if (after != null) {
+                // "id" is ambiguous once the exclude subquery is joined back to the table
+                filters.add(keysetFilterSql((excludingTags) ? "j." : "", after));
+            }
+            extraFilteringString = "WHERE " + String.join("AND ", filters);
+        }
+
+        // Tertiary query if applicable
+        if (excludingTags) {
+            fullQuery = "SELECT " + rowColumns("j.") + " FROM (" + fullQuery;
+            fullQuery += "JOIN " + tagJoinTableName + " xat ON (s1.id) = (xat.id)" +
+                    "GROUP BY (s1.id)" +
+                    "HAVING MAX(CASE WHEN xat.tag_name IN ("+ excludeString + ") THEN 1 ELSE 0 END) = 0";
+            fullQuery += ") AS s2 JOIN " + tbNameFull + " j ON s2.id = j.id ";
+        }
+
+        // Add extra filtering to end of query
+        fullQuery += extraFilteringString;
+
+        // Add Sorting to end of query
+        String sortBySql = orderBySql((excludingTags) ? "j." : "");
+        fullQuery += sortBySql;
+
+        // End of main query
+        if (pageNum >= 0) {
+            fullQuery += " OFFSET " + pageNum * resultsPerPage + " LIMIT " + resultsPerPage;
+        }
+
+        return fullQuery;
+    }
+
+    /**
+     * Creates the SQL query for the array search engine. Tags are matched against the GIN-indexed tag_array column (see
+     * {@link TagArrays}): {@code @>} for included tags and {@code &&} for excluded and NSFW tags, so no aggregation of
+     * the tag join table is needed. Finds the same images as the join engine
+     *
+     * @param pageNum        Page number ( use -1 if you want all results)
+     * @param resultsPerPage Number of results per page
+     * @param after          Cursor to continue after, or null
+     * @return SQL query to search for images in DB (no trailing ';')
+     */
+    private String toArraySql(int pageNum, int resultsPerPage, SearchCursor after) {
+        ArrayList<String> conditions = new ArrayList<>();
+        conditions.add("a.file_path IS NOT NULL");
+        if (tags.length > 0) {
+            conditions.add("a.tag_array @> ARRAY['" + String.join("','", tags) + "']::TEXT[]");
+        } else {
+            // the join engine only finds images that have at least one tag
+            conditions.add("a.tag_array <> '{}'");
+        }
+        if (!excludeTags.isEmpty()) {
+            conditions.add("NOT a.tag_array && ARRAY['" + String.join("','", excludeTags) + "']::TEXT[]");
+        }
+        if (!includeNsfwVal) {
+            conditions.add("NOT a.tag_array && ARRAY(SELECT tag_name FROM " + tagTableName + " WHERE nsfw = TRUE)");
+        }
+        addRowFilters(conditions, after);
+
+        String query = "SELECT " + rowColumns("a.") + " FROM " + tbNameFull + " a WHERE " +
+                String.join(" AND ", conditions) + " " + orderBySql("a.");
+        if (pageNum >= 0) {
+            query += " OFFSET " + pageNum * resultsPerPage + " LIMIT " + resultsPerPage;
+        }
+        return query;
+    }
+
+    /**
+     * Creates the existence-based SQL query. Starts from the join rows of the rarest included tag and probes for each
+     * other included tag with EXISTS, rarest first, so the work is bounded by the rarest tag instead of by every
+     * included tag's rows. Without included tags it starts from the image rows and only checks that each has a tag.
+     * Finds the same images as the join-based query
+     *
+     * @param pageNum        Page number ( use -1 if you want all results)
+     * @param resultsPerPage Number of results per page
+     * @param after          Cursor to continue after, or null
+     * @param tagCounts      Number of images with each included tag, see {@link #getTagCounts()}
+     * @return SQL query to search for images in DB (no trailing ';')
+     */
+    private String toExistsSql(int pageNum, int resultsPerPage, SearchCursor after, long[] tagCounts) {
+        Integer[] rarestFirst = new Integer[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            rarestFirst[i] = i;
+        }
+        Arrays.sort(rarestFirst, (x, y) -> Long.compare(tagCounts[x], tagCounts[y]));
+
+        ArrayList<String> conditions = new ArrayList<>();
+        String from = tbNameFull + " a";
+        if (tags.length == 0) {
+            // the join engine only finds images that have at least one tag
+            conditions.add("EXISTS (SELECT 1 FROM " + tagJoinTableName + " r WHERE r.id = a.id)");
+        } else {
+            from += " JOIN " + tagJoinTableName + " r ON r.id = a.id";
+            conditions.add("r.tag_name = '" + tags[rarestFirst[0]] + "'");
+            if (after != null && sortKeySql("r.") == null) {
+                // ranges aren't carried over r.id = a.id; repeated on r.id, the (tag_name, id) index starts at the
+                // cursor
+                conditions.add(keysetFilterSql("r.", after));
+            }
+        }
+        conditions.add("a.file_path IS NOT NULL");
+        for (int i = 1; i < rarestFirst.length; i++) {
+            conditions.add("EXISTS (SELECT 1 FROM " + tagJoinTableName + " e WHERE e.id = a.id AND e.tag_name = '" +
+                    tags[rarestFirst[i]] + "')");
+        }
+        if (!excludeTags.isEmpty()) {
+            conditions.add("NOT EXISTS (SELECT 1 FROM " + tagJoinTableName + " x WHERE x.id = a.id AND x.tag_name IN ('" +
+                    String.join("','", excludeTags) + "'))");
+        }
+        if (!includeNsfwVal) {
+            conditions.add("NOT EXISTS (SELECT 1 FROM " + tagJoinTableName + " n JOIN " + tagTableName +
+                    " t ON t.tag_name = n.tag_name WHERE n.id = a.id AND t.nsfw = TRUE)");
+        }
+        addRowFilters(conditions, after);
+
+        String query = "SELECT " + rowColumns("a.") + " FROM " + from + " WHERE " + String.join(" AND ", conditions) +
+                " " + orderBySql("a.");
+        if (pageNum >= 0) {
+            query += " OFFSET " + pageNum * resultsPerPage + " LIMIT " + resultsPerPage;
+        }
+        return query;
+    }
+
+    /**
+     * Adds the size, aspect ratio and cursor conditions on the image row (aliased "a")
+     */
+    private void addRowFilters(ArrayList<String> conditions, SearchCursor after) {
+        if (minHeight.isPresent()) {
+            conditions.add("a.resolution_height >= " + minHeight.get());
+        }
+        if (minWidth.isPresent()) {
+            conditions.add("a.resolution_width >= " + minWidth.get());
+        }
+        if (aspectRatio.isPresent()) {
+            conditions.add(aspectRatioFilterSql("a."));
+        }
+        if (after != null) {
+            conditions.add(keysetFilterSql("a.", after));
+        }
+    }
+
+    /**
+     * Gets the number of images in this table with each included tag (see {@link TagIndex})
+     *
+     * @return Counts in the order of the included tags (-1 where unknown, see {@link TagIndex#getCount}), or null if
+     * there are no included tags or no stats yet
+     */
+    private long[] getTagCounts() {
+        if (tags.length == 0 || !TagIndex.isReady()) {
+            return null;
+        }
+        long[] counts = new long[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            counts[i] = TagIndex.getCount(tbNameFull, tags[i]);
+        }
+        return counts;
+    }
+
+    /**
+     * Checks if the search can't have any results because an included tag is known to be on no image of this table.
+     * Controllers can skip the DB entirely in that case. Tags with an unknown count never make a search empty
+     *
+     * @return True if the search has no results
+     */
+    public boolean isKnownEmpty() {
+        return isKnownEmpty(getTagCounts());
+    }
+
+    private static boolean isKnownEmpty(long[] tagCounts) {
+        if (tagCounts == null) {
+            return false;
+        }
+        for (long count : tagCounts) {
+            if (count == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the existence-based query over the join-based one when probing from the rarest tag is estimated to touch
+     * fewer join rows than aggregating the rows of every included tag
+     *
+     * @param tagCounts Number of images with each included tag, or null
+     * @return True to use {@link #toExistsSql(int, int, SearchCursor, long[])}
+     */
+    private boolean prefersExists(long[] tagCounts) {
+        // a repeated tag changes the meaning of the join query's HAVING COUNT, keep that query for it
+        if (tagCounts == null || tags.length < 2 || Arrays.stream(tags).distinct().count() < tags.length) {
+            return false;
+        }
+        long rarest = Long.MAX_VALUE;
+        long total = 0;
+        for (long count : tagCounts) {
+            if (count < 0) {
+                // no estimate to compare with
+                return false;
+            }
+            rarest = Math.min(rarest, count);
+            total += count;
+        }
+        return rarest * tags.length * EXISTS_PROBE_COST < total;
+    }
+
+    private static Metrics.Counter planCounter(String plan) {
+        return Metrics.counter("bmedia_search_plans_total", "Search queries built, by query shape", "plan", plan);
+    }
+
+    /**
+     * Creates the aspect ratio filter. Wide ratios match images at least that wide, tall ratios images at least that
+     * tall, and 1.0 only square images
+     *
+     * @param prefix Column prefix (table alias and '.'), or ""
+     * @return SQL condition
+     */
+    private String aspectRatioFilterSql(String prefix) {
+        String sign = "=";
+        if (aspectRatio.get() > 1.0) {
+            sign = ">=";
+        } else if (aspectRatio.get() < 1.0) {
+            sign = "<=";
+        }
+        return aspectRatioSql(prefix) + " " + sign + " " + aspectRatio.get() + " ";
+    }
+
+    /**
+     * Creates the ORDER BY clause. Results are always ordered by id last, so pages are stable
+     *
+     * @param prefix Column prefix (table alias and '.'), or ""
+     * @return ORDER BY clause
+     */
+    private String orderBySql(String prefix) {
+        String ascDescString = (ascending) ? "ASC " : "DESC ";
+        String sortKeySql = sortKeySql(prefix);
+        if (sortKeySql == null) {
+            return "ORDER BY " + prefix + "id " + ascDescString;
+        }
+        return "ORDER BY " + sortKeySql + " " + ascDescString + ", " + prefix + "id " + ascDescString;
+    }
+
+    /**
+     * Creates the SQL expression results are sorted by (before id)
+     *
+     * @param prefix Column prefix (table alias and '.'), or ""
+     * @return Sort key expression, or null if results are only sorted by id
+     */
+    private String sortKeySql(String prefix) {
+        switch ((sortBy.isPresent()) ? sortBy.get().toLowerCase() : "") {
+            case "height":
+                return prefix + "resolution_height";
+            case "width":
+                return prefix + "resolution_width";
+            case "file_size":
+                return prefix + "file_size_bytes";
+            case "aspect_ratio":
+                return pixelCountSql(prefix);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets the value a result row is sorted by (before id), matching {@link #sortKeySql(String)}
+     *
+     * @param row Result row
+     * @return Sort key, or null if results are only sorted by id
+     */
+    public Long getSortKey(ImageRow row) {
+        switch ((sortBy.isPresent()) ? sortBy.get().toLowerCase() : "") {
+            case "height":
+                return (long) row.getResolutionHeight();
+            case "width":
+                return (long) row.getResolutionWidth();
+            case "file_size":
+                return (long) row.getFileSizeBytes();
+            case "aspect_ratio":
+                return (long) row.getResolutionWidth() * row.getResolutionHeight();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Describes the sort order, e.g. "height:asc". Cursors record it so they can't be used with another order
+     *
+     * @return Sort description
+     */
+    public String getSortDescription() {
+        String sort = (getSortKeyName() == null) ? "id" : getSortKeyName();
+        return sort + (ascending ? ":asc" : ":desc");
+    }
+
+    private String getSortKeyName() {
+        String sort = sortBy.map(String::toLowerCase).orElse("");
+        switch (sort) {
+            case "height":
+            case "width":
+            case "file_size":
+            case "aspect_ratio":
+                return sort;
+            default:
+                return null;
+        }
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * Creates the condition for results that come after a cursor in the merged order of all tables: by sort key, then
+     * id, then table name (see {@link SearchCursor}). Within this table that is a row comparison on (sort key, id),
+     * which only includes the cursor's (sort key, id) itself if this table comes after the cursor's table
+     *
+     * @param prefix Column prefix (table alias and '.'), or ""
+     * @param after  Cursor
+     * @return SQL condition
+     */
+    private String keysetFilterSql(String prefix, SearchCursor after) {
+        int tableOrder = tbNameFull.compareTo(after.getTableName());
+        boolean includeEqual = (ascending) ? tableOrder > 0 : tableOrder < 0;
+        String op = ((ascending) ? ">" : "<") + ((includeEqual) ? "=" : "");
+        String sortKeySql = sortKeySql(prefix);
+        if (sortKeySql == null) {
+            return prefix + "id " + op + " " + after.getId() + " ";
+        }
+        return "(" + sortKeySql + ", " + prefix + "id) " + op + " (" + after.getSortKey() + ", " + after.getId() + ") ";
+    }
+
+    /**
+     * Creates a key that is the same for every request that would produce the same results, no matter how the
+     * parameters were written (tag order, sort name case). Used as the search cache key
+     *
+     * @param pageNum        Page number ( use -1 for all results)
+     * @param resultsPerPage Number of results per page
+     * @return Canonical key
+     */
+    public String canonicalKey(int pageNum, int resultsPerPage) {
+        // duplicates are kept: a repeated include tag changes the HAVING COUNT and so the results
+        String[] sortedTags = tags.clone();
+        Arrays.sort(sortedTags);
+        String[] sortedExcludeTags = excludeTags.toArray(String[]::new);
+        Arrays.sort(sortedExcludeTags);
+        return tbNameFull +
+                "|in=" + JSONArray.toJSONString(Arrays.asList(sortedTags)) +
+                "|ex=" + JSONArray.toJSONString(Arrays.asList(sortedExcludeTags)) +
+                "|nsfw=" + includeNsfwVal +
+                "|w=" + minWidth.map(String::valueOf).orElse("") +
+                "|h=" + minHeight.map(String::valueOf).orElse("") +
+                "|ar=" + aspectRatio.map(String::valueOf).orElse("") +
+                "|sort=" + sortBy.map(String::toLowerCase).orElse("") + (ascending ? ":asc" : ":desc") +
+                "|fields=" + ((fields == null) ? "" : JSONArray.toJSONString(new ArrayList<>(new TreeSet<>(fields)))) +
+                "|page=" + pageNum + "x" + resultsPerPage;
+    }
+
+    /**
+     * Creates the aspect ratio expression. It must stay exactly the expression of the aspect_ratio_expr_idx index (see
+     * {@link SchemaMigrations}), or the index can't be used
+     *
+     * @param prefix Column prefix (table alias and '.'), or ""
+     * @return SQL expression
+     */
+    static String aspectRatioSql(String prefix) {
+        return "(CAST(" + prefix + "resolution_width AS DOUBLE PRECISION) / NULLIF(" + prefix + "resolution_height, 0))";
+    }
+
+    /**
+     * Creates the pixel count expression. It must stay exactly the expression of the pixel_count_expr_idx index (see
+     * {@link SchemaMigrations}), or the index can't be used
+     *
+     * @param prefix Column prefix (table alias and '.'), or ""
+     * @return SQL expression
+     */
+    static String pixelCountSql(String prefix) {
+        return "(CAST(" + prefix + "resolution_width AS BIGINT) * " + prefix + "resolution_height)";
+    }
+
+    /**
+     * Creates the select list of result rows: the requested fields (all row columns if none were requested), plus
+     * the columns that sorting and the outer filters of the join query read. The placeholder is only selected once
+     * the table has one (see {@link Placeholders})
+     *
+     * @param prefix Column prefix (table alias and '.')
+     * @return Select list
+     */
+    private String rowColumns(String prefix) {
+        Set<String> needed = new HashSet<>((fields == null) ? ImageRow.COLUMNS : fields);
+        String sortKey = getSortKeyName();
+        if ("height".equals(sortKey) || "aspect_ratio".equals(sortKey) || minHeight.isPresent() ||
+                aspectRatio.isPresent()) {
+            needed.add("resolution_height");
+        }
+        if ("width".equals(sortKey) || "aspect_ratio".equals(sortKey) || minWidth.isPresent() ||
+                aspectRatio.isPresent()) {
+            needed.add("resolution_width");
+        }
+        if ("file_size".equals(sortKey)) {
+            needed.add("file_size_bytes");
+        }
+        if (!Placeholders.isAvailable(tbNameFull)) {
+            needed.remove("blurhash");
+        }
+        ArrayList<String> columns = new ArrayList<>();
+        // in ImageRow.COLUMNS order, so the select list (and the query plan cache) doesn't depend on the request
+        for (String column : ImageRow.COLUMNS) {
+            if (column.equals("id") || needed.contains(column)) {
+                columns.add(prefix + column);
+            }
+        }
+        return String.join(",", columns);
+    }
+
+    public String getFullTableName() {
+        return tbNameFull;
+    }
+
+    /**
+     * Creates the base query that would run with minimum parameters, but makes changes that are necessary if there are
+     * more parameters specified
+     *
+     * @param excludingTags This should be true if the subsequent queries will account for excluding tags
+     * @return Base query as a String
+     */
+    private String createBaseQuery(boolean excludingTags) {
+        int numTags = tags.length;
+        String tagString = "'" + String.join("','", tags) + "'";
+        String nsfwString1 = "";
+        String nsfwString2 = "";
+        String nsfwJoinString = "";
+        if (!includeNsfwVal) {
+            nsfwJoinString += "JOIN " + tagTableName + " t ON at.tag_name = t.tag_name ";
+            nsfwString1 += "t.nsfw = TRUE ";
+            nsfwString2 += "MAX(CASE t.nsfw WHEN TRUE THEN 1 ELSE 0 END) = 0 ";
+        }
+        String includeNonExclude = "";
+
+        if (!excludingTags) {
+            // rowColumns starts with a.id
+            includeNonExclude = rowColumns("a.").substring("a.id".length());
+        }
+
+        String query = "SELECT a.id" + includeNonExclude +
+                " FROM " + tbNameFull + " a JOIN " + tagJoinTableName + " at ON (a.id) = (at.id) " +
+                nsfwJoinString;
+
+        // Query with no specified tags
+        if (numTags == 0) {
+            if (!includeNsfwVal) {
+                nsfwString2 = "HAVING " + nsfwString2;
+            }
+            query += " WHERE NOT a.file_path IS NULL " +
+                    "GROUP BY (a.id)" + nsfwString2;
+        } else {
+            if (!includeNsfwVal) {
+                nsfwString1 = "OR  " + nsfwString1;
+                nsfwString2 = " AND " + nsfwString2;
+            }
+            query += "WHERE NOT a.file_path IS NULL AND at.tag_name IN (" + tagString + ") " + nsfwString1 +
+                    "GROUP BY (a.id) HAVING COUNT(at.tag_name) >= " + numTags + " " + nsfwString2;
+        }
+
+        return query;
+    }
+}
@@ -0,0 +1,121 @@
+package org.bmedia;
+
+import org.json.simple.JSONValue;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size, lock-free ring buffer of the most recent slow requests. Requests that take longer than
+ * {@link ApiSettings#getSlowRequestThresholdMs()} are captured with their parameters, generated SQL and phase timings,
+ * so they can be looked at later without turning on verbose logging
+ */
+public class SlowRequestLog {
+
+    private static AtomicReferenceArray<SlowRequest> buffer = null;
+    private static final AtomicLong nextSlot = new AtomicLong();
+
+    /**
+     * Records a request if it was slower than the configured threshold
+     *
+     * @param endpoint Endpoint mapping of the request
+     * @param params   Request parameters
+     * @param status   Response status code
+     * @param timing   Timing of the request
+     */
+    public static void recordIfSlow(String endpoint, String params, int status, RequestTiming timing) {
+        long elapsedNanos = timing.getElapsedNanos();
+        if (elapsedNanos < ApiSettings.getSlowRequestThresholdMs() * 1_000_000L) {
+            return;
+        }
+        AtomicReferenceArray<SlowRequest> buf = getBuffer();
+        if (buf.length() == 0) {
+            return;
+        }
+
+        long[] phaseNanos = new long[RequestTiming.PHASE_NAMES.length];
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = timing.getPhaseNanos(i);
+        }
+        SlowRequest slowRequest = new SlowRequest(System.currentTimeMillis(), endpoint, params, status, elapsedNanos,
+                phaseNanos, timing.getSql());
+        buf.set((int) (nextSlot.getAndIncrement() % buf.length()), slowRequest);
+    }
+
+    /**
+     * Dumps the buffer as JSON, newest request first
+     *
+     * @return JSON array of slow requests
+     */
+    public static String toJson() {
+        AtomicReferenceArray<SlowRequest> buf = getBuffer();
+        ArrayList<String> jsonEntries = new ArrayList<>();
+        long last = nextSlot.get();
+        for (long i = last - 1; i >= 0 && i >= last - buf.length(); i--) {
+            SlowRequest slowRequest = buf.get((int) (i % buf.length()));
+            if (slowRequest != null) {
+                jsonEntries.add(slowRequest.toJson());
+            }
+        }
+        return "[" + String.join(",", jsonEntries) + "]";
+    }
+
+    private static AtomicReferenceArray<SlowRequest> getBuffer() {
+        AtomicReferenceArray<SlowRequest> buf = buffer;
+        if (buf == null) {
+            synchronized (SlowRequestLog.class) {
+                if (buffer == null) {
+                    buffer = new AtomicReferenceArray<>(Math.max(0, ApiSettings.getSlowRequestBufferSize()));
+                }
+                buf = buffer;
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * A captured slow request
+     */
+    private static class SlowRequest {
+        private final long timestampMillis;
+        private final String endpoint;
+        private final String params;
+        private final int status;
+        private final long totalNanos;
+        private final long[] phaseNanos;
+        private final String sql;
+
+        private SlowRequest(long timestampMillis, String endpoint, String params, int status, long totalNanos,
+                            long[] phaseNanos, String sql) {
+            this.timestampMillis = timestampMillis;
+            this.endpoint = endpoint;
+            this.params = params;
+            this.status = status;
+            this.totalNanos = totalNanos;
+            this.phaseNanos = phaseNanos;
+            this.sql = sql;
+        }
+
+        private String toJson() {
+            StringBuilder phases = new StringBuilder("{");
+            for (int i = 0; i < phaseNanos.length; i++) {
+                if (i > 0) {
+                    phases.append(",");
+                }
+                phases.append("\"").append(RequestTiming.PHASE_NAMES[i]).append("_ms\": ").append(phaseNanos[i] / 1e6);
+            }
+            phases.append("}");
+
+            return "{" +
+                    "\"timestamp_millis\": " + timestampMillis + "," +
+                    "\"endpoint\": \"" + JSONValue.escape(endpoint) + "\"," +
+                    "\"params\": \"" + JSONValue.escape(params) + "\"," +
+                    "\"status\": " + status + "," +
+                    "\"total_ms\": " + totalNanos / 1e6 + "," +
+                    "\"phases\": " + phases + "," +
+                    "\"sql\": " + ((sql == null) ? "null" : "\"" + JSONValue.escape(sql) + "\"") +
+                    "}";
+        }
+    }
+}
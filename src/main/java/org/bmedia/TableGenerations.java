@@ -0,0 +1,44 @@
+package org.bmedia;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-table generation counters. Anything that changes what a search on a table would return (tag mutations, nulling
+ * broken paths, re-linking) bumps the table's generation, which invalidates everything cached for the table
+ */
+public class TableGenerations {
+
+    private static final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    // bumped by changes that affect every table, e.g. a tag's NSFW flag
+    private static final AtomicLong globalGeneration = new AtomicLong();
+
+    /**
+     * Gets the current generation of a table. Read this before querying the DB, so a change that happens during the
+     * query makes the result stale
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @return Current generation
+     */
+    public static long get(String fullTableName) {
+        return globalGeneration.get() + generations.computeIfAbsent(fullTableName, k -> new AtomicLong()).get();
+    }
+
+    /**
+     * Bumps the generation of a table
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @return New generation
+     */
+    public static long bump(String fullTableName) {
+        generations.computeIfAbsent(fullTableName, k -> new AtomicLong()).incrementAndGet();
+        return get(fullTableName);
+    }
+
+    /**
+     * Bumps the generation of every table
+     */
+    public static void bumpAll() {
+        globalGeneration.incrementAndGet();
+    }
+}
@@ -0,0 +1,149 @@
+package org.bmedia;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maintains the denormalized tag_array column used by the array search engine (see {@link SearchQuery}).
+ * <p>
+ * tag_array holds the sorted tag names of an image and is GIN-indexed, so searches become {@code @>} / {@code &&}
+ * predicates instead of aggregating the tag join table. NULL means "not computed yet": the tag mutation endpoints
+ * recompute the array in the same transaction as the join table change, and a backfill job fills in NULL rows (e.g.
+ * images added by the ingest tools). Tools that change the join table directly should set tag_array to NULL for the
+ * images they touch so the backfill picks them up.
+ * <p>
+ * A table only uses the array engine after its first backfill has finished
+ */
+public class TagArrays {
+
+    private static final int BACKFILL_BATCH_SIZE = 5000;
+
+    // tables whose initial backfill has finished
+    private static final Set<String> readyTables = ConcurrentHashMap.newKeySet();
+
+    private static final BackfillJob job = new BackfillJob("tag-array-backfill", "tag_array", TagArrays::backfillTable,
+            "rows_backfilled");
+
+    /**
+     * Starts the backfill scheduler. Backfills run every {@link ApiSettings#getTagArrayBackfillIntervalMinutes()}
+     * minutes, and after every schema migration run
+     */
+    public static void start() {
+        job.start(ApiSettings.getTagArrayBackfillIntervalMinutes());
+    }
+
+    /**
+     * Starts a backfill in the background if one is not already running
+     *
+     * @return True if a new backfill was started
+     */
+    public static boolean triggerBackfill() {
+        return job.trigger();
+    }
+
+    /**
+     * Checks if a table has the tag_array column, in which case tag mutations must keep it up to date
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @return True if tag_array must be maintained
+     */
+    public static boolean isMaintained(String fullTableName) {
+        return SchemaMigrations.hasColumn(fullTableName, "tag_array");
+    }
+
+    /**
+     * Checks if the array search engine can be used for a table
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @return True if the table's tag arrays are backfilled
+     */
+    public static boolean isReady(String fullTableName) {
+        return isMaintained(fullTableName) && readyTables.contains(fullTableName);
+    }
+
+    /**
+     * Locks image rows until the end of the transaction. Call this before changing their tags, so that concurrent
+     * changes to the same image can't compute the array from a stale view of the join table
+     *
+     * @param conn          Connection with auto-commit off
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param ids           IDs of the images
+     * @throws SQLException
+     */
+    public static void lockRows(Connection conn, String fullTableName, Collection<Long> ids) throws SQLException {
+        // fixed lock order, so two requests tagging overlapping images can't deadlock
+        String query = "SELECT id FROM " + fullTableName + " WHERE id = ANY(?) ORDER BY id FOR UPDATE;";
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setArray(1, conn.createArrayOf("bigint", ids.toArray()));
+            statement.executeQuery();
+        }
+    }
+
+    /**
+     * Recomputes the tag arrays of images from the join table
+     *
+     * @param conn          Connection, in the same transaction as the join table change
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param ids           IDs of the images
+     * @throws SQLException
+     */
+    public static void refresh(Connection conn, String fullTableName, Collection<Long> ids) throws SQLException {
+        String query = "UPDATE " + fullTableName + " t SET tag_array = " + arrayFromJoinSql(fullTableName) +
+                " WHERE t.id = ANY(?);";
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setArray(1, conn.createArrayOf("bigint", ids.toArray()));
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Gets the progress of the running backfill, or the results of the last one, as JSON
+     *
+     * @return Backfill status JSON
+     */
+    public static String getStatusJson() {
+        return job.getStatusJson("\"ready_tables\": " + readyTables.size() + ",");
+    }
+
+    /**
+     * Fills in NULL tag arrays in batches. Each batch is its own transaction, so the table is never locked for long.
+     * The table can use the array engine afterwards
+     */
+    private static void backfillTable(Connection conn, String fullTableName) throws SQLException {
+        // tag_array IS NULL is checked again on the row itself: if a tag mutation sets the array while this batch
+        // waits for the row lock, the row is skipped instead of being overwritten with an older view of the join table
+        String query = "UPDATE " + fullTableName + " t SET tag_array = " + arrayFromJoinSql(fullTableName) +
+                " WHERE t.tag_array IS NULL AND t.id IN (SELECT id FROM " + fullTableName +
+                " WHERE tag_array IS NULL LIMIT " + BACKFILL_BATCH_SIZE + ");";
+        long tableRows = 0;
+        try (Statement statement = conn.createStatement()) {
+            int updated;
+            do {
+                updated = statement.executeUpdate(query);
+                tableRows += updated;
+                job.counter("rows_backfilled").addAndGet(updated);
+            } while (updated > 0);
+        }
+        if (tableRows > 0) {
+            System.out.println("INFO: Backfilled " + tableRows + " tag array(s) in \"" + fullTableName + "\"");
+            InvalidationBus.publish(fullTableName);
+        }
+        if (readyTables.add(fullTableName)) {
+            System.out.println("INFO: Tag arrays of \"" + fullTableName + "\" are backfilled");
+            // results may change slightly when a table switches engines
+            InvalidationBus.publish(fullTableName);
+        }
+    }
+
+    /**
+     * SQL expression for the sorted tag array of the row aliased "t"
+     */
+    private static String arrayFromJoinSql(String fullTableName) {
+        return "ARRAY(SELECT j.tag_name FROM " + fullTableName + "_tags_join j WHERE j.id = t.id ORDER BY j.tag_name)";
+    }
+}
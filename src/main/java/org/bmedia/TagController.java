@@ -1,5 +1,6 @@
 package org.bmedia;
 
+import org.json.simple.JSONValue;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
@@ -7,12 +8,16 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 
 /**
  * API controller for tag-related requests
@@ -33,8 +38,7 @@ public class TagController {
         String query = "SELECT * FROM " + ApiSettings.getSchemaName() + ".tags ORDER BY tag_name;";
 
         String jsonOut = "[";
-        try {
-            Statement statement = Main.getDbconn().createStatement();
+        try (Connection conn = Main.getReadConnection(); Statement statement = conn.createStatement()) {
             ResultSet result = statement.executeQuery(query);
 
             ArrayList<String> jsonEntries = new ArrayList<>();
@@ -57,6 +61,85 @@ public class TagController {
         return ResponseEntity.status(HttpStatus.OK).body(jsonOut);
     }
 
+    /**
+     * Suggests tags that start with a prefix, most used first. Served from memory (see {@link TagIndex}), so this is
+     * cheap enough to call on every keystroke
+     *
+     * @param prefix      Start of the tag name (case-insensitive)
+     * @param tbName      Rank by usage in this table. Ranks by usage in all tables if not given
+     * @param limit       Max number of tags to return (default 10, max {@link TagIndex#MAX_LIMIT})
+     * @param includeNsfw If true, include NSFW tags
+     * @return
+     */
+    @RequestMapping(value = "/tags/autocomplete", produces = "application/json")
+    public ResponseEntity<String> autocomplete(@RequestParam("prefix") String prefix,
+                                               @RequestParam("table_name") Optional<String> tbName,
+                                               @RequestParam("limit") Optional<Integer> limit,
+                                               @RequestParam("include_nsfw") Optional<Boolean> includeNsfw) {
+        if (!TagIndex.isReady()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Tag index is still loading");
+        }
+        int limitVal = Math.min(Math.max(limit.orElse(10), 1), TagIndex.MAX_LIMIT);
+        String fullTableName = tbName.map(t -> ApiSettings.getSchemaName() + "." + t).orElse(null);
+
+        // tags are stored with their quotes doubled, see addTag()
+        List<TagIndex.TagEntry> tags = TagIndex.lookup(prefix.replace("'", "''"), fullTableName,
+                includeNsfw.orElse(false), limitVal);
+
+        ArrayList<String> jsonEntries = new ArrayList<>();
+        for (TagIndex.TagEntry tag : tags) {
+            jsonEntries.add("{\"tag_name\":\"" + JSONValue.escape(tag.getName()) + "\"," +
+                    "\"nsfw\":" + ((tag.isNsfw()) ? "true" : "false") + "," +
+                    "\"count\":" + tag.getCount(fullTableName) + "}");
+        }
+        return ResponseEntity.status(HttpStatus.OK).body("[" + String.join(",", jsonEntries) + "]");
+    }
+
+    /**
+     * Gets tag usage statistics: the number of tags, and per table the number of tag assignments and distinct tags
+     * used. If tag names are given, also the number of images with each of them. These are the same cardinalities
+     * searches are planned with (see {@link TagIndex})
+     *
+     * @param tbName   Count images in this table. Counts images in all tables if not given
+     * @param tagNames Tags to get image counts for
+     * @return
+     */
+    @RequestMapping(value = "/tags/stats", produces = "application/json")
+    public ResponseEntity<String> getTagStats(@RequestParam("table_name") Optional<String> tbName,
+                                              @RequestParam("tag_names") Optional<List<String>> tagNames) {
+        if (!TagIndex.isReady()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Tag index is still loading");
+        }
+        String fullTableName = tbName.map(t -> ApiSettings.getSchemaName() + "." + t).orElse(null);
+
+        ArrayList<String> tableEntries = new ArrayList<>();
+        for (Map.Entry<String, long[]> table : new TreeMap<>(TagIndex.getTableTotals()).entrySet()) {
+            if (fullTableName != null && !fullTableName.equals(table.getKey())) {
+                continue;
+            }
+            tableEntries.add("{\"table_name\":\"" + table.getKey() + "\"," +
+                    "\"tag_assignments\":" + table.getValue()[0] + "," +
+                    "\"distinct_tags\":" + table.getValue()[1] + "}");
+        }
+
+        ArrayList<String> tagEntries = new ArrayList<>();
+        for (String tagName : tagNames.orElse(List.of())) {
+            // tags are stored with their quotes doubled, see addTag()
+            tagName = tagName.replace("'", "''");
+            TagIndex.TagEntry tag = TagIndex.getTag(tagName);
+            tagEntries.add("{\"tag_name\":\"" + JSONValue.escape(tagName) + "\"," +
+                    "\"nsfw\":" + ((tag == null) ? "null" : String.valueOf(tag.isNsfw())) + "," +
+                    "\"count\":" + ((tag == null) ? 0 : tag.getCount(fullTableName)) + "}");
+        }
+
+        String jsonOut = "{" +
+                "\"tag_count\":" + TagIndex.size() + "," +
+                "\"tables\":[" + String.join(",", tableEntries) + "]," +
+                "\"tags\":[" + String.join(",", tagEntries) + "]" +
+                "}";
+        return ResponseEntity.status(HttpStatus.OK).body(jsonOut);
+    }
+
     /**
      * Add a tag to the DB
      *
@@ -77,14 +160,17 @@ public class TagController {
         String query = "INSERT INTO " + ApiSettings.getSchemaName() + ".tags (tag_name, nsfw) VALUES (?, ?) ON CONFLICT (tag_name) DO UPDATE SET nsfw = " +
                 "EXCLUDED.nsfw;";
 
-        try {
-            PreparedStatement statement = Main.getDbconn().prepareStatement(query);
+        try (Connection conn = Main.getWriteConnection(); PreparedStatement statement = conn.prepareStatement(query)) {
             statement.setString(1, tagName);
             statement.setBoolean(2, nsfwVal);
             statement.executeUpdate();
+            TagIndex.tagUpserted(tagName, nsfwVal, true);
         } catch (SQLException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+        } finally {
+            // a tag's NSFW flag affects searches on every table
+            InvalidationBus.publish(InvalidationBus.ALL_TABLES, null, List.of(tagName));
         }
 
         return ResponseEntity.status(HttpStatus.OK).body("Successfully added tag");
@@ -105,12 +191,15 @@ public class TagController {
         String query = "UPDATE " + ApiSettings.getSchemaName() + ".tags SET nsfw = " + ((nsfw) ? "TRUE" : "FALSE")
                 + " WHERE tag_name = '" + tagName + "';";
 
-        try {
-            Statement statement = Main.getDbconn().createStatement();
-            statement.executeUpdate(query);
+        try (Connection conn = Main.getWriteConnection(); Statement statement = conn.createStatement()) {
+            if (statement.executeUpdate(query) > 0) {
+                TagIndex.nsfwUpdated(tagName, nsfw);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("SQL error");
+        } finally {
+            InvalidationBus.publish(InvalidationBus.ALL_TABLES, null, List.of(tagName));
         }
 
         return ResponseEntity.status(HttpStatus.OK).body("Successfully added tag");
@@ -0,0 +1,549 @@
+package org.bmedia;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory prefix index of all tags for autocomplete (see {@link TagController}), which also keeps the per-table tag
+ * cardinalities {@link SearchQuery} plans searches with.
+ * <p>
+ * Tags are kept in a sorted map keyed by their lower case name, so the tags starting with a prefix are one contiguous
+ * range. Each tag carries its NSFW flag and its usage count (rows in [table_name]_tags_join) per media table.
+ * <p>
+ * The index is loaded once at startup and then updated incrementally: the tag endpoints apply their changes directly,
+ * and tags named in {@link InvalidationBus} events (including ones from other API instances) are re-read from the
+ * primary in the background. It is reloaded completely every {@link ApiSettings#getTagStatsReconcileMinutes()}
+ * minutes and when invalidation events may have been missed.
+ * <p>
+ * Searches may return no results when a tag count is 0, so whenever a count changes between 0 and non-0 outside of a
+ * tag endpoint, the table's {@link TableGenerations generation} is bumped again to drop results cached in between.
+ * Rows written by other programs (e.g. the ingester) don't send invalidation events, so a count of 0 is only reported
+ * while it is known to be current: read from the DB after the last change seen for the table, and no longer ago than
+ * {@link ApiSettings#getSearchCacheMaxAgeSeconds()}. Otherwise the count is reported as unknown
+ */
+public class TagIndex {
+
+    /**
+     * Max number of tags a lookup returns
+     */
+    public static final int MAX_LIMIT = 100;
+
+    // results for prefixes up to this long are cached: their ranges are too large to scan on every keystroke
+    private static final int CACHED_PREFIX_LENGTH = 2;
+    private static final long RECONCILE_DELAY_MS = 500;
+
+    private static final Metrics.Histogram LOOKUP_TIME = Metrics.histogram("bmedia_tag_autocomplete_seconds",
+            "Time spent finding autocomplete suggestions in the tag index", Metrics.LATENCY_BUCKETS);
+
+    private static volatile ConcurrentSkipListMap<String, TagEntry> index = new ConcurrentSkipListMap<>();
+    private static volatile boolean ready = false;
+    private static final Set<String> knownTables = ConcurrentHashMap.newKeySet();
+    // top MAX_LIMIT tags of short prefixes, by prefix, then by "[table]|[include nsfw]"
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, List<TagEntry>>> shortPrefixTop =
+            new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService executor = null;
+    private static final AtomicBoolean loading = new AtomicBoolean(false);
+    // tags to re-read, by full table name (or InvalidationBus.ALL_TABLES)
+    private static final ConcurrentHashMap<String, Set<String>> pendingReconcile = new ConcurrentHashMap<>();
+    private static final AtomicBoolean reconcileScheduled = new AtomicBoolean(false);
+    // System.nanoTime() of the last invalidation event, by full table name, and of the last one for all tables
+    private static final ConcurrentHashMap<String, Long> lastChangeNanos = new ConcurrentHashMap<>();
+    private static volatile long lastAllTablesChangeNanos = Long.MIN_VALUE;
+    // System.nanoTime() at the start of the last complete load, by full table name
+    private static final ConcurrentHashMap<String, Long> loadedNanos = new ConcurrentHashMap<>();
+
+    /**
+     * A tag and its usage
+     */
+    public static class TagEntry {
+        private final String name;
+        private volatile boolean nsfw;
+        private final ConcurrentHashMap<String, AtomicLong> counts = new ConcurrentHashMap<>();
+        private final AtomicLong totalCount = new AtomicLong();
+        // System.nanoTime() at the start of the last reconcile that read the count, by full table name
+        private final ConcurrentHashMap<String, Long> confirmedNanos = new ConcurrentHashMap<>();
+
+        private TagEntry(String name, boolean nsfw) {
+            this.name = name;
+            this.nsfw = nsfw;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isNsfw() {
+            return nsfw;
+        }
+
+        /**
+         * @param fullTableName Table name ([schema_name].[table_name]), or null for all tables
+         * @return Number of images with this tag
+         */
+        public long getCount(String fullTableName) {
+            if (fullTableName == null) {
+                return totalCount.get();
+            }
+            AtomicLong count = counts.get(fullTableName);
+            return (count == null) ? 0 : count.get();
+        }
+
+        private void addCount(String fullTableName, long delta) {
+            AtomicLong count = counts.computeIfAbsent(fullTableName, k -> new AtomicLong());
+            long updated = count.addAndGet(delta);
+            long applied = delta;
+            if (updated < 0) {
+                // a stale delta raced with a reconcile; clamp, the next reconcile fixes the exact value
+                count.addAndGet(-updated);
+                applied -= updated;
+            }
+            totalCount.addAndGet(applied);
+        }
+
+        /**
+         * @return True if the count changed between 0 and non-0
+         */
+        private boolean setCount(String fullTableName, long value) {
+            AtomicLong count = counts.computeIfAbsent(fullTableName, k -> new AtomicLong());
+            long old = count.getAndSet(value);
+            totalCount.addAndGet(value - old);
+            return (old == 0) != (value == 0);
+        }
+    }
+
+    /**
+     * Loads the index in the background and starts following invalidation events. Calling this more than once does
+     * nothing
+     */
+    public synchronized static void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tag-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        InvalidationBus.addListener(new InvalidationBus.Listener() {
+            @Override
+            public void onInvalidate(String fullTableName, Set<Long> ids, Set<String> tags) {
+                long now = System.nanoTime();
+                if (fullTableName.equals(InvalidationBus.ALL_TABLES)) {
+                    lastAllTablesChangeNanos = now;
+                } else {
+                    lastChangeNanos.put(fullTableName, now);
+                }
+                queueReconcile(fullTableName, tags);
+            }
+
+            @Override
+            public void onResync() {
+                executor.submit(TagIndex::load);
+            }
+        });
+        executor.submit(TagIndex::load);
+        long interval = ApiSettings.getTagStatsReconcileMinutes();
+        if (interval > 0) {
+            executor.scheduleWithFixedDelay(TagIndex::load, interval, interval, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Checks if the index has finished loading
+     *
+     * @return True if lookups can be served
+     */
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Gets the number of images with a tag
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param tagName       Tag name, as stored in the DB
+     * @return Number of images, or -1 if unknown: the index is not loaded yet, the tag is not in the index, or the
+     * count is 0 but may be outdated
+     */
+    public static long getCount(String fullTableName, String tagName) {
+        if (!ready) {
+            return -1;
+        }
+        TagEntry entry = index.get(key(tagName));
+        if (entry == null) {
+            // may have been added since the last load
+            return -1;
+        }
+        long count = entry.getCount(fullTableName);
+        if (count == 0 && !isConfirmed(entry, fullTableName)) {
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Checks if a tag's count was read from the DB after the last change seen for the table, recently enough
+     */
+    private static boolean isConfirmed(TagEntry entry, String fullTableName) {
+        long confirmed = Math.max(loadedNanos.getOrDefault(fullTableName, Long.MIN_VALUE),
+                entry.confirmedNanos.getOrDefault(fullTableName, Long.MIN_VALUE));
+        if (confirmed == Long.MIN_VALUE) {
+            return false;
+        }
+        long lastChange = Math.max(lastAllTablesChangeNanos, lastChangeNanos.getOrDefault(fullTableName,
+                Long.MIN_VALUE));
+        // nanoTime values may only be compared by their difference
+        if (lastChange != Long.MIN_VALUE && confirmed - lastChange <= 0) {
+            return false;
+        }
+        long maxAge = ApiSettings.getSearchCacheMaxAgeSeconds();
+        return maxAge <= 0 || System.nanoTime() - confirmed < TimeUnit.SECONDS.toNanos(maxAge);
+    }
+
+    /**
+     * Gets a tag
+     *
+     * @param tagName Tag name, as stored in the DB
+     * @return Tag, or null if unknown
+     */
+    public static TagEntry getTag(String tagName) {
+        return index.get(key(tagName));
+    }
+
+    /**
+     * Gets the number of tags in the index
+     *
+     * @return Number of tags
+     */
+    public static int size() {
+        return index.size();
+    }
+
+    /**
+     * Sums up tag usage per table
+     *
+     * @return Map of full table name to {number of join rows, number of distinct tags used}
+     */
+    public static Map<String, long[]> getTableTotals() {
+        HashMap<String, long[]> totals = new HashMap<>();
+        for (String fullTableName : knownTables) {
+            totals.put(fullTableName, new long[2]);
+        }
+        for (TagEntry entry : index.values()) {
+            for (Map.Entry<String, AtomicLong> count : entry.counts.entrySet()) {
+                long value = count.getValue().get();
+                if (value > 0) {
+                    long[] total = totals.computeIfAbsent(count.getKey(), k -> new long[2]);
+                    total[0] += value;
+                    total[1]++;
+                }
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Finds the most used tags that start with a prefix (case-insensitive)
+     *
+     * @param prefix        Tag name prefix, as stored in the DB
+     * @param fullTableName Rank by usage in this table ([schema_name].[table_name]), or null to rank by usage in all
+     *                      tables
+     * @param includeNsfw   If false, NSFW tags are left out
+     * @param limit         Max number of tags (at most {@link #MAX_LIMIT})
+     * @return Tags, most used first
+     */
+    public static List<TagEntry> lookup(String prefix, String fullTableName, boolean includeNsfw, int limit) {
+        long start = System.nanoTime();
+        String from = prefix.toLowerCase(Locale.ROOT);
+        List<TagEntry> out;
+        if (from.length() <= CACHED_PREFIX_LENGTH) {
+            // a tag change removes the whole map for its prefixes, so a result computed while a change is being made
+            // can only end up in a map that is no longer used
+            ConcurrentHashMap<String, List<TagEntry>> cached = shortPrefixTop.computeIfAbsent(from,
+                    k -> new ConcurrentHashMap<>());
+            List<TagEntry> top = cached.computeIfAbsent(fullTableName + "|" + includeNsfw,
+                    k -> scan(from, fullTableName, includeNsfw, MAX_LIMIT));
+            out = top.subList(0, Math.min(limit, top.size()));
+        } else {
+            out = scan(from, fullTableName, includeNsfw, limit);
+        }
+        LOOKUP_TIME.observeSince(start);
+        return out;
+    }
+
+    /**
+     * Finds the top tags of a prefix range, keeping only the best "limit" tags in a heap while scanning
+     */
+    private static List<TagEntry> scan(String from, String fullTableName, boolean includeNsfw, int limit) {
+        // counts are read once per tag, so concurrent updates can't reorder the heap under it
+        Comparator<Ranked> rank = Comparator.comparingLong((Ranked r) -> r.count)
+                .thenComparing(r -> r.entry.name, Comparator.reverseOrder());
+
+        // min-heap of the best "limit" tags seen so far
+        PriorityQueue<Ranked> best = new PriorityQueue<>(limit + 1, rank);
+        for (TagEntry entry : index.subMap(from, true, from + Character.MAX_VALUE, false).values()) {
+            if (!includeNsfw && entry.nsfw) {
+                continue;
+            }
+            Ranked ranked = new Ranked(entry, entry.getCount(fullTableName));
+            if (best.size() < limit) {
+                best.add(ranked);
+            } else if (rank.compare(ranked, best.peek()) > 0) {
+                best.poll();
+                best.add(ranked);
+            }
+        }
+
+        ArrayList<Ranked> sorted = new ArrayList<>(best);
+        sorted.sort(rank.reversed());
+        ArrayList<TagEntry> out = new ArrayList<>(sorted.size());
+        for (Ranked ranked : sorted) {
+            out.add(ranked.entry);
+        }
+        return out;
+    }
+
+    private static class Ranked {
+        private final TagEntry entry;
+        private final long count;
+
+        private Ranked(TagEntry entry, long count) {
+            this.entry = entry;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Records an upsert into the tags table
+     *
+     * @param tagName       Tag name
+     * @param nsfw          NSFW value written
+     * @param overwriteNsfw True if an existing tag's NSFW value was overwritten
+     */
+    public static void tagUpserted(String tagName, boolean nsfw, boolean overwriteNsfw) {
+        TagEntry entry = index.computeIfAbsent(key(tagName), k -> new TagEntry(tagName, nsfw));
+        if (overwriteNsfw) {
+            entry.nsfw = nsfw;
+        }
+        changed(tagName);
+    }
+
+    /**
+     * Records a change of a tag's NSFW value
+     *
+     * @param tagName Tag name
+     * @param nsfw    New NSFW value
+     */
+    public static void nsfwUpdated(String tagName, boolean nsfw) {
+        TagEntry entry = index.get(key(tagName));
+        if (entry != null) {
+            entry.nsfw = nsfw;
+            changed(tagName);
+        }
+    }
+
+    /**
+     * Records rows added to or removed from a tag join table
+     *
+     * @param fullTableName Table name ([schema_name].[table_name])
+     * @param tagName       Tag name
+     * @param delta         Number of rows added (negative if removed)
+     */
+    public static void usageChanged(String fullTableName, String tagName, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        TagEntry entry = index.get(key(tagName));
+        if (entry != null) {
+            entry.addCount(fullTableName, delta);
+            changed(tagName);
+        }
+    }
+
+    /**
+     * Drops the cached results of the short prefixes of a changed tag
+     */
+    private static void changed(String tagName) {
+        String lowerName = tagName.toLowerCase(Locale.ROOT);
+        for (int i = 0; i <= Math.min(CACHED_PREFIX_LENGTH, lowerName.length()); i++) {
+            shortPrefixTop.remove(lowerName.substring(0, i));
+        }
+    }
+
+    private static String key(String tagName) {
+        // the name is kept in the key so tags that only differ in case don't collide
+        return tagName.toLowerCase(Locale.ROOT) + '\u0000' + tagName;
+    }
+
+    /**
+     * (Re)loads the whole index. The old index keeps serving lookups until the new one is complete
+     */
+    private static void load() {
+        if (!loading.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String schemaName = ApiSettings.getSchemaName();
+        ConcurrentSkipListMap<String, TagEntry> newIndex = new ConcurrentSkipListMap<>();
+        HashMap<String, Long> tablesLoadedNanos = new HashMap<>();
+        try (Connection conn = Main.getReadConnection(true); Statement statement = conn.createStatement()) {
+            ResultSet result = statement.executeQuery("SELECT tag_name, nsfw FROM " + schemaName + ".tags;");
+            while (result.next()) {
+                String tagName = result.getString("tag_name");
+                newIndex.put(key(tagName), new TagEntry(tagName, result.getBoolean("nsfw")));
+            }
+
+            for (String tbName : Main.getMediaTableNames()) {
+                String fullTableName = schemaName + "." + tbName;
+                knownTables.add(fullTableName);
+                tablesLoadedNanos.put(fullTableName, System.nanoTime());
+                result = statement.executeQuery("SELECT tag_name, COUNT(*) AS tag_count FROM " + fullTableName +
+                        "_tags_join GROUP BY tag_name;");
+                while (result.next()) {
+                    TagEntry entry = newIndex.get(key(result.getString("tag_name")));
+                    if (entry != null) {
+                        entry.setCount(fullTableName, result.getLong("tag_count"));
+                    }
+                }
+            }
+            index = newIndex;
+            loadedNanos.putAll(tablesLoadedNanos);
+            shortPrefixTop.clear();
+            ready = true;
+            // searches may have been planned with counts that were off
+            TableGenerations.bumpAll();
+            System.out.println("INFO: Loaded " + newIndex.size() + " tag(s) into the tag index in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        } catch (SQLException e) {
+            System.out.println("ERROR: Unable to load the tag index:\n" + e.getMessage());
+            // try again later; lookups keep using the old index (or report that it isn't ready)
+            executor.schedule(TagIndex::load, 1, TimeUnit.MINUTES);
+        } finally {
+            loading.set(false);
+        }
+    }
+
+    private static void queueReconcile(String fullTableName, Set<String> tags) {
+        if (tags.isEmpty() || executor == null) {
+            return;
+        }
+        pendingReconcile.compute(fullTableName, (k, pending) -> {
+            pending = (pending == null) ? new HashSet<>() : pending;
+            pending.addAll(tags);
+            return pending;
+        });
+        // coalesce bursts of tag edits into one round of queries
+        if (reconcileScheduled.compareAndSet(false, true)) {
+            executor.schedule(TagIndex::reconcile, RECONCILE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Re-reads the NSFW flag and usage counts of the tags named in recent invalidation events
+     */
+    private static void reconcile() {
+        reconcileScheduled.set(false);
+        HashMap<String, Set<String>> batch = new HashMap<>();
+        for (String fullTableName : pendingReconcile.keySet()) {
+            Set<String> tags = pendingReconcile.remove(fullTableName);
+            if (tags != null) {
+                batch.put(fullTableName, tags);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        HashSet<String> allTags = new HashSet<>();
+        batch.values().forEach(allTags::addAll);
+        // the primary, so the values can't be older than the changes that triggered this
+        try (Connection conn = Main.getReadConnection(true)) {
+            reconcileTags(conn, allTags);
+            for (Map.Entry<String, Set<String>> tables : batch.entrySet()) {
+                Collection<String> fullTableNames = tables.getKey().equals(InvalidationBus.ALL_TABLES) ?
+                        new ArrayList<>(knownTables) : List.of(tables.getKey());
+                for (String fullTableName : fullTableNames) {
+                    reconcileCounts(conn, fullTableName, tables.getValue());
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("WARNING: Unable to update the tag index, reloading it:\n" + e.getMessage());
+            executor.schedule(TagIndex::load, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static void reconcileTags(Connection conn, Set<String> tags) throws SQLException {
+        String query = "SELECT tag_name, nsfw FROM " + ApiSettings.getSchemaName() + ".tags WHERE tag_name = ANY(?);";
+        HashSet<String> missing = new HashSet<>(tags);
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setArray(1, conn.createArrayOf("text", tags.toArray()));
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                String tagName = result.getString("tag_name");
+                boolean nsfw = result.getBoolean("nsfw");
+                index.computeIfAbsent(key(tagName), k -> new TagEntry(tagName, nsfw)).nsfw = nsfw;
+                missing.remove(tagName);
+            }
+        }
+        for (String tagName : missing) {
+            if (index.remove(key(tagName)) != null) {
+                TableGenerations.bumpAll();
+            }
+        }
+        tags.forEach(TagIndex::changed);
+    }
+
+    private static void reconcileCounts(Connection conn, String fullTableName, Set<String> tags) throws SQLException {
+        knownTables.add(fullTableName);
+        String query = "SELECT tag_name, COUNT(*) AS tag_count FROM " + fullTableName + "_tags_join " +
+                "WHERE tag_name = ANY(?) GROUP BY tag_name;";
+        HashSet<String> unused = new HashSet<>(tags);
+        boolean emptinessChanged = false;
+        long readNanos = System.nanoTime();
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setArray(1, conn.createArrayOf("text", tags.toArray()));
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                String tagName = result.getString("tag_name");
+                TagEntry entry = index.get(key(tagName));
+                if (entry != null) {
+                    emptinessChanged |= entry.setCount(fullTableName, result.getLong("tag_count"));
+                    entry.confirmedNanos.put(fullTableName, readNanos);
+                }
+                unused.remove(tagName);
+            }
+        }
+        for (String tagName : unused) {
+            TagEntry entry = index.get(key(tagName));
+            if (entry != null) {
+                emptinessChanged |= entry.setCount(fullTableName, 0);
+                entry.confirmedNanos.put(fullTableName, readNanos);
+            }
+        }
+        tags.forEach(TagIndex::changed);
+        if (emptinessChanged) {
+            TableGenerations.bump(fullTableName);
+        }
+    }
+}
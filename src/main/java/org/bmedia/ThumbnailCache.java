@@ -0,0 +1,82 @@
+package org.bmedia;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cache of encoded thumbnails, keyed by image path and thumbnail height. Thumbnails put by the
+ * {@link ThumbnailPrefetcher} are marked, so the first request that is served one counts as a prefetch hit
+ */
+public class ThumbnailCache {
+
+    private static WeightedLruCache<String, Entry> cache = null;
+
+    private static final Metrics.Counter PREFETCH_HITS = Metrics.counter("bmedia_thumbnail_prefetch_hits_total",
+            "Prefetched thumbnails that were later requested");
+
+    private static synchronized WeightedLruCache<String, Entry> getCache() {
+        if (cache == null) {
+            cache = new WeightedLruCache<>("thumbnail", ApiSettings.getThumbnailCacheMaxBytes(), Entry::estimateBytes);
+        }
+        return cache;
+    }
+
+    /**
+     * Gets a cached thumbnail for a request
+     *
+     * @param imagePath   Full path to an image
+     * @param thumbHeight Height (pixels) of thumbnail image
+     * @return JPEG bytes, or null if not cached
+     */
+    public static byte[] get(String imagePath, int thumbHeight) {
+        Entry entry = getCache().get(key(imagePath, thumbHeight));
+        if (entry == null) {
+            return null;
+        }
+        if (entry.prefetched.compareAndSet(true, false)) {
+            PREFETCH_HITS.inc();
+        }
+        return entry.bytes;
+    }
+
+    /**
+     * Checks if a thumbnail is cached, without counting a hit or miss or changing its LRU position
+     *
+     * @param imagePath   Full path to an image
+     * @param thumbHeight Height (pixels) of thumbnail image
+     * @return True if cached
+     */
+    public static boolean contains(String imagePath, int thumbHeight) {
+        return getCache().contains(key(imagePath, thumbHeight));
+    }
+
+    /**
+     * Caches a thumbnail
+     *
+     * @param imagePath   Full path to an image
+     * @param thumbHeight Height (pixels) of thumbnail image
+     * @param bytes       JPEG bytes
+     * @param prefetched  True if no request asked for the thumbnail yet
+     */
+    public static void put(String imagePath, int thumbHeight, byte[] bytes, boolean prefetched) {
+        getCache().put(key(imagePath, thumbHeight), new Entry(bytes, prefetched));
+    }
+
+    private static String key(String imagePath, int thumbHeight) {
+        return thumbHeight + "|" + imagePath;
+    }
+
+    private static class Entry {
+        private final byte[] bytes;
+        private final AtomicBoolean prefetched;
+
+        private Entry(byte[] bytes, boolean prefetched) {
+            this.bytes = bytes;
+            this.prefetched = new AtomicBoolean(prefetched);
+        }
+
+        private long estimateBytes() {
+            // entry, key and array overhead
+            return 200 + bytes.length;
+        }
+    }
+}
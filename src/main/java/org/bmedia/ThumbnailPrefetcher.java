@@ -0,0 +1,164 @@
+package org.bmedia;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms the {@link ThumbnailCache} with the thumbnails of the next page of a search, since clients nearly always go on
+ * to the next page. Prefetches run on a few low priority threads and only while request threads aren't busy making
+ * thumbnails themselves: a prefetch is dropped when too many thumbnails are being made for requests, or when the
+ * prefetch queue is full.
+ * <p>
+ * The hit rate is bmedia_thumbnail_prefetch_hits_total over bmedia_thumbnail_prefetch_total{result="prefetched"}
+ */
+public class ThumbnailPrefetcher {
+
+    // pages waiting to be prefetched; older pages matter less than the ones being browsed now
+    private static final int QUEUE_CAPACITY = 4;
+
+    private static ThreadPoolExecutor executor = null;
+    private static final AtomicInteger foregroundThumbnails = new AtomicInteger();
+    private static final int BUSY_THRESHOLD = Runtime.getRuntime().availableProcessors();
+
+    private static final Metrics.Counter PREFETCHED = prefetchCounter("prefetched");
+    private static final Metrics.Counter DROPPED_BUSY = prefetchCounter("dropped_busy");
+    private static final Metrics.Counter DROPPED_QUEUE_FULL = prefetchCounter("dropped_queue_full");
+
+    private static Metrics.Counter prefetchCounter(String result) {
+        return Metrics.counter("bmedia_thumbnail_prefetch_total",
+                "Thumbnails prefetched for the next page of a search, and prefetches dropped", "result", result);
+    }
+
+    /**
+     * Starts the prefetch threads. Prefetching is disabled if {@link ApiSettings#getThumbnailPrefetchThreads()} is 0
+     * or less
+     */
+    public synchronized static void start() {
+        int threads = ApiSettings.getThumbnailPrefetchThreads();
+        if (executor != null || threads <= 0) {
+            return;
+        }
+        AtomicInteger threadNum = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread thread = new Thread(r, "thumbnail-prefetch-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Call before a request makes a thumbnail, and {@link #foregroundFinished()} after
+     */
+    public static void foregroundStarted() {
+        foregroundThumbnails.incrementAndGet();
+    }
+
+    /**
+     * Call after a request made a thumbnail
+     */
+    public static void foregroundFinished() {
+        foregroundThumbnails.decrementAndGet();
+    }
+
+    /**
+     * Prefetches the thumbnails of the page after a page of results, in the background
+     *
+     * @param query          Search that produced the page
+     * @param pageNum        Page number that was served
+     * @param resultsPerPage Number of results per page
+     * @param thumbHeight    Height (pixels) of thumbnails the client asked for
+     */
+    public static void prefetchNextPage(SearchQuery query, int pageNum, int resultsPerPage, int thumbHeight) {
+        if (executor == null) {
+            return;
+        }
+        if (isBusy()) {
+            DROPPED_BUSY.inc();
+            return;
+        }
+        // worker threads can't see the request, so decide the routing here
+        boolean fromPrimary = ReadYourWrites.shouldReadFromPrimary();
+        try {
+            executor.execute(() -> prefetch(query, pageNum + 1, resultsPerPage, thumbHeight, fromPrimary));
+        } catch (RejectedExecutionException e) {
+            DROPPED_QUEUE_FULL.inc();
+        }
+    }
+
+    private static boolean isBusy() {
+        return foregroundThumbnails.get() >= BUSY_THRESHOLD;
+    }
+
+    private static void prefetch(SearchQuery query, int pageNum, int resultsPerPage, int thumbHeight,
+                                 boolean fromPrimary) {
+        if (isBusy()) {
+            DROPPED_BUSY.inc();
+            return;
+        }
+        try {
+            String fullTableName = query.getFullTableName();
+            for (ImageRow row : getPage(query, pageNum, resultsPerPage, fromPrimary)) {
+                if (isBusy()) {
+                    DROPPED_BUSY.inc();
+                    return;
+                }
+                String imagePath = ApiSettings.getFullFilePath(row.getFilePath());
+                if (ThumbnailCache.contains(imagePath, thumbHeight) ||
+                        BrokenPathQueue.isPending(row.getFilePath(), fullTableName)) {
+                    continue;
+                }
+                try {
+                    byte[] thumbBytes = ImageUtils.createThumbnail(imagePath, thumbHeight,
+                            thumb -> PerceptualIndex.offerThumbnail(fullTableName, imagePath, thumb));
+                    if (thumbBytes != null) {
+                        ThumbnailCache.put(imagePath, thumbHeight, thumbBytes, true);
+                        PREFETCHED.inc();
+                    }
+                } catch (IOException e) {
+                    // missing files are handled (and reported) when a request asks for them
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("WARNING: Could not get the next page of results to prefetch:\n" + e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets a page of results through the search cache, so the client's request for it doesn't query the DB either
+     */
+    private static List<ImageRow> getPage(SearchQuery query, int pageNum, int resultsPerPage, boolean fromPrimary)
+            throws SQLException {
+        String cacheKey = query.canonicalKey(pageNum, resultsPerPage);
+        long generation = TableGenerations.get(query.getFullTableName());
+        List<ImageRow> rows = SearchCache.getPage(cacheKey, generation);
+        if (rows != null) {
+            return rows;
+        }
+        if (query.isKnownEmpty()) {
+            return List.of();
+        }
+        rows = new ArrayList<>();
+        try (Connection conn = Main.getReadConnection(fromPrimary); Statement statement = conn.createStatement()) {
+            ResultSet result = statement.executeQuery(query.toSql(pageNum, resultsPerPage) + ";");
+            while (result.next()) {
+                rows.add(ImageRow.fromResultSet(result));
+            }
+        }
+        SearchCache.putPage(cacheKey, generation, rows);
+        return rows;
+    }
+}
@@ -0,0 +1,140 @@
+package org.bmedia;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * LRU cache bounded by the total weight (e.g. estimated bytes) of its entries instead of the number of entries. Hits,
+ * misses, evictions and the current weight are exported through {@link Metrics}
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class WeightedLruCache<K, V> {
+
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long weight = 0;
+
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+    private final Metrics.Counter evictions;
+
+    /**
+     * Main constructor
+     *
+     * @param name      Cache name, used as the "cache" label of the metrics
+     * @param maxWeight Max total weight. 0 or less disables the cache
+     * @param weigher   Computes the weight of a value
+     */
+    public WeightedLruCache(String name, long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        hits = Metrics.counter("bmedia_cache_hits_total", "Cache hits", "cache", name);
+        misses = Metrics.counter("bmedia_cache_misses_total", "Cache misses", "cache", name);
+        evictions = Metrics.counter("bmedia_cache_evictions_total", "Cache evictions", "cache", name);
+        Metrics.gauge("bmedia_cache_weight", "Current total weight of cache entries", this::getWeight, "cache", name);
+    }
+
+    /**
+     * Gets a value
+     *
+     * @param key Key
+     * @return Value, or null if not cached
+     */
+    public V get(K key) {
+        return get(key, v -> true);
+    }
+
+    /**
+     * Gets a value if it is still valid. Invalid values are removed and count as a miss
+     *
+     * @param key     Key
+     * @param isValid Checks if a cached value can still be used
+     * @return Value, or null if not cached or invalid
+     */
+    public V get(K key, Predicate<V> isValid) {
+        V value;
+        synchronized (this) {
+            value = entries.get(key);
+            if (value != null && !isValid.test(value)) {
+                entries.remove(key);
+                weight -= weigher.applyAsLong(value);
+                value = null;
+            }
+        }
+        if (value == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return value;
+    }
+
+    /**
+     * Checks if a key is cached, without counting a hit or miss or changing its LRU position. The value may be invalid
+     *
+     * @param key Key
+     * @return True if cached
+     */
+    public synchronized boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Adds or replaces a value, evicting the least recently used entries if the cache is over its max weight. Values
+     * heavier than the whole cache are not cached
+     *
+     * @param key   Key
+     * @param value Value
+     */
+    public void put(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > maxWeight) {
+            return;
+        }
+        synchronized (this) {
+            V old = entries.put(key, value);
+            if (old != null) {
+                weight -= weigher.applyAsLong(old);
+            }
+            weight += valueWeight;
+
+            Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Map.Entry<K, V> eldest = it.next();
+                weight -= weigher.applyAsLong(eldest.getValue());
+                it.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    /**
+     * Removes a value
+     *
+     * @param key Key
+     */
+    public synchronized void remove(K key) {
+        V old = entries.remove(key);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+    }
+
+    /**
+     * Removes every value
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+}
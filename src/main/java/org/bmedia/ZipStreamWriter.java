@@ -0,0 +1,261 @@
+package org.bmedia;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a ZIP archive of files to a stream as it goes. Entries are STORED (not compressed) and their bytes are copied
+ * from the file's channel straight to the output, so nothing is decoded, recompressed or buffered in memory. The
+ * central directory is spooled to a temp file instead of kept in memory, so memory use doesn't grow with the number of
+ * entries. ZIP64 records are added when the archive gets too big for plain ZIP
+ * <p>
+ * A STORED entry's header needs its CRC before its data, so each file is read twice: once for the CRC and once to copy
+ * it. The second read normally comes from the OS page cache
+ */
+public class ZipStreamWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final long ZIP32_MAX = 0xFFFFFFFFL;
+    private static final int ZIP16_MAX = 0xFFFF;
+    private static final short VERSION_DEFAULT = 20;
+    private static final short VERSION_ZIP64 = 45;
+    // bit 11: names are UTF-8
+    private static final short FLAG_UTF8 = 0x0800;
+    private static final int CRC_BUFFER_SIZE = 64 * 1024;
+    // the largest header without its name: a central entry (46 bytes) with a full ZIP64 extra field (32 bytes)
+    private static final int MAX_HEADER_SIZE_WITHOUT_NAME = 128;
+
+    private final WritableByteChannel out;
+    private final Path centralDirPath;
+    private final FileChannel centralDir;
+    private final ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_SIZE_WITHOUT_NAME + ZIP16_MAX).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer crcBuffer = ByteBuffer.allocateDirect(CRC_BUFFER_SIZE);
+    private long offset = 0;
+    private long entryCount = 0;
+    private boolean finished = false;
+
+    /**
+     * Main constructor
+     *
+     * @param out Stream to write the archive to. It is not closed by this writer
+     * @throws IOException If the central directory temp file can't be created
+     */
+    public ZipStreamWriter(OutputStream out) throws IOException {
+        this.out = Channels.newChannel(out);
+        this.centralDirPath = Files.createTempFile("bmedia-zip-", ".cd");
+        this.centralDir = FileChannel.open(centralDirPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Adds a file as a STORED entry
+     *
+     * @param name Entry name (path inside the archive, '/' separated)
+     * @param file File to add
+     * @throws IOException If the file can't be read, changes size while it is copied, or the output fails
+     */
+    public void addFile(String name, Path file) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > ZIP16_MAX) {
+            throw new IOException("Entry name too long: " + name);
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            long crc = crc(in, size);
+            int dosTime = dosTime(Files.getLastModifiedTime(file).toMillis());
+            long headerOffset = offset;
+
+            boolean zip64Sizes = size >= ZIP32_MAX;
+            header.clear();
+            header.putInt(LOCAL_HEADER_SIG);
+            header.putShort(zip64Sizes ? VERSION_ZIP64 : VERSION_DEFAULT);
+            header.putShort(FLAG_UTF8);
+            header.putShort((short) 0);
+            header.putInt(dosTime);
+            header.putInt((int) crc);
+            header.putInt((int) (zip64Sizes ? ZIP32_MAX : size));
+            header.putInt((int) (zip64Sizes ? ZIP32_MAX : size));
+            header.putShort((short) nameBytes.length);
+            header.putShort((short) (zip64Sizes ? 20 : 0));
+            header.put(nameBytes);
+            if (zip64Sizes) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) 16);
+                header.putLong(size);
+                header.putLong(size);
+            }
+            writeHeader();
+
+            long copied = 0;
+            while (copied < size) {
+                long n = in.transferTo(copied, size - copied, out);
+                if (n <= 0) {
+                    throw new IOException("File shrank while it was being exported: " + file);
+                }
+                copied += n;
+            }
+            offset += size;
+
+            writeCentralEntry(nameBytes, crc, size, dosTime, headerOffset);
+            entryCount++;
+        }
+    }
+
+    /**
+     * Writes the central directory and end records. No entries can be added afterwards
+     *
+     * @throws IOException If the output fails
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long centralDirOffset = offset;
+        long centralDirSize = centralDir.size();
+        long copied = 0;
+        while (copied < centralDirSize) {
+            copied += centralDir.transferTo(copied, centralDirSize - copied, out);
+        }
+        offset += centralDirSize;
+
+        if (entryCount >= ZIP16_MAX || centralDirOffset >= ZIP32_MAX || centralDirSize >= ZIP32_MAX) {
+            long zip64EndOffset = offset;
+            header.clear();
+            header.putInt(ZIP64_END_SIG);
+            header.putLong(44);
+            header.putShort(VERSION_ZIP64);
+            header.putShort(VERSION_ZIP64);
+            header.putInt(0);
+            header.putInt(0);
+            header.putLong(entryCount);
+            header.putLong(entryCount);
+            header.putLong(centralDirSize);
+            header.putLong(centralDirOffset);
+            header.putInt(ZIP64_LOCATOR_SIG);
+            header.putInt(0);
+            header.putLong(zip64EndOffset);
+            header.putInt(1);
+            writeHeader();
+        }
+
+        header.clear();
+        header.putInt(END_SIG);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) Math.min(entryCount, ZIP16_MAX));
+        header.putShort((short) Math.min(entryCount, ZIP16_MAX));
+        header.putInt((int) Math.min(centralDirSize, ZIP32_MAX));
+        header.putInt((int) Math.min(centralDirOffset, ZIP32_MAX));
+        header.putShort((short) 0);
+        writeHeader();
+    }
+
+    /**
+     * @return Number of entries written so far
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Deletes the central directory temp file. Does not finish the archive; call {@link #finish()} first
+     */
+    @Override
+    public void close() throws IOException {
+        centralDir.close();
+        Files.deleteIfExists(centralDirPath);
+    }
+
+    private void writeCentralEntry(byte[] nameBytes, long crc, long size, int dosTime, long headerOffset)
+            throws IOException {
+        boolean zip64Sizes = size >= ZIP32_MAX;
+        boolean zip64Offset = headerOffset >= ZIP32_MAX;
+        int extraSize = (zip64Sizes || zip64Offset) ? 4 + (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0) : 0;
+
+        header.clear();
+        header.putInt(CENTRAL_HEADER_SIG);
+        header.putShort(VERSION_ZIP64);
+        header.putShort((extraSize > 0) ? VERSION_ZIP64 : VERSION_DEFAULT);
+        header.putShort(FLAG_UTF8);
+        header.putShort((short) 0);
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) (zip64Sizes ? ZIP32_MAX : size));
+        header.putInt((int) (zip64Sizes ? ZIP32_MAX : size));
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) extraSize);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt((int) (zip64Offset ? ZIP32_MAX : headerOffset));
+        header.put(nameBytes);
+        if (extraSize > 0) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) (extraSize - 4));
+            if (zip64Sizes) {
+                header.putLong(size);
+                header.putLong(size);
+            }
+            if (zip64Offset) {
+                header.putLong(headerOffset);
+            }
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+            centralDir.write(header);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        header.flip();
+        while (header.hasRemaining()) {
+            offset += out.write(header);
+        }
+    }
+
+    private long crc(FileChannel in, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        long position = 0;
+        while (position < size) {
+            crcBuffer.clear();
+            int n = in.read(crcBuffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            crcBuffer.flip();
+            crc.update(crcBuffer);
+            position += n;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Converts a time to the MS-DOS date/time format ZIP headers use (local time, 2 second resolution, 1980-2107)
+     */
+    private static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        int year = Math.max(1980, Math.min(2107, time.getYear()));
+        return ((year - 1980) << 25) | (time.getMonthValue() << 21) | (time.getDayOfMonth() << 16) |
+                (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() >> 1);
+    }
+}